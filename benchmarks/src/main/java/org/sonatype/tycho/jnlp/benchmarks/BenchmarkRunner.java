@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs all benchmarks in throughput mode with gc profiler, which reports allocation rate (gc.alloc.rate and
+ * gc.alloc.rate.norm, bytes per operation). Results are also written to jmh-result.json. Accepts usual JMH command line
+ * options, which take precedence over the defaults below, e.g. {@code -p size=1MB -i 3 Pack200} runs three iterations
+ * of pack200 benchmarks for 1MB jar only.
+ */
+public class BenchmarkRunner
+{
+    public static void main( String[] args )
+        throws RunnerException, CommandLineOptionException
+    {
+        CommandLineOptions cmd = new CommandLineOptions( args );
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent( cmd );
+        if ( cmd.getBenchModes().isEmpty() )
+        {
+            options.mode( Mode.Throughput );
+        }
+        if ( !cmd.getTimeUnit().hasValue() )
+        {
+            options.timeUnit( TimeUnit.SECONDS );
+        }
+        if ( !cmd.getForkCount().hasValue() )
+        {
+            options.forks( 1 );
+        }
+        if ( !cmd.getWarmupIterations().hasValue() )
+        {
+            options.warmupIterations( 3 );
+        }
+        if ( !cmd.getWarmupTime().hasValue() )
+        {
+            options.warmupTime( TimeValue.seconds( 5 ) );
+        }
+        if ( !cmd.getMeasurementIterations().hasValue() )
+        {
+            options.measurementIterations( 5 );
+        }
+        if ( !cmd.getMeasurementTime().hasValue() )
+        {
+            options.measurementTime( TimeValue.seconds( 5 ) );
+        }
+        if ( !cmd.getResult().hasValue() )
+        {
+            options.resultFormat( ResultFormatType.JSON ).result( "jmh-result.json" );
+        }
+        options.addProfiler( GCProfiler.class );
+
+        new Runner( options.build() ).run();
+    }
+}
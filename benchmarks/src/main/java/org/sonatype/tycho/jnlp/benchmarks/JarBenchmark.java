@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sonatype.tycho.jnlp.JarUtils;
+import org.sonatype.tycho.jnlp.Jarsigner;
+import org.sonatype.tycho.jnlp.pack200.EclipseInf;
+
+/**
+ * META-INF/eclipse.inf read and write, signature scan of unsigned and signed jars and jarsigner execution. Signing uses
+ * a throw-away self-signed key generated with keytool.
+ */
+@State( Scope.Thread )
+public class JarBenchmark
+{
+    private static final String STOREPASS = "benchmark";
+
+    private static final String ALIAS = "benchmark";
+
+    private Jarsigner jarsigner;
+
+    private File signedJar;
+
+    private JarFile unsignedJarFile;
+
+    private JarFile signedJarFile;
+
+    /**
+     * Signing modifies the jar in place, so each invocation gets a fresh copy.
+     */
+    @State( Scope.Thread )
+    public static class SignInput
+    {
+        File jar;
+
+        @Setup( Level.Invocation )
+        public void copy( JarState state )
+            throws IOException
+        {
+            jar = state.copy( "sign.jar" );
+        }
+    }
+
+    @Setup( Level.Trial )
+    public void setup( JarState state )
+        throws IOException, InterruptedException
+    {
+        File keystore = new File( state.directory, "keystore.jks" );
+        String keytool = new File( System.getProperty( "java.home" ), "bin/keytool" ).getAbsolutePath();
+        Process process =
+            new ProcessBuilder( keytool, "-genkeypair", "-keystore", keystore.getAbsolutePath(), "-storepass",
+                                STOREPASS, "-keypass", STOREPASS, "-alias", ALIAS, "-keyalg", "RSA", "-keysize",
+                                "2048", "-validity", "1", "-dname", "CN=benchmark" ).inheritIO().start();
+        if ( process.waitFor() != 0 )
+        {
+            throw new IOException( "Could not generate keystore " + keystore );
+        }
+
+        jarsigner = new Jarsigner( new QuietLog() );
+        jarsigner.setKeystore( keystore.getAbsolutePath() );
+        jarsigner.setStorepass( STOREPASS );
+        jarsigner.setAlias( ALIAS );
+
+        signedJar = state.copy( "signed.jar" );
+        jarsigner.sign( signedJar, state.directory );
+
+        unsignedJarFile = new JarFile( state.jar );
+        signedJarFile = new JarFile( signedJar );
+    }
+
+    @TearDown( Level.Trial )
+    public void close()
+        throws IOException
+    {
+        unsignedJarFile.close();
+        signedJarFile.close();
+    }
+
+    @Benchmark
+    public byte[] eclipseInfReadWrite()
+        throws IOException
+    {
+        JarFile jarFile = new JarFile( signedJar );
+        try
+        {
+            EclipseInf eclipseInf = EclipseInf.readEclipseInf( jarFile );
+            eclipseInf.setPackNormalized();
+            return eclipseInf.toByteArray();
+        }
+        finally
+        {
+            jarFile.close();
+        }
+    }
+
+    @Benchmark
+    public boolean isSignedUnsigned()
+    {
+        return JarUtils.isSigned( unsignedJarFile );
+    }
+
+    @Benchmark
+    public boolean isSignedSigned()
+    {
+        return JarUtils.isSigned( signedJarFile );
+    }
+
+    @Benchmark
+    public File sign( SignInput input )
+        throws IOException
+    {
+        jarsigner.sign( input.jar, input.jar.getParentFile() );
+        return input.jar;
+    }
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic jar of parametrized size, generated once per trial in a temporary directory.
+ */
+@State( Scope.Benchmark )
+public class JarState
+{
+    @Param( { "100KB", "1MB", "10MB", "100MB" } )
+    public String size;
+
+    public File directory;
+
+    public File jar;
+
+    @Setup( Level.Trial )
+    public void generate()
+        throws IOException
+    {
+        directory = File.createTempFile( "jnlp-benchmark", "" );
+        directory.delete();
+        directory.mkdirs();
+
+        jar = new File( directory, "synthetic_" + size + ".jar" );
+        SyntheticJars.generate( jar, SyntheticJars.parseSize( size ), true );
+    }
+
+    /**
+     * Fresh copy of the jar, for operations that modify the jar in place.
+     */
+    public File copy( String name )
+        throws IOException
+    {
+        File copy = new File( directory, name );
+        FileUtils.copyFile( jar, copy );
+        return copy;
+    }
+
+    @TearDown( Level.Trial )
+    public void delete()
+        throws IOException
+    {
+        FileUtils.deleteDirectory( directory );
+    }
+}
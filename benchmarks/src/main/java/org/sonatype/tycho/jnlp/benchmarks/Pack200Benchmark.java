@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonatype.tycho.jnlp.gzip.GzipCompressor;
+import org.sonatype.tycho.jnlp.pack200.Pack200Processor;
+
+/**
+ * Pack200 normalization (pack200-normalize goal) and packing (pack200-pack goal) of one jar.
+ */
+@State( Scope.Thread )
+public class Pack200Benchmark
+{
+    private final Pack200Processor processor = new Pack200Processor();
+
+    private File normalizedJar;
+
+    private File packed;
+
+    /**
+     * Normalization modifies the jar in place, so each invocation gets a fresh copy.
+     */
+    @State( Scope.Thread )
+    public static class NormalizeInput
+    {
+        File jar;
+
+        @Setup( Level.Invocation )
+        public void copy( JarState state )
+            throws IOException
+        {
+            jar = state.copy( "normalize.jar" );
+        }
+    }
+
+    @Setup( Level.Trial )
+    public void normalizeOnce( JarState state )
+        throws IOException
+    {
+        normalizedJar = state.copy( "normalized.jar" );
+        processor.normalize( normalizedJar, -1 );
+        packed = new File( state.directory, "normalized.jar.pack.gz" );
+    }
+
+    @Benchmark
+    public File normalize( NormalizeInput input )
+        throws IOException
+    {
+        processor.normalize( input.jar, -1 );
+        return input.jar;
+    }
+
+    @Benchmark
+    public File pack()
+        throws IOException
+    {
+        processor.pack( normalizedJar, packed, new GzipCompressor( false ), -1 );
+        return packed;
+    }
+
+    @Benchmark
+    public File packExhaustiveGzip()
+        throws IOException
+    {
+        processor.pack( normalizedJar, packed, new GzipCompressor( true ), -1 );
+        return packed;
+    }
+}
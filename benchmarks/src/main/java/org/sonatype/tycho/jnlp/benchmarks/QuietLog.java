@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * Discards debug and info messages, which would otherwise be logged for each benchmark invocation.
+ */
+class QuietLog
+    extends SystemStreamLog
+{
+    @Override
+    public boolean isDebugEnabled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isInfoEnabled()
+    {
+        return false;
+    }
+
+    @Override
+    public void debug( CharSequence content )
+    {
+    }
+
+    @Override
+    public void debug( CharSequence content, Throwable error )
+    {
+    }
+
+    @Override
+    public void debug( Throwable error )
+    {
+    }
+
+    @Override
+    public void info( CharSequence content )
+    {
+    }
+
+    @Override
+    public void info( CharSequence content, Throwable error )
+    {
+    }
+
+    @Override
+    public void info( Throwable error )
+    {
+    }
+}
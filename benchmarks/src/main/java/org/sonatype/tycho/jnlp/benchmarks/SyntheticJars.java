@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.sonatype.tycho.jnlp.pack200.EclipseInf;
+
+/**
+ * Generates reproducible bundle jars of given approximate uncompressed size. About two thirds of the content are valid
+ * (abstract) class files, the rest are text resources, which is roughly what a typical eclipse bundle looks like.
+ */
+public final class SyntheticJars
+{
+    private static final String[] WORDS = { "bundle", "plugin", "feature", "jnlp", "eclipse", "osgi", "resource",
+        "version", "service", "extension", "point", "registry", "classpath", "manifest", "activator", "framework" };
+
+    private static final String[] DESCRIPTORS = { "()V", "(I)I", "(Ljava/lang/String;)V",
+        "(Ljava/lang/Object;I)Ljava/lang/String;", "([BII)I", "(JJ)Z", "(Ljava/util/List;)Ljava/util/Map;" };
+
+    private static final int RESOURCE_SIZE = 16 * 1024;
+
+    private SyntheticJars()
+    {
+    }
+
+    /**
+     * Parses sizes like 100KB, 1MB.
+     */
+    public static long parseSize( String size )
+    {
+        String s = size.toUpperCase();
+        if ( s.endsWith( "MB" ) )
+        {
+            return Long.parseLong( s.substring( 0, s.length() - 2 ) ) * 1024 * 1024;
+        }
+        if ( s.endsWith( "KB" ) )
+        {
+            return Long.parseLong( s.substring( 0, s.length() - 2 ) ) * 1024;
+        }
+        return Long.parseLong( s );
+    }
+
+    public static void generate( File jar, long size, boolean eclipseInf )
+        throws IOException
+    {
+        Random random = new Random( size );
+
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Bundle-ManifestVersion", "2" );
+        attributes.putValue( "Bundle-SymbolicName", "synthetic.bundle" );
+        attributes.putValue( "Bundle-Version", "1.0.0" );
+
+        JarOutputStream jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( jar ) ), manifest );
+        try
+        {
+            if ( eclipseInf )
+            {
+                jos.putNextEntry( new JarEntry( EclipseInf.PATH_ECLIPSEINF ) );
+                jos.write( "jarprocessor.exclude.sign=false\n".getBytes( "ISO-8859-1" ) );
+                jos.closeEntry();
+            }
+
+            long classBytes = size * 2 / 3;
+            long written = 0;
+            int n = 0;
+            while ( written < classBytes )
+            {
+                String name = "synthetic/p" + ( n % 32 ) + "/Class" + n;
+                byte[] bytes = classFile( name, 20 + random.nextInt( 60 ), random );
+                jos.putNextEntry( new JarEntry( name + ".class" ) );
+                jos.write( bytes );
+                jos.closeEntry();
+                written += bytes.length;
+                n++;
+            }
+
+            n = 0;
+            while ( written < size )
+            {
+                byte[] bytes = resource( random );
+                jos.putNextEntry( new JarEntry( "resources/r" + ( n % 16 ) + "/resource" + n + ".txt" ) );
+                jos.write( bytes );
+                jos.closeEntry();
+                written += bytes.length;
+                n++;
+            }
+        }
+        finally
+        {
+            jos.close();
+        }
+    }
+
+    /**
+     * Minimal valid class file of public abstract class with the given number of public abstract methods.
+     */
+    static byte[] classFile( String name, int methods, Random random )
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( buf );
+
+        out.writeInt( 0xCAFEBABE );
+        out.writeShort( 0 ); // minor
+        out.writeShort( 49 ); // major, java 5
+
+        // constant pool: 1 this name, 2 this class, 3 super name, 4 super class, descriptors, method names
+        int descriptorsIndex = 5;
+        int namesIndex = descriptorsIndex + DESCRIPTORS.length;
+        out.writeShort( namesIndex + methods );
+        out.writeByte( 1 );
+        out.writeUTF( name );
+        out.writeByte( 7 );
+        out.writeShort( 1 );
+        out.writeByte( 1 );
+        out.writeUTF( "java/lang/Object" );
+        out.writeByte( 7 );
+        out.writeShort( 3 );
+        for ( String descriptor : DESCRIPTORS )
+        {
+            out.writeByte( 1 );
+            out.writeUTF( descriptor );
+        }
+        for ( int i = 0; i < methods; i++ )
+        {
+            out.writeByte( 1 );
+            out.writeUTF( WORDS[random.nextInt( WORDS.length )] + i );
+        }
+
+        out.writeShort( 0x0421 ); // public abstract super
+        out.writeShort( 2 );
+        out.writeShort( 4 );
+        out.writeShort( 0 ); // interfaces
+        out.writeShort( 0 ); // fields
+
+        out.writeShort( methods );
+        for ( int i = 0; i < methods; i++ )
+        {
+            out.writeShort( 0x0401 ); // public abstract
+            out.writeShort( namesIndex + i );
+            out.writeShort( descriptorsIndex + random.nextInt( DESCRIPTORS.length ) );
+            out.writeShort( 0 ); // attributes
+        }
+
+        out.writeShort( 0 ); // attributes
+        out.flush();
+
+        return buf.toByteArray();
+    }
+
+    private static byte[] resource( Random random )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder( RESOURCE_SIZE + 32 );
+        while ( sb.length() < RESOURCE_SIZE )
+        {
+            sb.append( WORDS[random.nextInt( WORDS.length )] );
+            sb.append( random.nextInt( 10 ) == 0 ? '\n' : ' ' );
+        }
+        return sb.toString().getBytes( "UTF-8" );
+    }
+}
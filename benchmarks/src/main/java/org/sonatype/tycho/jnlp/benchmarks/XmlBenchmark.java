@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.tycho.core.PluginDescription;
+import org.eclipse.tycho.core.osgitools.DefaultArtifactKey;
+import org.eclipse.tycho.core.osgitools.DefaultPluginDescription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonatype.tycho.jnlp.JnlpXml;
+
+import de.pdark.decentxml.Document;
+import de.pdark.decentxml.Element;
+import de.pdark.decentxml.XMLParser;
+
+/**
+ * JNLP file (jnlp-file goal) and artifacts.xml (artifacts-xml goal) generation for products of different size,
+ * including template parsing and serialization.
+ */
+@State( Scope.Benchmark )
+public class XmlBenchmark
+{
+    private static final String JNLP_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<jnlp spec=\"1.0+\" codebase=\"http://localhost/\">\n"
+        + "<information><title>benchmark</title><vendor>benchmark</vendor></information>\n"
+        + "<security><all-permissions/></security>\n"
+        + "<application-desc main-class=\"org.eclipse.equinox.launcher.WebStartMain\"/>\n" + "</jnlp>\n";
+
+    private static final String ARTIFACTS_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<?artifactRepository version='1.1.0'?>\n"
+        + "<repository name=\"benchmark\" type=\"org.eclipse.equinox.p2.artifact.repository.simpleRepository\""
+        + " version=\"1\">\n" + "<artifacts>\n" + "</artifacts>\n" + "</repository>\n";
+
+    /**
+     * One in this many bundles is platform specific.
+     */
+    private static final int PLATFORM_SPECIFIC = 20;
+
+    private static final String[][] ENVIRONMENTS = { { "Linux", "amd64" }, { "Windows", "x86" },
+        { "Mac", "x86_64" } };
+
+    @Param( { "100", "1000", "10000" } )
+    public int bundles;
+
+    private List<PluginDescription> plugins;
+
+    private List<PluginDescription> platformPlugins;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        plugins = new ArrayList<PluginDescription>();
+        platformPlugins = new ArrayList<PluginDescription>();
+        for ( int i = 0; i < bundles; i++ )
+        {
+            String id = "org.example.bundle" + i;
+            String version = "1.0." + ( i % 10 ) + ".v20120101-1200";
+            PluginDescription plugin =
+                new DefaultPluginDescription( new DefaultArtifactKey( "eclipse-plugin", id, version ),
+                                              new File( id + "_" + version + ".jar" ), null, null, null,
+                                              Collections.emptySet() );
+            if ( i % PLATFORM_SPECIFIC == 0 )
+            {
+                platformPlugins.add( plugin );
+            }
+            else
+            {
+                plugins.add( plugin );
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] jnlp()
+        throws IOException
+    {
+        Document document = XMLParser.parse( JNLP_TEMPLATE );
+        Element jnlpDom = document.getRootElement();
+
+        JnlpXml.addResources( jnlpDom, "plugins/", plugins, null, null );
+        for ( String[] env : ENVIRONMENTS )
+        {
+            JnlpXml.addResources( jnlpDom, "plugins/", platformPlugins, env[0], env[1] );
+        }
+
+        return write( document );
+    }
+
+    @Benchmark
+    public byte[] artifacts()
+        throws IOException
+    {
+        Document document = XMLParser.parse( ARTIFACTS_TEMPLATE );
+        Element artifactsDom = document.getRootElement().getChild( "artifacts" );
+
+        for ( PluginDescription plugin : plugins )
+        {
+            JnlpXml.addArtifact( artifactsDom, plugin, "osgi.bundle" );
+        }
+        for ( PluginDescription plugin : platformPlugins )
+        {
+            JnlpXml.addArtifact( artifactsDom, plugin, "osgi.bundle" );
+        }
+
+        return write( document );
+    }
+
+    private static byte[] write( Document document )
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        JnlpXml.write( document, buf );
+        return buf.toByteArray();
+    }
+}
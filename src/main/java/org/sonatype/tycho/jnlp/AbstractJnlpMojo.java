@@ -11,31 +11,64 @@
 
 package org.sonatype.tycho.jnlp;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.PlexusContainer;
 import org.codehaus.plexus.component.repository.exception.ComponentLookupException;
+import org.codehaus.plexus.interpolation.InterpolatorFilterReader;
+import org.codehaus.plexus.interpolation.PrefixedObjectValueSource;
+import org.codehaus.plexus.interpolation.PrefixedPropertiesValueSource;
+import org.codehaus.plexus.interpolation.PropertiesBasedValueSource;
+import org.codehaus.plexus.interpolation.StringSearchInterpolator;
 import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.ReaderFactory;
 import org.eclipse.tycho.ArtifactDescriptor;
-import org.eclipse.tycho.ReactorProject;
+import org.eclipse.tycho.core.ArtifactDependencyVisitor;
 import org.eclipse.tycho.core.ArtifactDependencyWalker;
+import org.eclipse.tycho.core.PluginDescription;
 import org.eclipse.tycho.core.TychoProject;
+import org.eclipse.tycho.core.utils.PlatformPropertiesUtils;
+import org.eclipse.tycho.model.PluginRef;
+import org.eclipse.tycho.model.ProductConfiguration;
+import org.sonatype.tycho.jnlp.worker.WorkerClient;
 
 import de.pdark.decentxml.Document;
-import de.pdark.decentxml.XMLWriter;
+import de.pdark.decentxml.XMLParser;
 
 public abstract class AbstractJnlpMojo
     extends AbstractMojo
 {
+    /**
+     * File name suffix of &lt;nativelib&gt; jars split from platform-specific plugins, see {@link NativeLibMojo}.
+     */
+    protected static final String NATIVELIB_SUFFIX = ".natives.jar";
+
+    private static final String CONFIGINI_PROPERTY_PREFIX = "configini";
+
+    private static final String PRODUCT_PROPERTY_PREFIX = "product";
+
+    private static final String NO_ENVIRONMENT = "";
+
     /**
      * @parameter expression="${project}"
      */
@@ -49,6 +82,79 @@ public abstract class AbstractJnlpMojo
     /** @component */
     protected PlexusContainer plexus;
 
+    /**
+     * @parameter expression="${mojoExecution}"
+     * @readonly
+     */
+    protected MojoExecution mojoExecution;
+
+    /**
+     * Directory of per-goal timing and throughput reports.
+     * 
+     * @parameter default-value="${project.build.directory}/jnlp-report"
+     */
+    protected File reportDirectory;
+
+    /**
+     * Reports of a previous build to compare with. If not specified, reports left in reportDirectory by the previous
+     * build are used.
+     * 
+     * @parameter expression="${jnlp.previousReportDirectory}"
+     */
+    protected File previousReportDirectory;
+
+    /**
+     * Relative wall time increase, compared to the previous build, that is reported as regression.
+     * 
+     * @parameter default-value="0.2"
+     */
+    protected double regressionThreshold;
+
+    /**
+     * Directory of signed, pack200 normalized and packed bundles shared by all products of the reactor (and of
+     * subsequent builds). Bundles with the same id, version and contents are processed once and hard linked, or copied,
+     * into each product. Typically set to a directory in the top level project, for example
+     * {@code ${session.executionRootDirectory}/target/bundle-pool}. Not used if not specified.
+     * 
+     * @parameter expression="${jnlp.bundlePool}"
+     */
+    protected File bundlePool;
+
+    /**
+     * Target environments served by this deployment. Platform-specific plugins (fragments with os/arch) of other
+     * environments are skipped by all goals: they are not signed, packed, compressed or listed in generated files.
+     * See {@link EnvironmentFilter}. All environments of the product if not specified.
+     * 
+     * @parameter
+     */
+    protected EnvironmentFilter environmentFilter;
+
+    /**
+     * If {@code true}, jars are pack200 normalized, packed and signed by a worker JVM that is started on first use and
+     * kept running between builds, so repeated builds during development do not start cold. See {@link WorkerClient}.
+     * 
+     * @parameter expression="${jnlp.worker}" default-value="false"
+     */
+    protected boolean useWorker;
+
+    /**
+     * State and log files of workers.
+     * 
+     * @parameter expression="${jnlp.workerDirectory}" default-value="${user.home}/.m2/jnlp-worker"
+     */
+    protected File workerDirectory;
+
+    /**
+     * Seconds after which an idle worker exits.
+     * 
+     * @parameter expression="${jnlp.workerIdleTimeout}" default-value="1800"
+     */
+    protected int workerIdleTimeout;
+
+    private WorkerClient worker;
+
+    private boolean workerConnected;
+
     protected ArtifactDependencyWalker getDependencyWalker()
     {
         return getTychoProjectFacet().getDependencyWalker( project );
@@ -75,35 +181,379 @@ public abstract class AbstractJnlpMojo
 
     protected String getVersion( ArtifactDescriptor artifact )
     {
-        String version = artifact.getKey().getVersion();
-        ReactorProject project = artifact.getMavenProject();
-        if ( project != null )
+        return JnlpXml.getVersion( artifact );
+    }
+
+    /**
+     * @return {@code true} if the plugin is platform independent or its environment is not excluded by
+     *         environmentFilter
+     */
+    protected boolean isIncluded( PluginDescription plugin )
+    {
+        PluginRef ref = plugin.getPluginRef();
+        if ( environmentFilter == null || ref == null || environmentFilter.isIncluded( ref.getOs(), ref.getArch() ) )
         {
-            version = project.getExpandedVersion();
+            return true;
         }
-        return version;
+        getLog().debug( "Skipping " + plugin.getKey().getId() + " for excluded environment " + ref.getOs() + "/"
+                            + ref.getArch() );
+        return false;
     }
 
-    protected void writeXmlFile( Document document, File file )
-        throws MojoExecutionException
+    /**
+     * @return absolute plugin jar files of environments excluded by environmentFilter
+     */
+    protected Set<File> getExcludedPluginFiles()
+    {
+        final Set<File> excluded = new HashSet<File>();
+        if ( environmentFilter != null )
+        {
+            getDependencyWalker().walk( new ArtifactDependencyVisitor()
+            {
+                @Override
+                public void visitPlugin( PluginDescription plugin )
+                {
+                    if ( !isIncluded( plugin ) )
+                    {
+                        String name = plugin.getKey().getId() + "_" + getVersion( plugin ) + ".jar";
+                        excluded.add( new File( target, "plugins/" + name ).getAbsoluteFile() );
+                        excluded.add( getNativeLibFile( plugin ).getAbsoluteFile() );
+                    }
+                }
+            } );
+        }
+        return excluded;
+    }
+
+    /**
+     * @return &lt;nativelib&gt; jar with the native libraries of the plugin, exists if split-natives found any
+     */
+    protected File getNativeLibFile( PluginDescription plugin )
+    {
+        return new File( target, "plugins/" + plugin.getKey().getId() + "_" + getVersion( plugin ) + NATIVELIB_SUFFIX );
+    }
+
+    /**
+     * Product plugins grouped by generated &lt;resources/&gt; elements, in the same order. Platform independent plugins
+     * are mapped to {@code null} key. Plugins that do not specify os (or arch) are listed for every included
+     * environment of their arch (or os).
+     * 
+     * @param environmentsMap environments in addition to the default ones, or {@code null}
+     */
+    protected Map<Environment, List<PluginDescription>> getResources( Environment[] environmentsMap )
+    {
+        final Map<String, List<PluginDescription>> plugins = new LinkedHashMap<String, List<PluginDescription>>();
+
+        getDependencyWalker().walk( new ArtifactDependencyVisitor()
+        {
+            public void visitPlugin( PluginDescription plugin )
+            {
+                if ( !isIncluded( plugin ) )
+                {
+                    return;
+                }
+
+                PluginRef ref = plugin.getPluginRef();
+
+                String key = getEnvKey( ref.getOs(), ref.getArch() );
+
+                List<PluginDescription> list = plugins.get( key );
+                if ( list == null )
+                {
+                    list = new ArrayList<PluginDescription>();
+                    plugins.put( key, list );
+                }
+                list.add( plugin );
+            }
+        } );
+
+        List<Environment> defaultEnvironments = newDefaultEnvironments();
+        Map<Environment, List<PluginDescription>> resources = new LinkedHashMap<Environment, List<PluginDescription>>();
+        for ( Map.Entry<String, List<PluginDescription>> entry : plugins.entrySet() )
+        {
+            if ( NO_ENVIRONMENT.equals( entry.getKey() ) )
+            {
+                resources.put( null, entry.getValue() );
+            }
+            else
+            {
+                for ( Environment env : getEnvironments( entry.getKey(), defaultEnvironments, environmentsMap ) )
+                {
+                    List<PluginDescription> list = resources.get( env );
+                    if ( list == null )
+                    {
+                        resources.put( env, entry.getValue() );
+                    }
+                    else
+                    {
+                        list = new ArrayList<PluginDescription>( list );
+                        list.addAll( entry.getValue() );
+                        resources.put( env, list );
+                    }
+                }
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * Maps OSGi environment key to Java. Environment is mutable, so each {@link #getResources(Environment[])} call gets
+     * its own copy, which allows concurrent execution in parallel builds.
+     */
+    private static List<Environment> newDefaultEnvironments()
+    {
+        List<Environment> environments = new ArrayList<Environment>();
+
+        // http://lopica.sourceforge.net/os.html
+        environments.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_LINUX,
+                                                      PlatformPropertiesUtils.ARCH_X86_64 ), //
+                                           "Linux", "amd64" ) );
+
+        environments.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_LINUX,
+                                                      PlatformPropertiesUtils.ARCH_X86 ), //
+                                           "Linux", "i386" ) );
+
+        environments.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_WIN32,
+                                                      PlatformPropertiesUtils.ARCH_X86 ), //
+                                           "Windows", "x86" ) );
+
+        environments.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_WIN32,
+                                                      PlatformPropertiesUtils.ARCH_X86_64 ), //
+                                           "Windows", "amd64" ) );
+
+        environments.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_MACOSX,
+                                                      PlatformPropertiesUtils.ARCH_X86_64 ), //
+                                           "Mac", "x86_64" ) );
+
+        return environments;
+    }
+
+    private List<Environment> getEnvironments( String key, List<Environment> defaultEnvironments,
+                                               Environment[] environmentsMap )
+    {
+        ArrayList<Environment> envs = new ArrayList<Environment>();
+
+        for ( Environment env : defaultEnvironments )
+        {
+            if ( matches( key, env.getKey() ) )
+            {
+                envs.add( env );
+            }
+        }
+
+        if ( environmentsMap != null )
+        {
+            for ( Environment env : environmentsMap )
+            {
+                if ( matches( key, env.getKey() ) )
+                {
+                    envs.add( env );
+                }
+            }
+        }
+
+        if ( envs.isEmpty() )
+        {
+            getLog().warn( "Unknown or unsupported target environment " + key );
+        }
+
+        return envs;
+    }
+
+    /**
+     * @return {@code true} if the environment key of a plugin is the key of the environment, or the plugin does not
+     *         specify os (or arch) and the environment has its arch (or os) and is not excluded by environmentFilter
+     */
+    private boolean matches( String key, String envKey )
+    {
+        if ( key.equals( envKey ) )
+        {
+            return true;
+        }
+        int idx = key.indexOf( '/' );
+        int envIdx = envKey.indexOf( '/' );
+        if ( idx < 0 || envIdx < 0 )
+        {
+            return false;
+        }
+        String os = key.substring( 0, idx );
+        String arch = key.substring( idx + 1 );
+        String envOs = envKey.substring( 0, envIdx );
+        String envArch = envKey.substring( envIdx + 1 );
+        if ( ( os.length() > 0 && !os.equals( envOs ) ) || ( arch.length() > 0 && !arch.equals( envArch ) ) )
+        {
+            return false;
+        }
+        return environmentFilter == null || environmentFilter.isIncluded( envOs, envArch );
+    }
+
+    private static String getEnvKey( String os, String arch )
+    {
+        if ( os == null && arch == null )
+        {
+            return NO_ENVIRONMENT;
+        }
+        StringBuilder key = new StringBuilder();
+        if ( os != null )
+        {
+            key.append( os );
+        }
+        key.append( '/' );
+        if ( arch != null )
+        {
+            key.append( arch );
+        }
+
+        return key.toString();
+    }
+
+    protected StageReport newStageReport()
+    {
+        String stage = getClass().getSimpleName();
+        if ( mojoExecution != null )
+        {
+            stage = mojoExecution.getGoal() + "_" + mojoExecution.getExecutionId();
+        }
+        return new StageReport( stage );
+    }
+
+    /**
+     * @return path of the file relative to the product directory, with '/' separators, or the file name if the file
+     *         is not in the product directory. Features and plugins often have jars of the same name.
+     */
+    protected String getReportName( File file )
+    {
+        String root = target.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        if ( path.startsWith( root ) )
+        {
+            return path.substring( root.length() ).replace( File.separatorChar, '/' );
+        }
+        return file.getName();
+    }
+
+    /**
+     * @return shared bundle pool, or {@code null} if not configured
+     */
+    protected BundlePool getBundlePool()
+    {
+        return bundlePool != null ? new BundlePool( bundlePool, getLog() ) : null;
+    }
+
+    /**
+     * @return worker, or {@code null} if not enabled or it could not be started, then jars are processed in this JVM
+     */
+    protected synchronized WorkerClient getWorker()
+    {
+        if ( useWorker && !workerConnected )
+        {
+            workerConnected = true;
+            try
+            {
+                worker = WorkerClient.connect( workerDirectory, workerIdleTimeout, getLog() );
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Could not start jnlp worker, processing jars in this JVM", e );
+            }
+        }
+        return worker;
+    }
+
+    protected void writeStageReport( StageReport report )
     {
         try
         {
-            OutputStream os = new BufferedOutputStream( new FileOutputStream( file ) );
+            report.write( reportDirectory, previousReportDirectory, regressionThreshold, getLog() );
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Could not write report " + report.getStage(), e );
+        }
+    }
+
+    /**
+     * @return properties of the product's configuration/config.ini, empty if it does not exist
+     */
+    protected Properties loadConfigIni()
+        throws MojoExecutionException
+    {
+        Properties configIni = new Properties();
+        File configIniFile = new File( target, "configuration/config.ini" );
+        if ( configIniFile.canRead() )
+        {
             try
             {
-                String enc = document.getEncoding() != null ? document.getEncoding() : "UTF-8";
-                Writer w = new OutputStreamWriter( os, enc );
-                XMLWriter xw = new XMLWriter( w );
+                InputStream is = new BufferedInputStream( new FileInputStream( configIniFile ) );
                 try
                 {
-                    document.toXML( xw );
+                    configIni.load( is );
                 }
                 finally
                 {
-                    xw.flush();
+                    IOUtil.close( is );
                 }
             }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Could not read " + configIniFile.getAbsolutePath(), e );
+            }
+        }
+        return configIni;
+    }
+
+    /**
+     * Reads a jnlp file template, interpolating ${project.*}, ${product.*}, ${configini.*} and project properties.
+     * 
+     * @param product product configuration, or {@code null}
+     */
+    protected Document loadJnlpTemplate( File template, ProductConfiguration product, Properties configIni )
+        throws MojoExecutionException
+    {
+        try
+        {
+            StringSearchInterpolator interpolator = new StringSearchInterpolator();
+            interpolator.addValueSource( new PrefixedObjectValueSource( "project", project ) );
+
+            if ( product != null )
+            {
+                interpolator.addValueSource( new PrefixedObjectValueSource( PRODUCT_PROPERTY_PREFIX, product ) );
+            }
+
+            if ( !configIni.isEmpty() )
+            {
+                interpolator.addValueSource( new PrefixedPropertiesValueSource( CONFIGINI_PROPERTY_PREFIX, configIni ) );
+            }
+
+            interpolator.addValueSource( new PropertiesBasedValueSource( project.getProperties() ) );
+
+            Reader reader = ReaderFactory.newXmlReader( template );
+            reader = new InterpolatorFilterReader( reader, interpolator );
+            try
+            {
+                return XMLParser.parse( IOUtil.toString( reader ) );
+            }
+            finally
+            {
+                IOUtil.close( reader );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not read jnlp file template " + template.getAbsolutePath(), e );
+        }
+    }
+
+    protected void writeXmlFile( Document document, File file )
+        throws MojoExecutionException
+    {
+        try
+        {
+            OutputStream os = new BufferedOutputStream( new FileOutputStream( file ) );
+            try
+            {
+                JnlpXml.write( document, os );
+            }
             finally
             {
                 IOUtil.close( os );
@@ -115,4 +565,19 @@ public abstract class AbstractJnlpMojo
         }
     }
 
+    protected byte[] toXmlByteArray( Document document )
+        throws MojoExecutionException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try
+        {
+            JnlpXml.write( document, buf );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not serialize xml document", e );
+        }
+        return buf.toByteArray();
+    }
+
 }
@@ -0,0 +1,630 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.xml.XmlStreamReader;
+import org.osgi.framework.Version;
+
+import de.pdark.decentxml.Element;
+import de.pdark.decentxml.XMLWriter;
+
+/**
+ * Merges &lt;artifact&gt; descriptors into an existing artifacts.xml without building a DOM of it. The existing file
+ * is read twice as a stream of markup, first to index its artifacts by (id, version, classifier), then to copy it to
+ * the output. Markup and text are copied as they were read, except
+ * <ul>
+ * <li>existing artifacts with a different new descriptor, which are replaced,</li>
+ * <li>artifacts outside the retention window, which are dropped together with the whitespace before them,</li>
+ * <li>new artifacts, which are appended before &lt;/artifacts&gt;,</li>
+ * <li>size attribute of &lt;artifacts&gt;, which is updated.</li>
+ * </ul>
+ * The retention window is the given number of highest versions of each (id, classifier). Artifacts with a new
+ * descriptor are always retained.
+ */
+public class ArtifactsXmlMerger
+{
+    private static final Pattern ATTRIBUTE = Pattern.compile( "\\s(id|version|classifier)\\s*=\\s*(['\"])(.*?)\\2" );
+
+    private static final Pattern SIZE = Pattern.compile( "(\\ssize\\s*=\\s*)(['\"])[^'\"]*\\2" );
+
+    private static final String DEFAULT_INDENT = "\n    ";
+
+    private final File existing;
+
+    private final int retainVersions;
+
+    /**
+     * New descriptors by key, in the order they were added.
+     */
+    private final Map<String, Descriptor> descriptors = new LinkedHashMap<String, Descriptor>();
+
+    /**
+     * Keys of existing artifacts, from the first pass.
+     */
+    private final Set<String> index = new HashSet<String>();
+
+    private final Set<String> pruned = new HashSet<String>();
+
+    private int added;
+
+    private int replaced;
+
+    private int removed;
+
+    private int kept;
+
+    /**
+     * @param retainVersions number of versions of each artifact to keep, 0 to keep all
+     */
+    public ArtifactsXmlMerger( File existing, int retainVersions )
+    {
+        this.existing = existing;
+        this.retainVersions = retainVersions;
+    }
+
+    /**
+     * Adds a new &lt;artifact&gt; descriptor.
+     */
+    public void add( Element artifactDom )
+        throws IOException
+    {
+        StringWriter w = new StringWriter();
+        XMLWriter xw = new XMLWriter( w );
+        artifactDom.toXML( xw );
+        xw.flush();
+
+        String key =
+            getKey( artifactDom.getAttributeValue( "id" ), artifactDom.getAttributeValue( "version" ),
+                    artifactDom.getAttributeValue( "classifier" ) );
+        descriptors.put( key, new Descriptor( key, w.toString() ) );
+    }
+
+    /**
+     * Writes the existing artifacts.xml merged with the new descriptors to the output file, which may be the existing
+     * file.
+     */
+    public void merge( File output )
+        throws IOException
+    {
+        scan( null );
+
+        prune();
+
+        File tmp = new File( output.getParentFile(), output.getName() + ".tmp" );
+        String encoding = getEncoding();
+        Writer w = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tmp ), encoding ) );
+        try
+        {
+            scan( w );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+
+        if ( !tmp.renameTo( output ) )
+        {
+            output.delete();
+            if ( !tmp.renameTo( output ) )
+            {
+                throw new IOException( "Could not rename " + tmp.getAbsolutePath() + " to "
+                    + output.getAbsolutePath() );
+            }
+        }
+    }
+
+    public int getAdded()
+    {
+        return added;
+    }
+
+    public int getReplaced()
+    {
+        return replaced;
+    }
+
+    /**
+     * @return number of artifacts outside the retention window, or duplicates, that were removed
+     */
+    public int getRemoved()
+    {
+        return removed;
+    }
+
+    public int getKept()
+    {
+        return kept;
+    }
+
+    /**
+     * Indexes the existing artifacts if w is {@code null}, otherwise writes the merged file.
+     */
+    private void scan( Writer w )
+        throws IOException
+    {
+        MarkupReader in = new MarkupReader( new XmlStreamReader( existing ) );
+        try
+        {
+            Set<String> written = new HashSet<String>();
+            int depth = 0;
+            int artifactsDepth = -1;
+            String pending = "";
+            String indent = DEFAULT_INDENT;
+
+            String markup;
+            while ( ( markup = in.next() ) != null )
+            {
+                if ( depth == artifactsDepth )
+                {
+                    // children of <artifacts>
+                    if ( !markup.startsWith( "<" ) && markup.trim().length() == 0 )
+                    {
+                        pending += markup;
+                        continue;
+                    }
+                    if ( isStartTag( markup ) && "artifact".equals( getName( markup ) ) )
+                    {
+                        String element = isEmptyTag( markup ) ? markup : readElement( in, markup );
+                        if ( pending.indexOf( '\n' ) >= 0 )
+                        {
+                            indent = pending.substring( pending.lastIndexOf( '\n' ) );
+                        }
+                        artifact( getKey( markup ), element, pending, written, w );
+                        pending = "";
+                        continue;
+                    }
+                    if ( markup.startsWith( "</" ) && "artifacts".equals( getName( markup ) ) )
+                    {
+                        appendNew( indent, w );
+                        artifactsDepth = -1;
+                    }
+                    write( w, pending );
+                    pending = "";
+                }
+                else if ( depth == 1 && isStartTag( markup ) && "artifacts".equals( getName( markup ) ) )
+                {
+                    if ( w != null )
+                    {
+                        markup = setSize( markup );
+                    }
+                    if ( isEmptyTag( markup ) )
+                    {
+                        // empty repository
+                        write( w, markup.substring( 0, markup.length() - 2 ).trim() + ">" );
+                        appendNew( DEFAULT_INDENT, w );
+                        write( w, "\n  </artifacts>" );
+                        continue;
+                    }
+                    artifactsDepth = depth + 1;
+                }
+
+                write( w, markup );
+
+                if ( isStartTag( markup ) && !isEmptyTag( markup ) )
+                {
+                    depth++;
+                }
+                else if ( markup.startsWith( "</" ) )
+                {
+                    depth--;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void artifact( String key, String element, String pending, Set<String> written, Writer w )
+        throws IOException
+    {
+        if ( w == null )
+        {
+            index.add( key );
+            return;
+        }
+
+        if ( pruned.contains( key ) || !written.add( key ) )
+        {
+            removed++;
+            return;
+        }
+
+        Descriptor descriptor = descriptors.get( key );
+        if ( descriptor != null && !descriptor.normalized.equals( normalize( element ) ) )
+        {
+            write( w, pending + descriptor.xml );
+            replaced++;
+        }
+        else
+        {
+            write( w, pending + element );
+            kept++;
+        }
+    }
+
+    private void appendNew( String indent, Writer w )
+        throws IOException
+    {
+        if ( w == null )
+        {
+            return;
+        }
+        for ( Descriptor descriptor : descriptors.values() )
+        {
+            if ( !index.contains( descriptor.key ) )
+            {
+                write( w, indent + descriptor.xml );
+                added++;
+            }
+        }
+    }
+
+    /**
+     * Determines existing artifacts outside the retention window.
+     */
+    private void prune()
+    {
+        if ( retainVersions <= 0 )
+        {
+            return;
+        }
+
+        Map<String, List<String>> versions = new HashMap<String, List<String>>();
+        for ( String key : index )
+        {
+            addVersion( versions, key );
+        }
+        for ( String key : descriptors.keySet() )
+        {
+            if ( !index.contains( key ) )
+            {
+                addVersion( versions, key );
+            }
+        }
+
+        for ( Map.Entry<String, List<String>> entry : versions.entrySet() )
+        {
+            List<String> list = entry.getValue();
+            if ( list.size() <= retainVersions )
+            {
+                continue;
+            }
+            Collections.sort( list, new Comparator<String>()
+            {
+                public int compare( String a, String b )
+                {
+                    return parseVersion( b ).compareTo( parseVersion( a ) );
+                }
+            } );
+            for ( String version : list.subList( retainVersions, list.size() ) )
+            {
+                String key = entry.getKey() + "/" + version;
+                if ( !descriptors.containsKey( key ) )
+                {
+                    pruned.add( key );
+                }
+            }
+        }
+    }
+
+    private static void addVersion( Map<String, List<String>> versions, String key )
+    {
+        int slash = key.lastIndexOf( '/' );
+        String artifact = key.substring( 0, slash );
+        List<String> list = versions.get( artifact );
+        if ( list == null )
+        {
+            list = new ArrayList<String>();
+            versions.put( artifact, list );
+        }
+        list.add( key.substring( slash + 1 ) );
+    }
+
+    private static Version parseVersion( String version )
+    {
+        try
+        {
+            return Version.parseVersion( version );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return Version.emptyVersion;
+        }
+    }
+
+    private String getEncoding()
+        throws IOException
+    {
+        XmlStreamReader reader = new XmlStreamReader( existing );
+        try
+        {
+            return reader.getEncoding();
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+    }
+
+    private String setSize( String artifactsTag )
+    {
+        int size = index.size() - pruned.size();
+        for ( String key : descriptors.keySet() )
+        {
+            if ( !index.contains( key ) )
+            {
+                size++;
+            }
+        }
+        Matcher matcher = SIZE.matcher( artifactsTag );
+        return matcher.find() ? matcher.replaceFirst( "$1$2" + size + "$2" ) : artifactsTag;
+    }
+
+    private static String readElement( MarkupReader in, String startTag )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder( startTag );
+        int depth = 1;
+        String markup;
+        while ( depth > 0 && ( markup = in.next() ) != null )
+        {
+            sb.append( markup );
+            if ( isStartTag( markup ) && !isEmptyTag( markup ) )
+            {
+                depth++;
+            }
+            else if ( markup.startsWith( "</" ) )
+            {
+                depth--;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return (classifier, id, version) key of the &lt;artifact&gt; start tag
+     */
+    private static String getKey( String startTag )
+    {
+        Map<String, String> attributes = new HashMap<String, String>();
+        Matcher matcher = ATTRIBUTE.matcher( startTag );
+        while ( matcher.find() )
+        {
+            attributes.put( matcher.group( 1 ), unescape( matcher.group( 3 ) ) );
+        }
+        return getKey( attributes.get( "id" ), attributes.get( "version" ), attributes.get( "classifier" ) );
+    }
+
+    private static String getKey( String id, String version, String classifier )
+    {
+        return classifier + "/" + id + "/" + version;
+    }
+
+    private static String unescape( String value )
+    {
+        value = value.replace( "&lt;", "<" ).replace( "&gt;", ">" );
+        value = value.replace( "&quot;", "\"" ).replace( "&apos;", "'" );
+        return value.replace( "&amp;", "&" );
+    }
+
+    /**
+     * Markup with whitespace between tags removed and other whitespace collapsed, to compare descriptors regardless
+     * of formatting.
+     */
+    private static String normalize( String element )
+    {
+        String normalized = element.replaceAll( ">\\s+<", "><" ).replaceAll( "\\s+", " " );
+        return normalized.replaceAll( "\\s*(/?>)", "$1" ).replace( '\'', '"' );
+    }
+
+    private static boolean isStartTag( String markup )
+    {
+        return markup.startsWith( "<" ) && !markup.startsWith( "</" ) && !markup.startsWith( "<!" )
+            && !markup.startsWith( "<?" );
+    }
+
+    private static boolean isEmptyTag( String markup )
+    {
+        return markup.endsWith( "/>" );
+    }
+
+    private static String getName( String tag )
+    {
+        int start = tag.startsWith( "</" ) ? 2 : 1;
+        int end = start;
+        while ( end < tag.length() && !Character.isWhitespace( tag.charAt( end ) ) && tag.charAt( end ) != '/'
+            && tag.charAt( end ) != '>' )
+        {
+            end++;
+        }
+        return tag.substring( start, end );
+    }
+
+    private static void write( Writer w, String s )
+        throws IOException
+    {
+        if ( w != null )
+        {
+            w.write( s );
+        }
+    }
+
+    private static class Descriptor
+    {
+        final String key;
+
+        final String xml;
+
+        final String normalized;
+
+        Descriptor( String key, String xml )
+        {
+            this.key = key;
+            this.xml = xml;
+            this.normalized = normalize( xml );
+        }
+    }
+
+    /**
+     * Splits XML into text, tags, comments, CDATA sections, processing instructions and declarations. Tags may have
+     * '&gt;' in quoted attribute values. Concatenation of all parts is the input.
+     */
+    private static class MarkupReader
+    {
+        private final PushbackReader in;
+
+        private final StringBuilder sb = new StringBuilder();
+
+        MarkupReader( Reader reader )
+        {
+            this.in = new PushbackReader( new BufferedReader( reader ), 16 );
+        }
+
+        /**
+         * @return next part, or {@code null} at the end of the input
+         */
+        String next()
+            throws IOException
+        {
+            sb.setLength( 0 );
+            int c = in.read();
+            if ( c == -1 )
+            {
+                return null;
+            }
+            if ( c != '<' )
+            {
+                while ( c != -1 && c != '<' )
+                {
+                    sb.append( (char) c );
+                    c = in.read();
+                }
+                if ( c != -1 )
+                {
+                    in.unread( c );
+                }
+                return sb.toString();
+            }
+
+            sb.append( '<' );
+            if ( lookingAt( "!--" ) )
+            {
+                return readUntil( "-->" );
+            }
+            if ( lookingAt( "![CDATA[" ) )
+            {
+                return readUntil( "]]>" );
+            }
+            if ( lookingAt( "?" ) )
+            {
+                return readUntil( "?>" );
+            }
+
+            char quote = 0;
+            while ( ( c = in.read() ) != -1 )
+            {
+                sb.append( (char) c );
+                if ( quote != 0 )
+                {
+                    if ( c == quote )
+                    {
+                        quote = 0;
+                    }
+                }
+                else if ( c == '"' || c == '\'' )
+                {
+                    quote = (char) c;
+                }
+                else if ( c == '>' )
+                {
+                    break;
+                }
+            }
+            return sb.toString();
+        }
+
+        void close()
+            throws IOException
+        {
+            in.close();
+        }
+
+        private boolean lookingAt( String s )
+            throws IOException
+        {
+            char[] buf = new char[s.length()];
+            int n = 0;
+            while ( n < buf.length )
+            {
+                int c = in.read();
+                if ( c == -1 )
+                {
+                    break;
+                }
+                buf[n++] = (char) c;
+                if ( buf[n - 1] != s.charAt( n - 1 ) )
+                {
+                    break;
+                }
+            }
+            if ( n == buf.length && s.equals( new String( buf ) ) )
+            {
+                sb.append( buf );
+                return true;
+            }
+            in.unread( buf, 0, n );
+            return false;
+        }
+
+        private String readUntil( String end )
+            throws IOException
+        {
+            int c;
+            while ( !endsWith( end ) && ( c = in.read() ) != -1 )
+            {
+                sb.append( (char) c );
+            }
+            return sb.toString();
+        }
+
+        private boolean endsWith( String end )
+        {
+            int start = sb.length() - end.length();
+            return start >= 0 && sb.indexOf( end, start ) == start;
+        }
+    }
+}
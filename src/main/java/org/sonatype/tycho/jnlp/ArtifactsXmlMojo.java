@@ -11,9 +11,19 @@
 
 package org.sonatype.tycho.jnlp;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.Deflater;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -25,10 +35,12 @@ import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.ReaderFactory;
 import org.eclipse.tycho.core.ArtifactDependencyVisitor;
 import org.eclipse.tycho.core.PluginDescription;
+import org.sonatype.tycho.jnlp.jfr.JarEvents;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 
 import de.pdark.decentxml.Document;
 import de.pdark.decentxml.Element;
-import de.pdark.decentxml.Text;
 import de.pdark.decentxml.XMLParser;
 
 /**
@@ -37,10 +49,21 @@ import de.pdark.decentxml.XMLParser;
  * 
  * @phase package
  * @goal artifacts-xml
+ * @threadSafe
  */
 public class ArtifactsXmlMojo
     extends AbstractJnlpMojo
 {
+    private static final String ARTIFACTS_JAR = "artifacts.jar";
+
+    /**
+     * Name p2 expects for the entry of artifacts.jar and, with .xz suffix, for the xz compressed file, independent of
+     * the name of artifactsFile.
+     */
+    private static final String ARTIFACTS_XML = "artifacts.xml";
+
+    private static final String P2_INDEX = "p2.index";
+
     /**
      * @parameter default-value="${project.basedir}/src/main/jnlp/artifacts.xml"
      */
@@ -56,28 +79,210 @@ public class ArtifactsXmlMojo
      */
     private String artifactClassifier;
 
+    /**
+     * If {@code true}, also writes artifacts.jar, a jar with single artifacts.xml entry, next to artifacts.xml file.
+     * 
+     * @parameter default-value="false"
+     */
+    private boolean artifactsJar;
+
+    /**
+     * If {@code true}, also writes xz compressed artifacts.xml.xz and corresponding p2.index file next to
+     * artifacts.xml file. See http://wiki.eclipse.org/Equinox/p2/p2_index
+     * 
+     * @parameter default-value="false"
+     */
+    private boolean artifactsXz;
+
+    /**
+     * Existing artifacts.xml to merge the artifacts of this build into, for repositories that keep artifacts of
+     * previous builds. Artifacts of the template and of the product plugins are appended, or replace existing
+     * artifacts with the same id, version and classifier if they differ. Everything else, including mappings and
+     * properties, is copied from the existing file as is, without parsing it into a DOM, see
+     * {@link ArtifactsXmlMerger}. May be the same file as artifactsFile. If the file does not exist, artifacts.xml is
+     * generated from the template.
+     * 
+     * @parameter expression="${jnlp.mergeArtifacts}"
+     */
+    private File mergeArtifacts;
+
+    /**
+     * Number of highest versions of each artifact kept when merging into an existing artifacts.xml, older versions
+     * are removed. Artifacts of this build are always kept. 0 keeps all versions.
+     * 
+     * @parameter expression="${jnlp.retainVersions}" default-value="0"
+     */
+    private int retainVersions;
+
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
-        Document document = loadTemplate( artifactsTemplate );
-        final Element artifactsDom = document.getRootElement().getChild( "artifacts" );
+        boolean merge = mergeArtifacts != null && mergeArtifacts.isFile();
+
+        StageReport report = newStageReport();
+        StageReport.Sample sample =
+            report.start( getReportName( artifactsFile ), ( merge ? mergeArtifacts : artifactsTemplate ).length() );
+
+        Object event = JarEvents.begin( JarEvents.XML, artifactsTemplate );
+        try
+        {
+            Document document = loadTemplate( artifactsTemplate );
+            final Element artifactsDom = document.getRootElement().getChild( "artifacts" );
+
+            getDependencyWalker().walk( new ArtifactDependencyVisitor()
+            {
+                public void visitPlugin( PluginDescription plugin )
+                {
+                    if ( isIncluded( plugin ) )
+                    {
+                        JnlpXml.addArtifact( artifactsDom, plugin, artifactClassifier );
+                    }
+                }
+            } );
+
+            if ( merge )
+            {
+                mergeArtifacts( artifactsDom );
+            }
+            else
+            {
+                writeFile( artifactsFile, new ByteArrayInputStream( toXmlByteArray( document ) ), false );
+            }
+
+            File basedir = artifactsFile.getParentFile();
+
+            if ( artifactsJar )
+            {
+                writeJarFile( new File( basedir, ARTIFACTS_JAR ), artifactsFile );
+            }
+
+            if ( artifactsXz )
+            {
+                writeFile( new File( basedir, ARTIFACTS_XML + ".xz" ), artifactsFile, true );
+                writeP2Index( new File( basedir, P2_INDEX ), ARTIFACTS_XML );
+            }
+
+            sample.stop( artifactsFile.length() );
+        }
+        finally
+        {
+            JarEvents.end( event );
+        }
+
+        writeStageReport( report );
+    }
+
+    private void mergeArtifacts( Element artifactsDom )
+        throws MojoExecutionException
+    {
+        ArtifactsXmlMerger merger = new ArtifactsXmlMerger( mergeArtifacts, retainVersions );
+        try
+        {
+            for ( Element artifactDom : artifactsDom.getChildren( "artifact" ) )
+            {
+                merger.add( artifactDom );
+            }
+            merger.merge( artifactsFile );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not merge artifacts into " + mergeArtifacts.getAbsolutePath(), e );
+        }
 
-        getDependencyWalker().walk( new ArtifactDependencyVisitor()
+        getLog().info( "Merged artifacts into " + mergeArtifacts.getAbsolutePath() + ": " + merger.getAdded()
+                           + " added, " + merger.getReplaced() + " replaced, " + merger.getRemoved() + " removed, "
+                           + merger.getKept() + " kept" );
+    }
+
+    private void writeFile( File file, File contents, boolean xz )
+        throws MojoExecutionException
+    {
+        try
         {
-            public void visitPlugin( PluginDescription plugin )
+            InputStream is = new FileInputStream( contents );
+            try
             {
-                Element artifactDom = new Element( "artifact" );
+                writeFile( file, is, xz );
+            }
+            finally
+            {
+                IOUtil.close( is );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not read file " + contents.getAbsolutePath(), e );
+        }
+    }
 
-                artifactDom.setAttribute( "id", plugin.getKey().getId() );
-                artifactDom.setAttribute( "version", getVersion( plugin ) );
-                artifactDom.setAttribute( "classifier", artifactClassifier );
+    private void writeFile( File file, InputStream contents, boolean xz )
+        throws MojoExecutionException
+    {
+        try
+        {
+            OutputStream os = new BufferedOutputStream( new FileOutputStream( file ) );
+            try
+            {
+                if ( xz )
+                {
+                    // default preset like p2, larger dictionaries cost hundreds of megabytes for no gain on a few MB
+                    os = new XZOutputStream( os, new LZMA2Options() );
+                }
+                IOUtil.copy( contents, os );
+            }
+            finally
+            {
+                IOUtil.close( os );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not write output file " + file.getAbsolutePath(), e );
+        }
+    }
 
-                artifactsDom.addNode( new Text( "\n" ) );
-                artifactsDom.addNode( artifactDom );
+    private void writeJarFile( File file, File contents )
+        throws MojoExecutionException
+    {
+        try
+        {
+            JarOutputStream jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+            InputStream is = new FileInputStream( contents );
+            try
+            {
+                jos.setLevel( Deflater.BEST_COMPRESSION );
+                jos.putNextEntry( new JarEntry( ARTIFACTS_XML ) );
+                IOUtil.copy( is, jos );
+                jos.closeEntry();
+            }
+            finally
+            {
+                IOUtil.close( is );
+                IOUtil.close( jos );
             }
-        } );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not write output file " + file.getAbsolutePath(), e );
+        }
+    }
 
-        writeXmlFile( document, artifactsFile );
+    private void writeP2Index( File file, String artifactsFileName )
+        throws MojoExecutionException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "version=1\n" );
+        sb.append( "artifact.repository.factory.order=" );
+        sb.append( artifactsFileName ).append( ".xz," ).append( artifactsFileName ).append( ",\\!\n" );
+
+        try
+        {
+            writeFile( file, new ByteArrayInputStream( sb.toString().getBytes( "ISO-8859-1" ) ), false );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new MojoExecutionException( "Could not write output file " + file.getAbsolutePath(), e );
+        }
     }
 
     protected Document loadTemplate( File template )
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Results of signing, pack200 normalization and packing shared by all products of the reactor, or of several builds.
+ * A bundle that is included in several products is processed once, the result is hard linked (or copied, if the file
+ * system does not support links) into the other products.
+ * <p>
+ * Pool entries are keyed by bundle file name (id and version), stage and SHA-1 digest of the stage input and stage
+ * configuration. File names also have SHA-1 digest of the pooled file, which is verified before it is used:
+ * 
+ * <pre>
+ * pool/
+ *   org.example.bundle_1.0.0.v20120101/
+ *     Pack200NormalizeMojo-&lt;input sha1&gt;-&lt;sha1&gt;.jar
+ *     JarsignerMojo-&lt;input sha1&gt;-&lt;sha1&gt;.jar
+ *     Pack200Pack-&lt;input sha1&gt;-&lt;sha1&gt;.pack.gz
+ * </pre>
+ * 
+ * Pooled files are never modified, files are only added to the pool by atomic rename. Stages that modify jars in place
+ * must {@link Entry#detach()} the input before processing, since the input may be a hard link to a pooled file.
+ */
+public class BundlePool
+{
+    private static final boolean LINKS_AVAILABLE = isLinkApiAvailable();
+
+    private final File directory;
+
+    private final Log log;
+
+    public BundlePool( File directory, Log log )
+    {
+        this.directory = directory;
+        this.log = log;
+    }
+
+    /**
+     * @param input stage input file
+     * @param output stage output file, may be the same as input for stages that modify jars in place
+     * @param stage stage name
+     * @param variant stage configuration that affects the output
+     */
+    public Entry lookup( File input, File output, String stage, String variant )
+        throws IOException
+    {
+        String name = input.getName();
+        if ( name.endsWith( ".jar" ) )
+        {
+            name = name.substring( 0, name.length() - ".jar".length() );
+        }
+        String extension = output.getName().endsWith( ".pack.gz" ) ? ".pack.gz" : ".jar";
+        String key = digest( variant, input );
+        return new Entry( input, output, new File( directory, name ), stage + "-" + key + "-", extension );
+    }
+
+    public class Entry
+    {
+        private final File input;
+
+        private final File output;
+
+        private final File bundleDirectory;
+
+        private final String prefix;
+
+        private final String extension;
+
+        Entry( File input, File output, File bundleDirectory, String prefix, String extension )
+        {
+            this.input = input;
+            this.output = output;
+            this.bundleDirectory = bundleDirectory;
+            this.prefix = prefix;
+            this.extension = extension;
+        }
+
+        /**
+         * Replaces the output file with the pooled result. Pooled files that do not match the digest in their name,
+         * i.e. were overwritten in place through a hard link by another tool, are removed from the pool.
+         * 
+         * @return {@code true} if the pool has the result of this stage, {@code false} if the stage has to be run
+         */
+        public boolean restore()
+            throws IOException
+        {
+            File pooled = find();
+            if ( pooled == null )
+            {
+                return false;
+            }
+            String name = pooled.getName();
+            String expected = name.substring( prefix.length(), name.length() - extension.length() );
+            if ( !expected.equals( digest( "", pooled ) ) )
+            {
+                log.warn( "Removing modified file " + pooled.getAbsolutePath() + " from bundle pool" );
+                pooled.delete();
+                return false;
+            }
+            File tmp = new File( output.getParentFile(), output.getName() + ".pool" );
+            linkOrCopy( pooled, tmp );
+            JarUtils.replace( tmp, output );
+            log.debug( "Restored " + output.getAbsolutePath() + " from bundle pool" );
+            return true;
+        }
+
+        /**
+         * Replaces the input file, which may be a hard link to a pooled file, with a private copy that can safely be
+         * modified in place. Also removes the output file, which may be a hard link too.
+         */
+        public void detach()
+            throws IOException
+        {
+            File tmp = new File( input.getParentFile(), input.getName() + ".pool" );
+            FileUtils.copyFile( input, tmp );
+            JarUtils.replace( tmp, input );
+            if ( !output.equals( input ) && output.exists() && !output.delete() )
+            {
+                throw new IOException( "Could not delete " + output.getAbsolutePath() );
+            }
+        }
+
+        /**
+         * Adds the output file of the stage to the pool, unless another build added it in the meantime.
+         */
+        public void store()
+            throws IOException
+        {
+            if ( !output.isFile() || find() != null )
+            {
+                return;
+            }
+            bundleDirectory.mkdirs();
+            File pooled = new File( bundleDirectory, prefix + digest( "", output ) + extension );
+            File tmp = File.createTempFile( pooled.getName(), ".tmp", bundleDirectory );
+            if ( !tmp.delete() )
+            {
+                throw new IOException( "Could not delete " + tmp.getAbsolutePath() );
+            }
+            linkOrCopy( output, tmp );
+            if ( !tmp.renameTo( pooled ) )
+            {
+                // lost the race against a concurrent build, which stored the same content
+                tmp.delete();
+            }
+        }
+
+        private File find()
+        {
+            File[] files = bundleDirectory.listFiles();
+            if ( files != null )
+            {
+                for ( File file : files )
+                {
+                    String name = file.getName();
+                    if ( name.startsWith( prefix ) && name.endsWith( extension ) )
+                    {
+                        return file;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void linkOrCopy( File existing, File link )
+        throws IOException
+    {
+        link.delete();
+        if ( !LINKS_AVAILABLE || !HardLinks.link( link, existing ) )
+        {
+            FileUtils.copyFile( existing, link );
+        }
+    }
+
+    private static String digest( String variant, File file )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-1 is not available", e );
+        }
+        digest.update( variant.getBytes( "UTF-8" ) );
+        digest.update( (byte) 0 );
+        InputStream is = new FileInputStream( file );
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while ( ( n = is.read( buf ) ) != -1 )
+            {
+                digest.update( buf, 0, n );
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+        StringBuilder sb = new StringBuilder();
+        for ( byte b : digest.digest() )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    private static boolean isLinkApiAvailable()
+    {
+        try
+        {
+            Class.forName( "java.nio.file.Files", false, BundlePool.class.getClassLoader() );
+            return true;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+        catch ( LinkageError e )
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.plexus.util.IOUtil;
+import org.eclipse.tycho.core.PluginDescription;
+
+/**
+ * Computes the number of bytes a Webstart client downloads on first launch for each target environment, i.e. the
+ * size of all product plugins referenced from &lt;resources/&gt; elements that apply to the environment. Uses size of
+ * .pack.gz or .gz file when it exists, like served to clients that accept pack200-gzip and gzip encoding, so this goal
+ * should run after pack200-pack and gzip. Writes per-bundle breakdown, largest first,
+ * to download_os_arch.csv in the report directory and fails the build if the download of any environment exceeds the
+ * budget.
+ * 
+ * @phase package
+ * @goal download-budget
+ * @threadSafe
+ */
+public class DownloadBudgetMojo
+    extends AbstractJnlpMojo
+{
+    private static final String PLUGINS_DIR = "plugins/";
+
+    private static final String PACK_GZ = ".pack.gz";
+
+    private static final String GZ = ".gz";
+
+    /**
+     * Maximum number of bytes a client of any target environment may download on first launch, 0 means no limit.
+     * 
+     * @parameter expression="${jnlp.downloadBudget}" default-value="0"
+     */
+    private long downloadBudget;
+
+    /**
+     * Same as environmentsMap of jnlp-file, so environments match the generated &lt;resources/&gt; elements.
+     * 
+     * @parameter
+     */
+    private Environment[] environmentsMap;
+
+    private static class Download
+    {
+        final String bundle;
+
+        final File file;
+
+        final long bytes;
+
+        Download( String bundle, File file, long bytes )
+        {
+            this.bundle = bundle;
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    public void execute()
+        throws MojoExecutionException, MojoFailureException
+    {
+        Map<Environment, List<PluginDescription>> resources = getResources( environmentsMap );
+
+        List<PluginDescription> common = resources.get( null );
+        if ( common == null )
+        {
+            common = Collections.emptyList();
+        }
+
+        // jnlp-file generates separate <resources/> element for each environment, all that match are downloaded
+        Map<String, List<PluginDescription>> environments = new LinkedHashMap<String, List<PluginDescription>>();
+        for ( Map.Entry<Environment, List<PluginDescription>> entry : resources.entrySet() )
+        {
+            Environment env = entry.getKey();
+            if ( env == null )
+            {
+                continue;
+            }
+            String name = env.getOs() + "_" + env.getArch();
+            List<PluginDescription> plugins = environments.get( name );
+            if ( plugins == null )
+            {
+                plugins = new ArrayList<PluginDescription>( common );
+                environments.put( name, plugins );
+            }
+            plugins.addAll( entry.getValue() );
+        }
+        if ( environments.isEmpty() )
+        {
+            environments.put( "any", common );
+        }
+
+        List<String> exceeded = new ArrayList<String>();
+        for ( Map.Entry<String, List<PluginDescription>> entry : environments.entrySet() )
+        {
+            String name = entry.getKey();
+            List<Download> downloads = getDownloads( entry.getValue() );
+
+            long total = 0;
+            for ( Download download : downloads )
+            {
+                total += download.bytes;
+            }
+
+            File report = new File( reportDirectory, "download_" + name.replace( ' ', '_' ) + ".csv" );
+            try
+            {
+                writeReport( report, downloads, total );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Could not write report " + report.getAbsolutePath(), e );
+            }
+
+            getLog().info( "First launch download for " + name + ": " + downloads.size() + " files, " + total
+                + " bytes, report " + report.getAbsolutePath() );
+
+            if ( downloadBudget > 0 && total > downloadBudget )
+            {
+                exceeded.add( name + " " + total + " bytes" );
+            }
+        }
+
+        if ( !exceeded.isEmpty() )
+        {
+            throw new MojoFailureException( "First launch download exceeds budget of " + downloadBudget + " bytes: "
+                + exceeded );
+        }
+    }
+
+    private List<Download> getDownloads( List<PluginDescription> plugins )
+    {
+        List<Download> downloads = new ArrayList<Download>();
+        for ( PluginDescription plugin : plugins )
+        {
+            String bundle = plugin.getKey().getId() + "_" + getVersion( plugin );
+            File jar = new File( target, PLUGINS_DIR + bundle + ".jar" );
+            File packed = new File( target, PLUGINS_DIR + bundle + ".jar" + PACK_GZ );
+            File gzipped = new File( target, PLUGINS_DIR + bundle + ".jar" + GZ );
+
+            if ( packed.isFile() )
+            {
+                downloads.add( new Download( bundle, packed, packed.length() ) );
+            }
+            else if ( gzipped.isFile() )
+            {
+                downloads.add( new Download( bundle, gzipped, gzipped.length() ) );
+            }
+            else if ( jar.isFile() )
+            {
+                downloads.add( new Download( bundle, jar, jar.length() ) );
+            }
+            else
+            {
+                getLog().warn( "Bundle " + bundle + " is not a jar in " + target.getAbsolutePath()
+                    + ", can not be downloaded by Webstart client" );
+            }
+
+            // <nativelib> of platform-specific plugins
+            File nativeLib = getNativeLibFile( plugin );
+            File nativeLibGzipped = new File( nativeLib.getParentFile(), nativeLib.getName() + GZ );
+            if ( nativeLibGzipped.isFile() )
+            {
+                downloads.add( new Download( bundle, nativeLibGzipped, nativeLibGzipped.length() ) );
+            }
+            else if ( nativeLib.isFile() )
+            {
+                downloads.add( new Download( bundle, nativeLib, nativeLib.length() ) );
+            }
+        }
+
+        Collections.sort( downloads, new Comparator<Download>()
+        {
+            public int compare( Download o1, Download o2 )
+            {
+                if ( o1.bytes != o2.bytes )
+                {
+                    return o1.bytes > o2.bytes ? -1 : 1;
+                }
+                return o1.bundle.compareTo( o2.bundle );
+            }
+        } );
+
+        return downloads;
+    }
+
+    private void writeReport( File file, List<Download> downloads, long total )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        PrintWriter w = new PrintWriter( new FileWriter( file ) );
+        try
+        {
+            w.println( "bundle,bytes,file" );
+            for ( Download download : downloads )
+            {
+                w.println( download.bundle + "," + download.bytes + "," + download.file.getName() );
+            }
+            w.println( "TOTAL," + total + "," );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+/**
+ * Selects target environments of platform-specific plugins by OSGi os/arch patterns, for example {@code linux/x86_64}
+ * or {@code win32/*}. Platform independent plugins are always included. Plugins that do not specify os (or arch) run
+ * on all of them, they are included if any of their environments is included, and only excluded by patterns with
+ * {@code *} os (or arch), i.e. if all of their environments are excluded.
+ * 
+ * <pre>
+ * &lt;environmentFilter&gt;
+ *   &lt;includes&gt;
+ *     &lt;include&gt;linux/*&lt;/include&gt;
+ *     &lt;include&gt;win32/*&lt;/include&gt;
+ *   &lt;/includes&gt;
+ *   &lt;excludes&gt;
+ *     &lt;exclude&gt;linux/x86&lt;/exclude&gt;
+ *   &lt;/excludes&gt;
+ * &lt;/environmentFilter&gt;
+ * </pre>
+ */
+public class EnvironmentFilter
+{
+    private static final String ANY = "*";
+
+    /**
+     * Included environments, all environments if not specified.
+     */
+    private String[] includes;
+
+    /**
+     * Excluded environments, takes precedence over includes.
+     */
+    private String[] excludes;
+
+    public EnvironmentFilter()
+    {
+    }
+
+    public EnvironmentFilter( String[] includes, String[] excludes )
+    {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param os OSGi os of the plugin, or {@code null}
+     * @param arch OSGi arch of the plugin, or {@code null}
+     */
+    public boolean isIncluded( String os, String arch )
+    {
+        if ( os == null && arch == null )
+        {
+            return true;
+        }
+        if ( includes != null && includes.length > 0 && !matchesAny( includes, os, arch, false ) )
+        {
+            return false;
+        }
+        return excludes == null || !matchesAny( excludes, os, arch, true );
+    }
+
+    /**
+     * @param all if {@code true}, unspecified os or arch only matches {@code *}, otherwise any pattern
+     */
+    private static boolean matchesAny( String[] patterns, String os, String arch, boolean all )
+    {
+        for ( String pattern : patterns )
+        {
+            int idx = pattern.indexOf( '/' );
+            String osPattern = idx >= 0 ? pattern.substring( 0, idx ) : pattern;
+            String archPattern = idx >= 0 ? pattern.substring( idx + 1 ) : ANY;
+            if ( matches( osPattern.trim(), os, all ) && matches( archPattern.trim(), arch, all ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches( String pattern, String value, boolean all )
+    {
+        if ( ANY.equals( pattern ) )
+        {
+            return true;
+        }
+        return value == null ? !all : pattern.equals( value );
+    }
+
+    public String[] getIncludes()
+    {
+        return includes;
+    }
+
+    public void setIncludes( String[] includes )
+    {
+        this.includes = includes;
+    }
+
+    public String[] getExcludes()
+    {
+        return excludes;
+    }
+
+    public void setExcludes( String[] excludes )
+    {
+        this.excludes = excludes;
+    }
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Creates file system hard links using Java 7 NIO API. Must only be referenced through {@link BundlePool}, which checks
+ * that the API is available in the running JVM.
+ */
+class HardLinks
+{
+    static boolean link( File link, File existing )
+    {
+        try
+        {
+            Files.createLink( link.toPath(), existing.toPath() );
+            return true;
+        }
+        catch ( IOException e )
+        {
+            // different file systems, or links not supported
+            return false;
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            return false;
+        }
+        catch ( SecurityException e )
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.plexus.util.IOUtil;
+
+import de.pdark.decentxml.Document;
+import de.pdark.decentxml.Element;
+
+/**
+ * Generates META-INF/INDEX.LIST jar index for non-OSGi launcher jars listed in the JNLP file template. The index is
+ * written to the main jar (the jar with main="true" attribute, or the first listed jar) and lists packages of all
+ * template jars, so Webstart only downloads the jar that contains a requested class. Must run before pack200-normalize
+ * and sign-jars, signed jars are not indexed.
+ *
+ * @see http://docs.oracle.com/javase/6/docs/technotes/guides/jar/jar.html#JAR%20Index
+ * @phase package
+ * @goal index-jars
+ * @threadSafe
+ */
+public class JarIndexMojo
+    extends AbstractJnlpMojo
+{
+    private static final String PATH_INDEXLIST = "META-INF/INDEX.LIST";
+
+    private static final String META_INF = "META-INF/";
+
+    /**
+     * Same as jnlpTemplate of jnlp-file.
+     * 
+     * @parameter default-value="${project.basedir}/src/main/jnlp/install.jnlp"
+     */
+    private File jnlpTemplate;
+
+    public void execute()
+        throws MojoExecutionException, MojoFailureException
+    {
+        Document document = loadJnlpTemplate( jnlpTemplate, null, loadConfigIni() );
+
+        File main = null;
+        List<File> jars = new ArrayList<File>();
+
+        for ( Element resourcesDom : document.getRootElement().getChildren( "resources" ) )
+        {
+            for ( Element jarDom : resourcesDom.getChildren( "jar" ) )
+            {
+                String href = jarDom.getAttributeValue( "href" );
+                File jar = href != null ? new File( target, href ) : null;
+                if ( jar == null || !jar.isFile() )
+                {
+                    getLog().warn( "Jar " + href + " does not exist in " + target.getAbsolutePath() + ", not indexed" );
+                    continue;
+                }
+                jars.add( jar );
+                if ( main == null || "true".equals( jarDom.getAttributeValue( "main" ) ) )
+                {
+                    main = jar;
+                }
+            }
+        }
+
+        if ( main == null )
+        {
+            getLog().info( "JNLP template does not list any jars, nothing to index" );
+            return;
+        }
+
+        try
+        {
+            writeIndex( main, jars );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not write jar index " + main.getAbsolutePath(), e );
+        }
+    }
+
+    private void writeIndex( File main, List<File> jars )
+        throws IOException
+    {
+        StringBuilder index = new StringBuilder();
+        index.append( "JarIndex-Version: 1.0\n\n" );
+
+        // the main jar must come first
+        jars.remove( main );
+        jars.add( 0, main );
+
+        for ( File jar : jars )
+        {
+            JarFile jarFile = new JarFile( jar );
+            try
+            {
+                if ( JarUtils.isSigned( jarFile ) )
+                {
+                    getLog().warn( "Jar " + jar.getAbsolutePath() + " is signed, jar index is not generated" );
+                    return;
+                }
+                index.append( getRelativePath( main.getParentFile(), jar ) ).append( '\n' );
+                for ( String name : getIndexedNames( jarFile ) )
+                {
+                    index.append( name ).append( '\n' );
+                }
+                index.append( '\n' );
+            }
+            finally
+            {
+                jarFile.close();
+            }
+        }
+
+        getLog().info( "Writing jar index to " + main.getAbsolutePath() );
+
+        File indexed = File.createTempFile( main.getName(), ".index", main.getParentFile() );
+        try
+        {
+            JarFile jarFile = new JarFile( main );
+            try
+            {
+                ZipOutputStream zos =
+                    new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( indexed ) ) );
+                try
+                {
+                    boolean written = false;
+                    Enumeration<JarEntry> entries = jarFile.entries();
+                    while ( entries.hasMoreElements() )
+                    {
+                        JarEntry entry = entries.nextElement();
+                        if ( PATH_INDEXLIST.equals( entry.getName() ) )
+                        {
+                            continue;
+                        }
+                        if ( !written && !entry.getName().startsWith( META_INF ) )
+                        {
+                            // keep index with other META-INF entries, after the manifest
+                            writeIndexEntry( index, zos );
+                            written = true;
+                        }
+                        JarUtils.copyEntry( jarFile, entry, zos );
+                    }
+                    if ( !written )
+                    {
+                        writeIndexEntry( index, zos );
+                    }
+                }
+                finally
+                {
+                    IOUtil.close( zos );
+                }
+            }
+            finally
+            {
+                jarFile.close();
+            }
+
+            JarUtils.replace( indexed, main );
+        }
+        finally
+        {
+            indexed.delete();
+        }
+    }
+
+    private void writeIndexEntry( StringBuilder index, ZipOutputStream zos )
+        throws IOException
+    {
+        zos.putNextEntry( new ZipEntry( PATH_INDEXLIST ) );
+        zos.write( index.toString().getBytes( "UTF-8" ) );
+        zos.closeEntry();
+    }
+
+    /**
+     * Same as jar -i, directories that contain files and names of top-level files, META-INF is not indexed.
+     */
+    private Set<String> getIndexedNames( JarFile jarFile )
+    {
+        Set<String> names = new TreeSet<String>();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while ( entries.hasMoreElements() )
+        {
+            JarEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if ( entry.isDirectory() || name.startsWith( META_INF ) )
+            {
+                continue;
+            }
+            int idx = name.lastIndexOf( '/' );
+            names.add( idx > 0 ? name.substring( 0, idx ) : name );
+        }
+        return names;
+    }
+
+    private String getRelativePath( File basedir, File file )
+        throws IOException
+    {
+        String[] base = basedir.getCanonicalPath().split( Pattern.quote( File.separator ) );
+        String[] path = file.getCanonicalPath().split( Pattern.quote( File.separator ) );
+
+        int common = 0;
+        while ( common < base.length && common < path.length - 1 && base[common].equals( path[common] ) )
+        {
+            common++;
+        }
+
+        StringBuilder relative = new StringBuilder();
+        for ( int i = common; i < base.length; i++ )
+        {
+            relative.append( "../" );
+        }
+        for ( int i = common; i < path.length; i++ )
+        {
+            if ( i > common )
+            {
+                relative.append( '/' );
+            }
+            relative.append( path[i] );
+        }
+        return relative.toString();
+    }
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSigner;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Keystore loading and jar signature verification shared by sign-jars and verify-jars.
+ */
+class JarSignatures
+{
+    private JarSignatures()
+    {
+    }
+
+    /**
+     * @return keystore file, relative paths are resolved against the project directory like jarsigner does
+     */
+    static File getKeystoreFile( File basedir, String keystore )
+    {
+        File file = new File( keystore );
+        return file.isAbsolute() ? file : new File( basedir, keystore );
+    }
+
+    static KeyStore loadKeystore( File file, String storetype, String storepass )
+        throws MojoExecutionException
+    {
+        try
+        {
+            String type = StringUtils.isEmpty( storetype ) ? KeyStore.getDefaultType() : storetype;
+            KeyStore ks = KeyStore.getInstance( type );
+            InputStream is = new FileInputStream( file );
+            try
+            {
+                ks.load( is, storepass != null ? storepass.toCharArray() : null );
+            }
+            finally
+            {
+                IOUtil.close( is );
+            }
+            return ks;
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not read keystore " + file.getAbsolutePath(), e );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new MojoExecutionException( "Could not read keystore " + file.getAbsolutePath(), e );
+        }
+    }
+
+    /**
+     * Reads every entry of the jar, which verifies its digest against the signature, and checks that all entries
+     * except signature related files are signed.
+     *
+     * @param expected certificate all entries must be signed with, or {@code null} to accept any signer
+     * @param digests receives SHA-1 digests of the entry contents, or {@code null}
+     * @return problems found, empty if the jar is fully signed
+     */
+    static List<String> verify( File archive, Certificate expected, Map<String, String> digests )
+        throws IOException
+    {
+        List<String> problems = new ArrayList<String>();
+
+        JarFile jarFile = new JarFile( archive, true );
+        try
+        {
+            boolean signed = JarUtils.isSigned( jarFile );
+            if ( !signed )
+            {
+                problems.add( "jar is not signed" );
+            }
+
+            byte[] buf = new byte[8192];
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while ( entries.hasMoreElements() )
+            {
+                JarEntry entry = entries.nextElement();
+                if ( entry.isDirectory() )
+                {
+                    continue;
+                }
+
+                MessageDigest digest = digests != null ? newDigest() : null;
+                InputStream is = jarFile.getInputStream( entry );
+                try
+                {
+                    // reading the entry completely verifies its digest against the signature
+                    int n;
+                    while ( ( n = is.read( buf ) ) != -1 )
+                    {
+                        if ( digest != null )
+                        {
+                            digest.update( buf, 0, n );
+                        }
+                    }
+                }
+                catch ( SecurityException e )
+                {
+                    problems.add( entry.getName() + " " + e.getMessage() );
+                    continue;
+                }
+                finally
+                {
+                    IOUtil.close( is );
+                }
+                if ( digest != null )
+                {
+                    digests.put( entry.getName(), toHex( digest.digest() ) );
+                }
+
+                if ( !signed || isSignatureRelated( entry.getName() ) )
+                {
+                    continue;
+                }
+
+                CodeSigner[] signers = entry.getCodeSigners();
+                if ( signers == null || signers.length == 0 )
+                {
+                    problems.add( entry.getName() + " is not signed" );
+                }
+                else if ( expected != null && !isSignedBy( signers, expected ) )
+                {
+                    problems.add( entry.getName() + " is not signed by the expected certificate" );
+                }
+            }
+        }
+        catch ( SecurityException e )
+        {
+            problems.add( e.getMessage() );
+        }
+        finally
+        {
+            jarFile.close();
+        }
+
+        return problems;
+    }
+
+    static boolean isSignedBy( CodeSigner[] signers, Certificate expected )
+    {
+        for ( CodeSigner signer : signers )
+        {
+            List<? extends Certificate> path = signer.getSignerCertPath().getCertificates();
+            if ( !path.isEmpty() && expected.equals( path.get( 0 ) ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same rules as jarsigner uses to exclude signature related files from signing.
+     */
+    static boolean isSignatureRelated( String name )
+    {
+        String upper = name.toUpperCase();
+        if ( !upper.startsWith( "META-INF/" ) || upper.indexOf( '/', "META-INF/".length() ) >= 0 )
+        {
+            return false;
+        }
+        return upper.equals( JarFile.MANIFEST_NAME ) || upper.endsWith( ".SF" ) || upper.endsWith( ".DSA" )
+            || upper.endsWith( ".RSA" ) || upper.endsWith( ".EC" ) || upper.startsWith( "META-INF/SIG-" );
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+
+public class JarUtils
+{
+    private JarUtils()
+    {
+    }
+
+    public static boolean isSigned( JarFile jarFile )
+    {
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while ( entries.hasMoreElements() )
+        {
+            JarEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if ( name.startsWith( "META-INF/" ) && name.endsWith( ".SF" ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies jar entry contents, timestamp and compression method.
+     */
+    public static void copyEntry( JarFile jarFile, ZipEntry entry, ZipOutputStream zos )
+        throws IOException
+    {
+        ZipEntry target = new ZipEntry( entry.getName() );
+        target.setTime( entry.getTime() );
+        target.setComment( entry.getComment() );
+        target.setExtra( entry.getExtra() );
+        target.setMethod( entry.getMethod() );
+        if ( entry.getMethod() == ZipEntry.STORED )
+        {
+            target.setSize( entry.getSize() );
+            target.setCompressedSize( entry.getSize() );
+            target.setCrc( entry.getCrc() );
+        }
+        zos.putNextEntry( target );
+
+        InputStream is = jarFile.getInputStream( entry );
+        try
+        {
+            IOUtil.copy( is, zos );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+
+        zos.closeEntry();
+    }
+
+    /**
+     * Replaces target file with source file by rename, so the replaced file gets a new inode. Unlike copying over the
+     * target, this never modifies other hard links to the target, for example files in the {@link BundlePool}.
+     */
+    public static void replace( File source, File target )
+        throws IOException
+    {
+        if ( !source.renameTo( target ) )
+        {
+            // rename does not overwrite existing files on all platforms
+            if ( !target.delete() || !source.renameTo( target ) )
+            {
+                throw new IOException( "Could not rename " + source.getAbsolutePath() + " to "
+                    + target.getAbsolutePath() );
+            }
+        }
+        if ( source.exists() )
+        {
+            // source and target were hard links to the same file, rename does nothing
+            source.delete();
+        }
+    }
+}
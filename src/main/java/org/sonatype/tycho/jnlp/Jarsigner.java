@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.Os;
+import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.sonatype.tycho.jnlp.jfr.JarEvents;
+import org.sonatype.tycho.jnlp.worker.WorkerClient;
+
+/**
+ * Signs jar files in place using jarsigner executable of the current JDK. Independent of Maven mojo execution, options
+ * are the same as used by maven-jarsigner-plugin.
+ * 
+ * @see http://java.sun.com/javase/6/docs/technotes/tools/solaris/jarsigner.html
+ */
+public class Jarsigner
+{
+    private final Log log;
+
+    private final String executable;
+
+    private String keystore;
+
+    private String storepass;
+
+    private String keypass;
+
+    private String sigfile;
+
+    private String storetype;
+
+    private String providerName;
+
+    private String providerClass;
+
+    private String providerArg;
+
+    private String alias;
+
+    private String sigalg;
+
+    private String digestalg;
+
+    private String tsa;
+
+    private String tsacert;
+
+    private WorkerClient worker;
+
+    public Jarsigner( Log log )
+    {
+        this.log = log;
+        this.executable = getExecutable( log );
+    }
+
+    public void setKeystore( String keystore )
+    {
+        this.keystore = keystore;
+    }
+
+    public void setStorepass( String storepass )
+    {
+        this.storepass = storepass;
+    }
+
+    public void setKeypass( String keypass )
+    {
+        this.keypass = keypass;
+    }
+
+    public void setSigfile( String sigfile )
+    {
+        this.sigfile = sigfile;
+    }
+
+    public void setStoretype( String storetype )
+    {
+        this.storetype = storetype;
+    }
+
+    public void setProviderName( String providerName )
+    {
+        this.providerName = providerName;
+    }
+
+    public void setProviderClass( String providerClass )
+    {
+        this.providerClass = providerClass;
+    }
+
+    public void setProviderArg( String providerArg )
+    {
+        this.providerArg = providerArg;
+    }
+
+    public void setAlias( String alias )
+    {
+        this.alias = alias;
+    }
+
+    public void setSigalg( String sigalg )
+    {
+        this.sigalg = sigalg;
+    }
+
+    public void setDigestalg( String digestalg )
+    {
+        this.digestalg = digestalg;
+    }
+
+    public void setTsa( String tsa )
+    {
+        this.tsa = tsa;
+    }
+
+    public void setTsacert( String tsacert )
+    {
+        this.tsacert = tsacert;
+    }
+
+    /**
+     * Signs jars in the worker instead of forking jarsigner, if the worker can.
+     */
+    public void setWorker( WorkerClient worker )
+    {
+        this.worker = worker != null && worker.canSign() ? worker : null;
+    }
+
+    /**
+     * Signs the archive, jarsigner is executed in the given working directory.
+     */
+    public void sign( File archive, File workingDirectory )
+        throws IOException
+    {
+        log.info( "Executing jarsigner on " + archive.getAbsolutePath() );
+
+        Commandline commandLine = new Commandline();
+
+        commandLine.setExecutable( this.executable );
+
+        commandLine.setWorkingDirectory( workingDirectory );
+
+        commandLine = getCommandline( archive, commandLine );
+
+        log.debug( "Executing: " + commandLine );
+
+        StreamConsumer out = new StreamConsumer()
+        {
+            public void consumeLine( String line )
+            {
+                log.debug( line );
+            }
+        };
+
+        StreamConsumer err = new StreamConsumer()
+        {
+            public void consumeLine( String line )
+            {
+                log.warn( line );
+            }
+        };
+
+        Object event = JarEvents.begin( JarEvents.SIGN, archive );
+        try
+        {
+            if ( worker != null )
+            {
+                // jarsigner runs in the worker JVM, which reports failures as IOException
+                String output = worker.sign( workingDirectory, commandLine.getArguments() );
+                for ( String line : output.split( "\\r?\\n" ) )
+                {
+                    out.consumeLine( line );
+                }
+                return;
+            }
+
+            int rc = CommandLineUtils.executeCommandLine( commandLine, out, err );
+
+            if ( rc != 0 )
+            {
+                throw new IOException( "Could not sign jar " + archive + " (return code " + rc
+                    + "), command line was " + commandLine );
+            }
+        }
+        catch ( CommandLineException e )
+        {
+            IOException ioe = new IOException( "Could not sign jar " + archive );
+            ioe.initCause( e );
+            throw ioe;
+        }
+        finally
+        {
+            JarEvents.end( event );
+        }
+    }
+
+    /**
+     * @Copy&paste from org.apache.maven.plugins.jarsigner.JarsignerSignMojo
+     */
+    private Commandline getCommandline( final File archive, final Commandline commandLine )
+    {
+        if ( archive == null )
+        {
+            throw new NullPointerException( "archive" );
+        }
+        if ( commandLine == null )
+        {
+            throw new NullPointerException( "commandLine" );
+        }
+
+        if ( !StringUtils.isEmpty( this.keystore ) )
+        {
+            commandLine.createArg().setValue( "-keystore" );
+            commandLine.createArg().setValue( this.keystore );
+        }
+        if ( !StringUtils.isEmpty( this.storepass ) )
+        {
+            commandLine.createArg().setValue( "-storepass" );
+            commandLine.createArg().setValue( this.storepass );
+        }
+        if ( !StringUtils.isEmpty( this.keypass ) )
+        {
+            commandLine.createArg().setValue( "-keypass" );
+            commandLine.createArg().setValue( this.keypass );
+        }
+        if ( !StringUtils.isEmpty( this.storetype ) )
+        {
+            commandLine.createArg().setValue( "-storetype" );
+            commandLine.createArg().setValue( this.storetype );
+        }
+        if ( !StringUtils.isEmpty( this.providerName ) )
+        {
+            commandLine.createArg().setValue( "-providerName" );
+            commandLine.createArg().setValue( this.providerName );
+        }
+        if ( !StringUtils.isEmpty( this.providerClass ) )
+        {
+            commandLine.createArg().setValue( "-providerClass" );
+            commandLine.createArg().setValue( this.providerClass );
+        }
+        if ( !StringUtils.isEmpty( this.providerArg ) )
+        {
+            commandLine.createArg().setValue( "-providerArg" );
+            commandLine.createArg().setValue( this.providerArg );
+        }
+        if ( !StringUtils.isEmpty( this.sigfile ) )
+        {
+            commandLine.createArg().setValue( "-sigfile" );
+            commandLine.createArg().setValue( this.sigfile );
+        }
+        if ( !StringUtils.isEmpty( this.sigalg ) )
+        {
+            commandLine.createArg().setValue( "-sigalg" );
+            commandLine.createArg().setValue( this.sigalg );
+        }
+        if ( !StringUtils.isEmpty( this.digestalg ) )
+        {
+            commandLine.createArg().setValue( "-digestalg" );
+            commandLine.createArg().setValue( this.digestalg );
+        }
+        if ( !StringUtils.isEmpty( this.tsa ) )
+        {
+            commandLine.createArg().setValue( "-tsa" );
+            commandLine.createArg().setValue( this.tsa );
+        }
+        if ( !StringUtils.isEmpty( this.tsacert ) )
+        {
+            commandLine.createArg().setValue( "-tsacert" );
+            commandLine.createArg().setValue( this.tsacert );
+        }
+
+        commandLine.createArg().setFile( archive );
+
+        if ( !StringUtils.isEmpty( this.alias ) )
+        {
+            commandLine.createArg().setValue( this.alias );
+        }
+
+        return commandLine;
+    }
+
+    /**
+     * Locates the executable for the jarsigner tool.
+     * 
+     * @Copy&paste from org.apache.maven.plugins.jarsigner.AbstractJarsignerMojo
+     * @return The executable of the jarsigner tool, never <code>null<code>.
+     */
+    private static String getExecutable( Log log )
+    {
+        String command = "jarsigner" + ( Os.isFamily( Os.FAMILY_WINDOWS ) ? ".exe" : "" );
+
+        String executable =
+            findExecutable( command, System.getProperty( "java.home" ), new String[] { "../bin", "bin", "../sh" } );
+
+        if ( executable == null )
+        {
+            try
+            {
+                Properties env = CommandLineUtils.getSystemEnvVars();
+
+                String[] variables = { "JDK_HOME", "JAVA_HOME" };
+
+                for ( int i = 0; i < variables.length && executable == null; i++ )
+                {
+                    executable =
+                        findExecutable( command, env.getProperty( variables[i] ), new String[] { "bin", "sh" } );
+                }
+            }
+            catch ( IOException e )
+            {
+                if ( log.isDebugEnabled() )
+                {
+                    log.warn( "Failed to retrieve environment variables, cannot search for " + command, e );
+                }
+                else
+                {
+                    log.warn( "Failed to retrieve environment variables, cannot search for " + command );
+                }
+            }
+        }
+
+        if ( executable == null )
+        {
+            executable = command;
+        }
+
+        return executable;
+    }
+
+    /**
+     * Finds the specified command in any of the given sub directories of the specified JDK/JRE home directory.
+     * 
+     * @Copy&paste from org.apache.maven.plugins.jarsigner.AbstractJarsignerMojo
+     * @param command The command to find, must not be <code>null</code>.
+     * @param homeDir The home directory to search in, may be <code>null</code>.
+     * @param subDirs The sub directories of the home directory to search in, must not be <code>null</code>.
+     * @return The (absolute) path to the command if found, <code>null</code> otherwise.
+     */
+    private static String findExecutable( String command, String homeDir, String[] subDirs )
+    {
+        if ( StringUtils.isNotEmpty( homeDir ) )
+        {
+            for ( int i = 0; i < subDirs.length; i++ )
+            {
+                File file = new File( new File( homeDir, subDirs[i] ), command );
+
+                if ( file.isFile() )
+                {
+                    return file.getAbsolutePath();
+                }
+            }
+        }
+
+        return null;
+    }
+}
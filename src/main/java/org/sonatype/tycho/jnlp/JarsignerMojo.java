@@ -13,30 +13,31 @@ package org.sonatype.tycho.jnlp;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
-import java.util.Properties;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
-import org.codehaus.plexus.util.Os;
 import org.codehaus.plexus.util.StringUtils;
-import org.codehaus.plexus.util.cli.CommandLineException;
-import org.codehaus.plexus.util.cli.CommandLineUtils;
-import org.codehaus.plexus.util.cli.Commandline;
-import org.codehaus.plexus.util.cli.StreamConsumer;
 import org.eclipse.tycho.core.ArtifactDependencyVisitor;
 import org.eclipse.tycho.core.FeatureDescription;
 import org.eclipse.tycho.core.PluginDescription;
 
 /**
  * Signs bundle and feature jar files assembled inside target/site folder using jarsigner. This mojo signs all jars,
- * regardless if they were built locally or came from third party artifact repository. This is necessary for Java
- * Webstart, which requires use of the same signature for all jars referenced from JNLP file. This mojo honours most of
+ * regardless if they were built locally or came from third party artifact repository, unless they are already signed
+ * with the same certificate. This is necessary for Java Webstart, which requires use of the same signature for all jars
+ * referenced from JNLP file. This mojo honours most of
  * properties used by maven-jarsigner-plugin (${jarsigner.keystore}, ${jarsigner.storepass} and so on).
  * 
  * @see http://java.sun.com/javase/6/docs/technotes/tools/solaris/jarsigner.html
  * @phase package
  * @goal sign-jars
+ * @threadSafe
  */
 public class JarsignerMojo
     extends AbstractJnlpMojo
@@ -109,6 +110,34 @@ public class JarsignerMojo
      */
     private String alias;
 
+    /**
+     * See <a href="http://java.sun.com/javase/6/docs/technotes/tools/windows/jarsigner.html#Options">options</a>.
+     * 
+     * @parameter expression="${jarsigner.sigalg}"
+     */
+    private String sigalg;
+
+    /**
+     * See <a href="http://java.sun.com/javase/6/docs/technotes/tools/windows/jarsigner.html#Options">options</a>.
+     * 
+     * @parameter expression="${jarsigner.digestalg}"
+     */
+    private String digestalg;
+
+    /**
+     * See <a href="http://java.sun.com/javase/6/docs/technotes/tools/windows/jarsigner.html#Options">options</a>.
+     * 
+     * @parameter expression="${jarsigner.tsa}"
+     */
+    private String tsa;
+
+    /**
+     * See <a href="http://java.sun.com/javase/6/docs/technotes/tools/windows/jarsigner.html#Options">options</a>.
+     * 
+     * @parameter expression="${jarsigner.tsacert}"
+     */
+    private String tsacert;
+
     /**
      * Set to {@code true} to disable the plugin.
      * 
@@ -117,19 +146,55 @@ public class JarsignerMojo
     private boolean skip;
 
     /**
-     * The path to the jarsigner we are going to use.
+     * If {@code true}, jars that are already signed with the certificate of alias, for example by the build of a
+     * third-party p2 repository, are not signed again. They stay identical to the artifacts of the repository, so
+     * pack200-pack can reuse their packed artifacts. Their existing signature is kept as it is, whatever sigalg,
+     * digestalg, tsa or sigfile is configured. Jars signed with other certificates are always signed again.
+     * 
+     * @parameter expression="${jnlp.skipSignedJars}" default-value="false"
+     */
+    private boolean skipSignedJars;
+
+    /**
+     * Signs the jars, created at the start of execution.
+     */
+    private Jarsigner jarsigner;
+
+    /**
+     * Shared bundle pool, or {@code null}.
+     */
+    private BundlePool pool;
+
+    /**
+     * Certificate chain of alias, or {@code null} if the keystore is not a file.
+     */
+    private Certificate[] certificates;
+
+    /**
+     * Bundle pool variant of the signatures, see {@link #getPoolVariant()}.
      */
-    private String executable;
+    private String poolVariant;
 
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
         if ( !this.skip )
         {
-            this.executable = getExecutable();
+            this.jarsigner = newJarsigner();
+            this.pool = getBundlePool();
+            this.certificates = getCertificateChain();
+            if ( pool != null && certificates == null )
+            {
+                getLog().info( "Signed jars are not shared through the bundle pool, keystore " + keystore
+                    + " is not a file" );
+                this.pool = null;
+            }
+            this.poolVariant = pool != null ? getPoolVariant() : null;
 
             final ArrayList<Exception> exceptions = new ArrayList<Exception>();
 
+            final StageReport report = newStageReport();
+
             getDependencyWalker().walk( new ArtifactDependencyVisitor()
             {
                 @Override
@@ -144,7 +209,7 @@ public class JarsignerMojo
                     {
                         try
                         {
-                            signFile( archive );
+                            signFile( archive, report );
                         }
                         catch ( MojoExecutionException e )
                         {
@@ -159,26 +224,36 @@ public class JarsignerMojo
                 @Override
                 public void visitPlugin( PluginDescription plugin )
                 {
+                    if ( !isIncluded( plugin ) )
+                    {
+                        return;
+                    }
+
                     String id = plugin.getKey().getId();
                     String version = getVersion( plugin );
 
                     File archive = new File( target, PLUGINS_DIR + id + "_" + version + ".jar" );
 
-                    if ( archive.isFile() && archive.canWrite() )
+                    for ( File file : new File[] { archive, getNativeLibFile( plugin ) } )
                     {
-                        try
-                        {
-                            signFile( archive );
-                        }
-                        catch ( MojoExecutionException e )
+                        if ( file.isFile() && file.canWrite() )
                         {
-                            getLog().warn( "Could not sign jar", e );
-                            exceptions.add( e );
+                            try
+                            {
+                                signFile( file, report );
+                            }
+                            catch ( MojoExecutionException e )
+                            {
+                                getLog().warn( "Could not sign jar", e );
+                                exceptions.add( e );
+                            }
                         }
                     }
                 }
             } );
 
+            writeStageReport( report );
+
             if ( !exceptions.isEmpty() )
             {
                 throw new MojoExecutionException( "Could not sign some jar files" );
@@ -186,190 +261,155 @@ public class JarsignerMojo
         }
     }
 
-    void signFile( File archive )
+    void signFile( File archive, StageReport report )
         throws MojoExecutionException
     {
-        getLog().info( "Executing jarsigner on " + archive.getAbsolutePath() );
-
-        Commandline commandLine = new Commandline();
-
-        commandLine.setExecutable( this.executable );
-
-        commandLine.setWorkingDirectory( this.project.getBasedir() );
+        StageReport.Sample sample = report.start( getReportName( archive ), archive.length() );
 
-        commandLine = getCommandline( archive, commandLine );
-
-        getLog().debug( "Executing: " + commandLine );
-
-        StreamConsumer out = new StreamConsumer()
+        if ( skipSignedJars && certificates != null && isSignedBy( archive, certificates[0] ) )
         {
-            public void consumeLine( String line )
-            {
-                getLog().debug( line );
-            }
-        };
+            getLog().info( "Jar " + archive.getAbsolutePath() + " is already signed by " + alias );
+            sample.skip();
+            return;
+        }
 
-        StreamConsumer err = new StreamConsumer()
+        if ( pool != null )
         {
-            public void consumeLine( String line )
+            try
             {
-                getLog().warn( line );
+                BundlePool.Entry entry = pool.lookup( archive, archive, getClass().getSimpleName(), poolVariant );
+                if ( !entry.restore() )
+                {
+                    entry.detach();
+                    signFile( archive );
+                    entry.store();
+                }
             }
-        };
-
-        try
-        {
-            int rc = CommandLineUtils.executeCommandLine( commandLine, out, err );
-
-            if ( rc != 0 )
+            catch ( IOException e )
             {
-                throw new MojoExecutionException( "Could not sign jar " + archive + " (return code " + rc
-                    + "), command line was " + commandLine );
+                throw new MojoExecutionException( "Could not sign jar " + archive.getAbsolutePath(), e );
             }
         }
-        catch ( CommandLineException e )
+        else
         {
-            throw new MojoExecutionException( "Could not sign jar " + archive, e );
+            signFile( archive );
         }
+
+        // cpu time of the forked jarsigner process or the worker is not included
+        sample.stop( archive.length() );
     }
 
-    /**
-     * @Copy&paste from org.apache.maven.plugins.jarsigner.JarsignerSignMojo
-     */
-    private Commandline getCommandline( final File archive, final Commandline commandLine )
+    void signFile( File archive )
+        throws MojoExecutionException
     {
-        if ( archive == null )
+        try
         {
-            throw new NullPointerException( "archive" );
+            jarsigner.sign( archive, this.project.getBasedir() );
         }
-        if ( commandLine == null )
+        catch ( IOException e )
         {
-            throw new NullPointerException( "commandLine" );
+            throw new MojoExecutionException( e.getMessage(), e );
         }
+    }
 
-        if ( !StringUtils.isEmpty( this.keystore ) )
-        {
-            commandLine.createArg().setValue( "-keystore" );
-            commandLine.createArg().setValue( this.keystore );
-        }
-        if ( !StringUtils.isEmpty( this.storepass ) )
-        {
-            commandLine.createArg().setValue( "-storepass" );
-            commandLine.createArg().setValue( this.storepass );
-        }
-        if ( !StringUtils.isEmpty( this.keypass ) )
-        {
-            commandLine.createArg().setValue( "-keypass" );
-            commandLine.createArg().setValue( this.keypass );
-        }
-        if ( !StringUtils.isEmpty( this.storetype ) )
+    /**
+     * @return {@code true} if every entry of the jar is signed with the certificate and matches its signature
+     */
+    private static boolean isSignedBy( File archive, Certificate certificate )
+        throws MojoExecutionException
+    {
+        try
         {
-            commandLine.createArg().setValue( "-storetype" );
-            commandLine.createArg().setValue( this.storetype );
+            return JarSignatures.verify( archive, certificate, null ).isEmpty();
         }
-        if ( !StringUtils.isEmpty( this.providerName ) )
+        catch ( IOException e )
         {
-            commandLine.createArg().setValue( "-providerName" );
-            commandLine.createArg().setValue( this.providerName );
+            throw new MojoExecutionException( "Could not read jar " + archive.getAbsolutePath(), e );
         }
-        if ( !StringUtils.isEmpty( this.providerClass ) )
+    }
+
+    /**
+     * Reads the keystore like jarsigner does, relative to the project directory.
+     * 
+     * @return certificate chain of alias, or {@code null} if the keystore is not a file, like PKCS#11 keystores
+     */
+    private Certificate[] getCertificateChain()
+        throws MojoExecutionException
+    {
+        if ( StringUtils.isEmpty( keystore ) )
         {
-            commandLine.createArg().setValue( "-providerClass" );
-            commandLine.createArg().setValue( this.providerClass );
+            return null;
         }
-        if ( !StringUtils.isEmpty( this.providerArg ) )
+        File file = JarSignatures.getKeystoreFile( project.getBasedir(), keystore );
+        if ( !file.isFile() )
         {
-            commandLine.createArg().setValue( "-providerArg" );
-            commandLine.createArg().setValue( this.providerArg );
+            return null;
         }
-        if ( !StringUtils.isEmpty( this.sigfile ) )
+
+        KeyStore ks = JarSignatures.loadKeystore( file, storetype, storepass );
+        try
         {
-            commandLine.createArg().setValue( "-sigfile" );
-            commandLine.createArg().setValue( this.sigfile );
+            Certificate[] chain = ks.getCertificateChain( alias );
+            if ( chain == null || chain.length == 0 )
+            {
+                throw new MojoExecutionException( "Keystore " + keystore + " does not contain key " + alias );
+            }
+            return chain;
         }
-
-        commandLine.createArg().setFile( archive );
-
-        if ( !StringUtils.isEmpty( this.alias ) )
+        catch ( KeyStoreException e )
         {
-            commandLine.createArg().setValue( this.alias );
+            throw new MojoExecutionException( "Could not read keystore " + keystore, e );
         }
-
-        return commandLine;
     }
 
     /**
-     * Locates the executable for the jarsigner tool.
-     * 
-     * @Copy&paste from org.apache.maven.plugins.jarsigner.AbstractJarsignerMojo
-     * @return The executable of the jarsigner tool, never <code>null<code>.
+     * Signatures made with different keys, signature file names or options must not be shared through the bundle
+     * pool. The key is identified by the SHA-256 fingerprint of its certificate chain, since the keystore at the same
+     * path and alias may hold another key in another build.
      */
-    private String getExecutable()
+    private String getPoolVariant()
+        throws MojoExecutionException
     {
-        String command = "jarsigner" + ( Os.isFamily( Os.FAMILY_WINDOWS ) ? ".exe" : "" );
-
-        String executable =
-            findExecutable( command, System.getProperty( "java.home" ), new String[] { "../bin", "bin", "../sh" } );
-
-        if ( executable == null )
+        String fingerprint;
+        try
         {
-            try
+            MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+            for ( Certificate certificate : certificates )
             {
-                Properties env = CommandLineUtils.getSystemEnvVars();
-
-                String[] variables = { "JDK_HOME", "JAVA_HOME" };
-
-                for ( int i = 0; i < variables.length && executable == null; i++ )
-                {
-                    executable =
-                        findExecutable( command, env.getProperty( variables[i] ), new String[] { "bin", "sh" } );
-                }
+                digest.update( certificate.getEncoded() );
             }
-            catch ( IOException e )
+            StringBuilder sb = new StringBuilder();
+            for ( byte b : digest.digest() )
             {
-                if ( getLog().isDebugEnabled() )
-                {
-                    getLog().warn( "Failed to retrieve environment variables, cannot search for " + command, e );
-                }
-                else
-                {
-                    getLog().warn( "Failed to retrieve environment variables, cannot search for " + command );
-                }
+                sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
             }
+            fingerprint = sb.toString();
         }
-
-        if ( executable == null )
+        catch ( GeneralSecurityException e )
         {
-            executable = command;
+            throw new MojoExecutionException( "Could not read certificate " + alias + " of keystore " + keystore, e );
         }
-
-        return executable;
+        return "certificates=" + fingerprint + ",sigfile=" + sigfile + ",sigalg=" + sigalg + ",digestalg=" + digestalg
+            + ",tsa=" + tsa + ",tsacert=" + tsacert;
     }
 
-    /**
-     * Finds the specified command in any of the given sub directories of the specified JDK/JRE home directory.
-     * 
-     * @Copy&paste from org.apache.maven.plugins.jarsigner.AbstractJarsignerMojo
-     * @param command The command to find, must not be <code>null</code>.
-     * @param homeDir The home directory to search in, may be <code>null</code>.
-     * @param subDirs The sub directories of the home directory to search in, must not be <code>null</code>.
-     * @return The (absolute) path to the command if found, <code>null</code> otherwise.
-     */
-    private String findExecutable( String command, String homeDir, String[] subDirs )
+    private Jarsigner newJarsigner()
     {
-        if ( StringUtils.isNotEmpty( homeDir ) )
-        {
-            for ( int i = 0; i < subDirs.length; i++ )
-            {
-                File file = new File( new File( homeDir, subDirs[i] ), command );
-
-                if ( file.isFile() )
-                {
-                    return file.getAbsolutePath();
-                }
-            }
-        }
-
-        return null;
+        Jarsigner jarsigner = new Jarsigner( getLog() );
+        jarsigner.setKeystore( keystore );
+        jarsigner.setStorepass( storepass );
+        jarsigner.setKeypass( keypass );
+        jarsigner.setSigfile( sigfile );
+        jarsigner.setStoretype( storetype );
+        jarsigner.setProviderName( providerName );
+        jarsigner.setProviderClass( providerClass );
+        jarsigner.setProviderArg( providerArg );
+        jarsigner.setAlias( alias );
+        jarsigner.setSigalg( sigalg );
+        jarsigner.setDigestalg( digestalg );
+        jarsigner.setTsa( tsa );
+        jarsigner.setTsacert( tsacert );
+        jarsigner.setWorker( getWorker() );
+        return jarsigner;
     }
 }
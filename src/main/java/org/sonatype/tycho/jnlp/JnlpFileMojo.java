@@ -11,37 +11,23 @@
 
 package org.sonatype.tycho.jnlp;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Reader;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
-import org.codehaus.plexus.interpolation.InterpolatorFilterReader;
-import org.codehaus.plexus.interpolation.PrefixedObjectValueSource;
-import org.codehaus.plexus.interpolation.PrefixedPropertiesValueSource;
-import org.codehaus.plexus.interpolation.PropertiesBasedValueSource;
-import org.codehaus.plexus.interpolation.StringSearchInterpolator;
-import org.codehaus.plexus.util.IOUtil;
-import org.codehaus.plexus.util.ReaderFactory;
 import org.eclipse.tycho.core.ArtifactDependencyVisitor;
 import org.eclipse.tycho.core.PluginDescription;
-import org.eclipse.tycho.model.PluginRef;
+import org.eclipse.tycho.model.BundleConfiguration;
 import org.eclipse.tycho.model.ProductConfiguration;
-import org.eclipse.tycho.core.utils.PlatformPropertiesUtils;
+import org.sonatype.tycho.jnlp.jfr.JarEvents;
 
 import de.pdark.decentxml.Document;
 import de.pdark.decentxml.Element;
-import de.pdark.decentxml.Text;
-import de.pdark.decentxml.XMLParser;
 
 /**
  * Generates JNLP File. http://java.sun.com/j2se/1.5.0/docs/guide/javaws/developersguide/syntax.html
@@ -50,44 +36,12 @@ import de.pdark.decentxml.XMLParser;
  * 
  * @phase package
  * @goal jnlp-file
+ * @threadSafe
  */
 public class JnlpFileMojo
     extends AbstractJnlpMojo
 {
-    private static final String CONFIGINI_PROPERTY_PREFIX = "configini";
-
-    private static final String PRODUCT_PROPERTY_PREFIX = "product";
-
-    /**
-     * Maps OSGi environment key to Java
-     */
-    private static final List<Environment> ENVIRONMENTS_MAP = new ArrayList<Environment>();
-
-    private static final String NO_ENVIRONMENT = "";
-
-    static
-    {
-        // http://lopica.sourceforge.net/os.html
-        ENVIRONMENTS_MAP.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_LINUX,
-                                                          PlatformPropertiesUtils.ARCH_X86_64 ), //
-                                               "Linux", "amd64" ) );
-
-        ENVIRONMENTS_MAP.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_LINUX,
-                                                          PlatformPropertiesUtils.ARCH_X86 ), //
-                                               "Linux", "i386" ) );
-
-        ENVIRONMENTS_MAP.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_WIN32,
-                                                          PlatformPropertiesUtils.ARCH_X86 ), //
-                                               "Windows", "x86" ) );
-
-        ENVIRONMENTS_MAP.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_WIN32,
-                                                          PlatformPropertiesUtils.ARCH_X86_64 ), //
-                                               "Windows", "amd64" ) );
-
-        ENVIRONMENTS_MAP.add( new Environment( getEnvKey( PlatformPropertiesUtils.OS_MACOSX,
-                                                          PlatformPropertiesUtils.ARCH_X86_64 ), //
-                                               "Mac", "x86_64" ) );
-    }
+    private static final String OSGI_BUNDLES = "osgi.bundles";
 
     /**
      * @parameter default-value="${project.basedir}/src/main/jnlp/install.jnlp"
@@ -122,187 +76,199 @@ public class JnlpFileMojo
      */
     private String hrefPrefix;
 
+    /**
+     * If {@code true}, ${configini.osgi.bundles} is replaced by a compact bundle start specification, which only lists
+     * plugins of the jnlp file that have a start level or are started, as &lt;id&gt;@&lt;level&gt;:start without
+     * version or location. Start levels come from &lt;configurations&gt; of the product and, for other plugins, from
+     * config.ini. The Equinox launcher installs the remaining plugins of the jnlp file with default start level if the
+     * template sets eclipse.webstart.automaticInstallation to true.
+     * 
+     * @parameter expression="${jnlp.compactOsgiBundles}" default-value="false"
+     */
+    private boolean compactOsgiBundles;
+
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
-        Document document = loadTemplate( jnlpTemplate );
+        StageReport report = newStageReport();
+        StageReport.Sample sample = report.start( getReportName( jnlpFile ), jnlpTemplate.length() );
 
-        addResources( document.getRootElement() );
-
-        writeXmlFile( document, jnlpFile );
-    }
-
-    protected Document loadTemplate( File template )
-        throws MojoExecutionException
-    {
+        Object event = JarEvents.begin( JarEvents.XML, jnlpTemplate );
         try
         {
-            StringSearchInterpolator interpolator = new StringSearchInterpolator();
-            interpolator.addValueSource( new PrefixedObjectValueSource( "project", project ) );
+            Document document = loadTemplate( jnlpTemplate );
 
-            File configIniFile = new File( target, "configuration/config.ini" );
-            if ( configIniFile.canRead() )
-            {
-                final Properties configIni = new Properties();
-                InputStream is = new BufferedInputStream( new FileInputStream( configIniFile ) );
-                try
-                {
-                    configIni.load( is );
-                }
-                finally
-                {
-                    IOUtil.close( is );
-                }
+            addResources( document.getRootElement() );
 
-                interpolator.addValueSource( new PrefixedPropertiesValueSource( CONFIGINI_PROPERTY_PREFIX, configIni ) );
-            }
-
-            if ( productConfigurationFile.canRead() )
-            {
-                ProductConfiguration product = ProductConfiguration.read( productConfigurationFile );
+            writeXmlFile( document, jnlpFile );
+        }
+        finally
+        {
+            JarEvents.end( event );
+        }
 
-                interpolator.addValueSource( new PrefixedObjectValueSource( PRODUCT_PROPERTY_PREFIX, product ) );
-            }
+        sample.stop( jnlpFile.length() );
+        writeStageReport( report );
+    }
 
-            interpolator.addValueSource( new PropertiesBasedValueSource( project.getProperties() ) );
+    protected Document loadTemplate( File template )
+        throws MojoExecutionException
+    {
+        Properties configIni = loadConfigIni();
 
-            Reader reader = ReaderFactory.newXmlReader( template );
-            reader = new InterpolatorFilterReader( reader, interpolator );
+        ProductConfiguration product = null;
+        if ( productConfigurationFile.canRead() )
+        {
             try
             {
-                return XMLParser.parse( IOUtil.toString( reader ) );
+                product = ProductConfiguration.read( productConfigurationFile );
             }
-            finally
+            catch ( IOException e )
             {
-                IOUtil.close( reader );
+                throw new MojoExecutionException( "Could not read product configuration "
+                    + productConfigurationFile.getAbsolutePath(), e );
             }
         }
-        catch ( IOException e )
-        {
-            throw new MojoExecutionException( "Could not read jnlp file template " + template.getAbsolutePath(), e );
-        }
-    }
 
-    private static String getEnvKey( String os, String arch )
-    {
-        if ( os == null && arch == null )
-        {
-            return NO_ENVIRONMENT;
-        }
-        StringBuilder key = new StringBuilder();
-        if ( os != null )
+        if ( compactOsgiBundles )
         {
-            key.append( os );
-        }
-        key.append( '/' );
-        if ( arch != null )
-        {
-            key.append( arch );
+            String osgiBundles = getCompactOsgiBundles( product, configIni.getProperty( OSGI_BUNDLES ) );
+            configIni.setProperty( OSGI_BUNDLES, osgiBundles );
         }
 
-        return key.toString();
+        return loadJnlpTemplate( template, product, configIni );
     }
 
-    protected void addResources( Element jnlpDom )
+    /**
+     * @return osgi.bundles entries of plugins with start level or auto-start, in dependency walk order
+     */
+    private String getCompactOsgiBundles( ProductConfiguration product, String osgiBundles )
     {
-        final Map<String, List<PluginDescription>> plugins = new LinkedHashMap<String, List<PluginDescription>>();
-
-        getDependencyWalker().walk( new ArtifactDependencyVisitor()
+        final Map<String, String> starts = new HashMap<String, String>();
+        if ( osgiBundles != null )
         {
-            public void visitPlugin( PluginDescription plugin )
+            for ( String entry : osgiBundles.split( "," ) )
             {
-                PluginRef ref = plugin.getPluginRef();
-
-                String key = getEnvKey( ref.getOs(), ref.getArch() );
-
-                List<PluginDescription> list = plugins.get( key );
-                if ( list == null )
+                int at = entry.indexOf( '@' );
+                if ( at > 0 && at < entry.length() - 1 )
                 {
-                    list = new ArrayList<PluginDescription>();
-                    plugins.put( key, list );
+                    starts.put( getBundleId( entry.substring( 0, at ).trim() ), entry.substring( at + 1 ).trim() );
                 }
-                list.add( plugin );
             }
-        } );
-
-        for ( Map.Entry<String, List<PluginDescription>> entry : plugins.entrySet() )
+        }
+        if ( product != null )
         {
-            if ( NO_ENVIRONMENT.equals( entry.getKey() ) )
-            {
-                addResources( jnlpDom, entry.getValue(), null, null );
-            }
-            else
+            // product configurations take precedence, including those that reset to defaults
+            for ( BundleConfiguration configuration : product.getPluginConfiguration().values() )
             {
-                for ( Environment env : getEnvironments( entry.getKey() ) )
+                String start = getStart( configuration.getStartLevel(), configuration.isAutoStart() );
+                if ( start != null )
                 {
-                    addResources( jnlpDom, entry.getValue(), env.getOs(), env.getArch() );
+                    starts.put( configuration.getId(), start );
+                }
+                else
+                {
+                    starts.remove( configuration.getId() );
                 }
             }
         }
-    }
 
-    private List<Environment> getEnvironments( String key )
-    {
-        ArrayList<Environment> envs = new ArrayList<Environment>();
-
-        for ( Environment env : ENVIRONMENTS_MAP )
+        final StringBuilder spec = new StringBuilder();
+        final int[] plugins = new int[2];
+        getDependencyWalker().walk( new ArtifactDependencyVisitor()
         {
-            if ( key.equals( env.getKey() ) )
+            public void visitPlugin( PluginDescription plugin )
             {
-                envs.add( env );
-            }
-        }
+                if ( !isIncluded( plugin ) )
+                {
+                    return;
+                }
+                plugins[0]++;
 
-        if ( environmentsMap != null )
-        {
-            for ( Environment env : environmentsMap )
-            {
-                if ( key.equals( env.getKey() ) )
+                String start = starts.remove( plugin.getKey().getId() );
+                if ( start != null )
                 {
-                    envs.add( env );
+                    if ( spec.length() > 0 )
+                    {
+                        spec.append( ',' );
+                    }
+                    spec.append( plugin.getKey().getId() ).append( '@' ).append( start );
+                    plugins[1]++;
                 }
             }
-        }
+        } );
 
-        if ( envs.isEmpty() )
-        {
-            getLog().warn( "Unknown or unsupported target environment " + key );
-        }
+        getLog().info( "Compact " + OSGI_BUNDLES + " lists " + plugins[1] + " of " + plugins[0] + " plugins, "
+                           + spec.length() + " instead of " + ( osgiBundles != null ? osgiBundles.length() : 0 )
+                           + " characters" );
 
-        return envs;
+        return spec.toString();
     }
 
-    protected void addResources( Element jnlpDom, List<PluginDescription> plugins, String os, String arch )
+    /**
+     * @return start data of an osgi.bundles entry, or {@code null} for default start level without auto-start
+     */
+    private static String getStart( int startLevel, boolean autoStart )
     {
-        jnlpDom.addNode( new Text( "\n" ) );
-        
-        Element resourcesDom = new Element( "resources" );
-        jnlpDom.addNode( resourcesDom );
+        if ( startLevel > 0 )
+        {
+            return autoStart ? startLevel + ":start" : String.valueOf( startLevel );
+        }
+        return autoStart ? "start" : null;
+    }
 
-        if ( os != null )
+    /**
+     * Bundle id of an osgi.bundles location, which is either the bundle id or a (reference:)file: URL of a jar or
+     * directory named &lt;id&gt;_&lt;version&gt;.
+     */
+    private static String getBundleId( String location )
+    {
+        String name = location.substring( Math.max( location.lastIndexOf( '/' ), location.lastIndexOf( ':' ) ) + 1 );
+        if ( name.endsWith( ".jar" ) )
         {
-            resourcesDom.setAttribute( "os", os );
+            name = name.substring( 0, name.length() - ".jar".length() );
         }
-        if ( arch != null )
+        int underscore = name.lastIndexOf( '_' );
+        if ( underscore > 0 && underscore < name.length() - 1 && Character.isDigit( name.charAt( underscore + 1 ) ) )
         {
-            resourcesDom.setAttribute( "arch", arch );
+            name = name.substring( 0, underscore );
         }
+        return name;
+    }
 
-        for ( PluginDescription plugin : plugins )
+    protected void addResources( Element jnlpDom )
+    {
+        for ( Map.Entry<Environment, List<PluginDescription>> entry : getResources( environmentsMap ).entrySet() )
         {
-            resourcesDom.addNode( new Text( "\n" ) );
-            
-            String bundleId = plugin.getKey().getId();
-            String version = getVersion( plugin );
-
-            Element jarDom = new Element( "jar" );
-            resourcesDom.addNode( jarDom );
+            Environment env = entry.getKey();
+            if ( env == null )
+            {
+                addResources( jnlpDom, entry.getValue(), null, null );
+            }
+            else
+            {
+                addResources( jnlpDom, entry.getValue(), env.getOs(), env.getArch() );
+            }
+        }
+    }
 
-            StringBuilder href = new StringBuilder();
-            href.append( hrefPrefix );
-            href.append( bundleId ).append( '_' ).append( version ).append( ".jar" );
+    /**
+     * Natives split from platform-specific plugins are only listed for the plugin's environment.
+     */
+    protected void addResources( Element jnlpDom, List<PluginDescription> plugins, String os, String arch )
+    {
+        Element resourcesDom = JnlpXml.addResources( jnlpDom, hrefPrefix, plugins, os, arch );
 
-            jarDom.setAttribute( "href", href.toString() );
+        if ( os != null || arch != null )
+        {
+            for ( PluginDescription plugin : plugins )
+            {
+                File nativeLib = getNativeLibFile( plugin );
+                if ( nativeLib.isFile() )
+                {
+                    JnlpXml.addNativeLib( resourcesDom, hrefPrefix + nativeLib.getName() );
+                }
+            }
         }
     }
 }
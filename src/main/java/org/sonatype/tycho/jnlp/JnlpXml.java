@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.eclipse.tycho.ArtifactDescriptor;
+import org.eclipse.tycho.ReactorProject;
+import org.eclipse.tycho.core.PluginDescription;
+
+import de.pdark.decentxml.Document;
+import de.pdark.decentxml.Element;
+import de.pdark.decentxml.Text;
+import de.pdark.decentxml.XMLWriter;
+
+/**
+ * JNLP and artifacts.xml elements generated for bundles, independent of Maven mojo execution.
+ */
+public final class JnlpXml
+{
+    private JnlpXml()
+    {
+    }
+
+    public static String getVersion( ArtifactDescriptor artifact )
+    {
+        String version = artifact.getKey().getVersion();
+        ReactorProject project = artifact.getMavenProject();
+        if ( project != null )
+        {
+            version = project.getExpandedVersion();
+        }
+        return version;
+    }
+
+    /**
+     * Adds &lt;resources&gt; element with &lt;jar&gt; element for each plugin. os and arch attributes are optional.
+     * 
+     * @return the added &lt;resources&gt; element
+     */
+    public static Element addResources( Element jnlpDom, String hrefPrefix, List<PluginDescription> plugins, String os,
+                                     String arch )
+    {
+        jnlpDom.addNode( new Text( "\n" ) );
+        
+        Element resourcesDom = new Element( "resources" );
+        jnlpDom.addNode( resourcesDom );
+
+        if ( os != null )
+        {
+            resourcesDom.setAttribute( "os", os );
+        }
+        if ( arch != null )
+        {
+            resourcesDom.setAttribute( "arch", arch );
+        }
+
+        for ( PluginDescription plugin : plugins )
+        {
+            resourcesDom.addNode( new Text( "\n" ) );
+            
+            String bundleId = plugin.getKey().getId();
+            String version = getVersion( plugin );
+
+            Element jarDom = new Element( "jar" );
+            resourcesDom.addNode( jarDom );
+
+            StringBuilder href = new StringBuilder();
+            href.append( hrefPrefix );
+            href.append( bundleId ).append( '_' ).append( version ).append( ".jar" );
+
+            jarDom.setAttribute( "href", href.toString() );
+        }
+
+        return resourcesDom;
+    }
+
+    /**
+     * Adds &lt;nativelib&gt; element to &lt;resources&gt; element.
+     */
+    public static void addNativeLib( Element resourcesDom, String href )
+    {
+        resourcesDom.addNode( new Text( "\n" ) );
+
+        Element nativeLibDom = new Element( "nativelib" );
+        nativeLibDom.setAttribute( "href", href );
+        resourcesDom.addNode( nativeLibDom );
+    }
+
+    /**
+     * Adds &lt;artifact&gt; element for the plugin to artifacts.xml &lt;artifacts&gt; element.
+     */
+    public static void addArtifact( Element artifactsDom, PluginDescription plugin, String classifier )
+    {
+        Element artifactDom = new Element( "artifact" );
+
+        artifactDom.setAttribute( "id", plugin.getKey().getId() );
+        artifactDom.setAttribute( "version", getVersion( plugin ) );
+        artifactDom.setAttribute( "classifier", classifier );
+
+        artifactsDom.addNode( new Text( "\n" ) );
+        artifactsDom.addNode( artifactDom );
+    }
+
+    public static void write( Document document, OutputStream os )
+        throws IOException
+    {
+        String enc = document.getEncoding() != null ? document.getEncoding() : "UTF-8";
+        Writer w = new OutputStreamWriter( os, enc );
+        XMLWriter xw = new XMLWriter( w );
+        try
+        {
+            document.toXML( xw );
+        }
+        finally
+        {
+            xw.flush();
+        }
+    }
+}
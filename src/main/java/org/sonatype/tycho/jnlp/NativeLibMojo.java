@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.IOUtil;
+import org.eclipse.tycho.core.ArtifactDependencyVisitor;
+import org.eclipse.tycho.core.PluginDescription;
+import org.eclipse.tycho.model.PluginRef;
+
+/**
+ * Moves native libraries (.so, .dll, .jnilib, .dylib) of platform-specific plugins, i.e. fragments with os or arch,
+ * to separate plugins/&lt;id&gt;_&lt;version&gt;.natives.jar, which jnlp-file lists as &lt;nativelib&gt; in the
+ * &lt;resources&gt; element of the plugin's environment and sign-jars signs. Webstart clients download and extract
+ * only the natives of their own platform, and the Java part of the plugin can be pack200 compressed. Webstart expects
+ * native libraries at the root of nativelib jars, directories are dropped from entry names, so plugins that have the
+ * same library name in more than one directory, typically one directory per arch, are not split. Must run before
+ * jnlp-file, sign-jars and pack200-normalize.
+ * 
+ * @goal split-natives
+ * @threadSafe
+ * @phase package
+ */
+public class NativeLibMojo
+    extends AbstractJnlpMojo
+{
+    private static final String[] NATIVE_EXTENSIONS = { ".so", ".dll", ".jnilib", ".dylib" };
+
+    private static final String BUNDLE_NATIVE_CODE = "Bundle-NativeCode";
+
+    /**
+     * If {@code true}, native libraries are moved out of the plugin jars. Plugins that declare Bundle-NativeCode are not
+     * split, the framework loads their natives from the bundle rather than from the Webstart library path. Set to
+     * {@code false} for other plugins that load their natives from the bundle. Signed plugin jars are never split
+     * either, since they cannot be modified.
+     * 
+     * @parameter default-value="true"
+     */
+    private boolean removeNatives;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        final List<PluginDescription> plugins = new ArrayList<PluginDescription>();
+        getDependencyWalker().walk( new ArtifactDependencyVisitor()
+        {
+            @Override
+            public void visitPlugin( PluginDescription plugin )
+            {
+                PluginRef ref = plugin.getPluginRef();
+                if ( ref != null && ( ref.getOs() != null || ref.getArch() != null ) && isIncluded( plugin ) )
+                {
+                    plugins.add( plugin );
+                }
+            }
+        } );
+
+        StageReport report = newStageReport();
+
+        ArrayList<Exception> exceptions = new ArrayList<Exception>();
+        int split = 0;
+        for ( PluginDescription plugin : plugins )
+        {
+            File jar = new File( target, "plugins/" + plugin.getKey().getId() + "_" + getVersion( plugin ) + ".jar" );
+            if ( !jar.isFile() )
+            {
+                continue;
+            }
+            File nativeLib = getNativeLibFile( plugin );
+            StageReport.Sample sample = report.start( getReportName( jar ), jar.length() );
+            try
+            {
+                if ( split( jar, nativeLib ) )
+                {
+                    split++;
+                    sample.stop( nativeLib.length() );
+                }
+                else
+                {
+                    sample.skip();
+                }
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Could not split native libraries of jar " + jar.getAbsolutePath(), e );
+                exceptions.add( e );
+            }
+        }
+
+        getLog().info( "Split native libraries of " + split + " of " + plugins.size() + " platform-specific plugins" );
+
+        writeStageReport( report );
+
+        if ( !exceptions.isEmpty() )
+        {
+            throw new MojoExecutionException( "Could not split native libraries of some jar files" );
+        }
+    }
+
+    /**
+     * @return {@code true} if native libraries of the jar were split
+     */
+    private boolean split( File jar, File nativeLib )
+        throws IOException
+    {
+        JarFile jarFile = new JarFile( jar );
+        File stripped = null;
+        try
+        {
+            List<JarEntry> natives = new ArrayList<JarEntry>();
+            Set<String> names = new HashSet<String>();
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while ( entries.hasMoreElements() )
+            {
+                JarEntry entry = entries.nextElement();
+                if ( isNativeLibrary( entry ) )
+                {
+                    String name = getLibraryName( entry );
+                    if ( !names.add( name ) )
+                    {
+                        getLog().info( "Not splitting native libraries of jar " + jar.getAbsolutePath()
+                                           + ", native library " + name + " is in more than one directory" );
+                        return false;
+                    }
+                    natives.add( entry );
+                }
+            }
+            if ( natives.isEmpty() )
+            {
+                return false;
+            }
+            if ( !removeNatives || JarUtils.isSigned( jarFile ) || hasNativeCode( jarFile ) )
+            {
+                // natives stay in the plugin, a nativelib jar would make clients download them twice
+                getLog().info( "Not splitting native libraries of jar " + jar.getAbsolutePath()
+                                   + ", they cannot be removed from the jar" );
+                return false;
+            }
+
+            getLog().info( "Splitting " + natives.size() + " native libraries of jar " + jar.getAbsolutePath() );
+
+            writeNativeLib( jarFile, natives, nativeLib );
+
+            stripped = File.createTempFile( jar.getName(), ".natives", jar.getParentFile() );
+            ZipOutputStream zos = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( stripped ) ) );
+            try
+            {
+                entries = jarFile.entries();
+                while ( entries.hasMoreElements() )
+                {
+                    JarEntry entry = entries.nextElement();
+                    if ( !isNativeLibrary( entry ) )
+                    {
+                        JarUtils.copyEntry( jarFile, entry, zos );
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( zos );
+            }
+        }
+        finally
+        {
+            try
+            {
+                jarFile.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+
+        if ( stripped != null )
+        {
+            JarUtils.replace( stripped, jar );
+        }
+        return true;
+    }
+
+    /**
+     * Writes the native libraries to the root of the nativelib jar, with their original modification times, so the
+     * same plugin always gives the same nativelib jar.
+     */
+    private void writeNativeLib( JarFile jarFile, List<JarEntry> natives, File nativeLib )
+        throws IOException
+    {
+        File tmp = File.createTempFile( nativeLib.getName(), ".tmp", nativeLib.getParentFile() );
+        try
+        {
+            ZipOutputStream zos = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+            try
+            {
+                for ( JarEntry entry : natives )
+                {
+                    ZipEntry target = new ZipEntry( getLibraryName( entry ) );
+                    target.setTime( entry.getTime() );
+                    zos.putNextEntry( target );
+                    InputStream is = jarFile.getInputStream( entry );
+                    try
+                    {
+                        IOUtil.copy( is, zos );
+                    }
+                    finally
+                    {
+                        IOUtil.close( is );
+                    }
+                    zos.closeEntry();
+                }
+            }
+            finally
+            {
+                IOUtil.close( zos );
+            }
+            JarUtils.replace( tmp, nativeLib );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    private static String getLibraryName( JarEntry entry )
+    {
+        return entry.getName().substring( entry.getName().lastIndexOf( '/' ) + 1 );
+    }
+
+    private static boolean hasNativeCode( JarFile jarFile )
+        throws IOException
+    {
+        Manifest manifest = jarFile.getManifest();
+        return manifest != null && manifest.getMainAttributes().getValue( BUNDLE_NATIVE_CODE ) != null;
+    }
+
+    private static boolean isNativeLibrary( JarEntry entry )
+    {
+        if ( entry.isDirectory() )
+        {
+            return false;
+        }
+        String name = entry.getName().toLowerCase();
+        for ( String extension : NATIVE_EXTENSIONS )
+        {
+            if ( name.endsWith( extension ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
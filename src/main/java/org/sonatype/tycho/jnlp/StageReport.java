@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Wall and CPU time, bytes read and written for each file processed by a build stage (goal). Written as CSV file
+ * stage.csv, one line per file plus TOTAL line, and compared to the report of a previous build. Files are named by
+ * their path relative to the product directory. Files the stage left unchanged have no bytesOut and ratio
+ * {@code skipped}, they count as unchanged in the TOTAL line. TOTAL line also has peak heap usage of the JVM during
+ * the stage, sampled periodically, which in parallel builds includes projects built at the same time. Peak usage of
+ * the memory pools is not used, resetting it would affect concurrent stages.
+ */
+public class StageReport
+{
+    public static final String TOTAL = "TOTAL";
+
+    public static final String SKIPPED = "skipped";
+
+    private static final String HEADER = "name,wallMillis,cpuMillis,bytesIn,bytesOut,ratio,peakHeapBytes";
+
+    /**
+     * Changes of less than this are considered noise and are never reported as regressions.
+     */
+    private static final long MIN_REGRESSION_MILLIS = 100;
+
+    private static final long HEAP_SAMPLE_MILLIS = 100;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private static final Timer HEAP_SAMPLER = new Timer( "jnlp-stage-report", true );
+
+    private final String stage;
+
+    private final long start = System.nanoTime();
+
+    private final Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+
+    private final HeapSampler heapSampler = new HeapSampler( this );
+
+    private volatile long peakHeap;
+
+    public StageReport( String stage )
+    {
+        this.stage = stage;
+        sampleHeap();
+        HEAP_SAMPLER.schedule( heapSampler, HEAP_SAMPLE_MILLIS, HEAP_SAMPLE_MILLIS );
+    }
+
+    public String getStage()
+    {
+        return stage;
+    }
+
+    /**
+     * Starts measuring processing of the named file in the current thread.
+     */
+    public Sample start( String name, long bytesIn )
+    {
+        return new Sample( name, bytesIn );
+    }
+
+    public class Sample
+    {
+        private final String name;
+
+        private final long bytesIn;
+
+        private final long startWall;
+
+        private final long startCpu;
+
+        long wallNanos;
+
+        long cpuNanos;
+
+        long bytesOut;
+
+        boolean skipped;
+
+        Sample( String name, long bytesIn )
+        {
+            this.name = name;
+            this.bytesIn = bytesIn;
+            this.startWall = System.nanoTime();
+            this.startCpu = getCpuTime();
+        }
+
+        public void stop( long bytesOut )
+        {
+            this.wallNanos = System.nanoTime() - startWall;
+            this.cpuNanos = getCpuTime() - startCpu;
+            this.bytesOut = bytesOut;
+            synchronized ( samples )
+            {
+                samples.put( name, this );
+            }
+        }
+
+        /**
+         * Stops measuring a file that the stage left unchanged.
+         */
+        public void skip()
+        {
+            this.skipped = true;
+            stop( bytesIn );
+        }
+
+        String toCsv()
+        {
+            if ( skipped )
+            {
+                return name + "," + ( wallNanos / 1000000 ) + "," + ( cpuNanos / 1000000 ) + "," + bytesIn + ",,"
+                    + SKIPPED;
+            }
+            return StageReport.toCsv( name, wallNanos, cpuNanos, bytesIn, bytesOut );
+        }
+    }
+
+    public void write( File directory, File previousDirectory, double threshold, Log log )
+        throws IOException
+    {
+        File file = new File( directory, stage + ".csv" );
+        File previousFile = new File( previousDirectory != null ? previousDirectory : directory, stage + ".csv" );
+
+        Map<String, Long> previous = previousFile.isFile() ? readWallMillis( previousFile ) : null;
+
+        long wall = System.nanoTime() - start;
+        heapSampler.cancel();
+        sampleHeap();
+        long cpu = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        int skipped = 0;
+
+        List<Sample> copy;
+        synchronized ( samples )
+        {
+            copy = new ArrayList<Sample>( samples.values() );
+        }
+
+        directory.mkdirs();
+        PrintWriter w = new PrintWriter( new FileWriter( file ) );
+        try
+        {
+            w.println( HEADER );
+            for ( Sample sample : copy )
+            {
+                w.println( sample.toCsv() );
+                cpu += sample.cpuNanos;
+                bytesIn += sample.bytesIn;
+                bytesOut += sample.bytesOut;
+                if ( sample.skipped )
+                {
+                    skipped++;
+                }
+            }
+            w.println( toCsv( TOTAL, wall, cpu, bytesIn, bytesOut ) + "," + peakHeap );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+
+        log.info( stage + ": " + copy.size() + " files (" + skipped + " skipped), " + ( wall / 1000000 ) + " ms, "
+            + bytesIn + " bytes in, " + bytesOut + " bytes out, " + ( peakHeap / ( 1024 * 1024 ) ) + " MB peak heap, "
+            + "report " + file.getAbsolutePath() );
+
+        if ( previous != null )
+        {
+            Map<String, Long> current = readWallMillis( file );
+            for ( Map.Entry<String, Long> entry : current.entrySet() )
+            {
+                Long before = previous.get( entry.getKey() );
+                long now = entry.getValue().longValue();
+                if ( before != null && now - before.longValue() > MIN_REGRESSION_MILLIS
+                    && now > before.longValue() * ( 1 + threshold ) )
+                {
+                    log.warn( stage + " regression: " + entry.getKey() + " took " + now + " ms, was " + before
+                        + " ms" );
+                }
+            }
+        }
+    }
+
+    private static Map<String, Long> readWallMillis( File file )
+        throws IOException
+    {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        BufferedReader reader = new BufferedReader( new FileReader( file ) );
+        try
+        {
+            String line = reader.readLine(); // header
+            while ( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( "," );
+                if ( fields.length >= 2 )
+                {
+                    try
+                    {
+                        result.put( fields[0], Long.valueOf( fields[1] ) );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        // ignore malformed lines
+                    }
+                }
+            }
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+        return result;
+    }
+
+    private static String toCsv( String name, long wallNanos, long cpuNanos, long bytesIn, long bytesOut )
+    {
+        String ratio = bytesIn > 0 ? String.format( Locale.ENGLISH, "%.4f", (double) bytesOut / bytesIn ) : "";
+        return name + "," + ( wallNanos / 1000000 ) + "," + ( cpuNanos / 1000000 ) + "," + bytesIn + "," + bytesOut
+            + "," + ratio;
+    }
+
+    private void sampleHeap()
+    {
+        long used = MEMORY.getHeapMemoryUsage().getUsed();
+        synchronized ( heapSampler )
+        {
+            peakHeap = Math.max( peakHeap, used );
+        }
+    }
+
+    /**
+     * Samples heap usage until the report is written, or stops when a failed stage dropped the report without
+     * writing it.
+     */
+    private static class HeapSampler
+        extends TimerTask
+    {
+        private final WeakReference<StageReport> report;
+
+        HeapSampler( StageReport report )
+        {
+            this.report = new WeakReference<StageReport>( report );
+        }
+
+        @Override
+        public void run()
+        {
+            StageReport stageReport = report.get();
+            if ( stageReport != null )
+            {
+                stageReport.sampleHeap();
+            }
+            else
+            {
+                cancel();
+            }
+        }
+    }
+
+    private static long getCpuTime()
+    {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+}
@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright (c) 2008-2010 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *      Sonatype, Inc. - initial API and implementation
+ *******************************************************************************/
+
+package org.sonatype.tycho.jnlp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Pack200;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.StringUtils;
+import org.eclipse.tycho.core.ArtifactDependencyVisitor;
+import org.eclipse.tycho.core.FeatureDescription;
+import org.eclipse.tycho.core.PluginDescription;
+
+/**
+ * Verifies that all bundle and feature jars are fully signed by the expected certificate and that .jar.pack.gz files
+ * unpack to jars with the same contents and valid signatures. Jars are verified in process and in parallel, all
+ * problems are reported together.
+ *
+ * @phase verify
+ * @goal verify-jars
+ * @threadSafe
+ */
+public class VerifyJarsMojo
+    extends AbstractJnlpMojo
+{
+    private static final String FEATURES_DIR = "features/";
+
+    private static final String PLUGINS_DIR = "plugins/";
+
+    private static final String PACK_GZ_EXTENSION = ".pack.gz";
+
+    /**
+     * Keystore with the expected signer certificate. If not specified, jars signed by any certificate are accepted.
+     *
+     * @parameter expression="${jarsigner.keystore}"
+     */
+    private String keystore;
+
+    /**
+     * @parameter expression="${jarsigner.storepass}"
+     */
+    private String storepass;
+
+    /**
+     * @parameter expression="${jarsigner.storetype}"
+     */
+    private String storetype;
+
+    /**
+     * @parameter expression="${jarsigner.alias}"
+     */
+    private String alias;
+
+    /**
+     * @parameter expression="${jnlp.verify.skip}" default-value="false"
+     */
+    private boolean skip;
+
+    /**
+     * Number of jars verified in parallel, defaults to number of available processors.
+     *
+     * @parameter default-value="0"
+     */
+    private int threads;
+
+    public void execute()
+        throws MojoExecutionException, MojoFailureException
+    {
+        if ( skip )
+        {
+            return;
+        }
+
+        final Certificate expected = getExpectedCertificate();
+
+        List<File> archives = getArchives();
+
+        int nThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+        try
+        {
+            List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+            for ( final File archive : archives )
+            {
+                futures.add( executor.submit( new Callable<List<String>>()
+                {
+                    public List<String> call()
+                        throws Exception
+                    {
+                        return verify( archive, expected );
+                    }
+                } ) );
+            }
+
+            List<String> problems = new ArrayList<String>();
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                File archive = archives.get( i );
+                try
+                {
+                    for ( String problem : futures.get( i ).get() )
+                    {
+                        problems.add( archive.getAbsolutePath() + ": " + problem );
+                    }
+                }
+                catch ( ExecutionException e )
+                {
+                    problems.add( archive.getAbsolutePath() + ": " + e.getCause().getMessage() );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new MojoExecutionException( "Interrupted", e );
+                }
+            }
+
+            getLog().info( "Verified " + archives.size() + " jars" );
+
+            if ( !problems.isEmpty() )
+            {
+                for ( String problem : problems )
+                {
+                    getLog().error( problem );
+                }
+                throw new MojoFailureException( problems.size() + " jar verification problem(s) found" );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<File> getArchives()
+    {
+        final List<File> archives = new ArrayList<File>();
+
+        getDependencyWalker().walk( new ArtifactDependencyVisitor()
+        {
+            @Override
+            public boolean visitFeature( FeatureDescription feature )
+            {
+                addArchive( FEATURES_DIR, feature.getKey().getId(), getVersion( feature ) );
+                return true; // keep visiting
+            }
+
+            @Override
+            public void visitPlugin( PluginDescription plugin )
+            {
+                if ( !isIncluded( plugin ) )
+                {
+                    return;
+                }
+                addArchive( PLUGINS_DIR, plugin.getKey().getId(), getVersion( plugin ) );
+
+                File nativeLib = getNativeLibFile( plugin );
+                if ( nativeLib.isFile() )
+                {
+                    archives.add( nativeLib );
+                }
+            }
+
+            private void addArchive( String dir, String id, String version )
+            {
+                File archive = new File( target, dir + id + "_" + version + ".jar" );
+                File packed = new File( target, dir + id + "_" + version + ".jar" + PACK_GZ_EXTENSION );
+                if ( archive.isFile() || packed.isFile() )
+                {
+                    archives.add( archive );
+                }
+            }
+        } );
+
+        return archives;
+    }
+
+    List<String> verify( File archive, Certificate expected )
+        throws IOException
+    {
+        List<String> problems = new ArrayList<String>();
+
+        Map<String, String> digests = null;
+        if ( archive.isFile() )
+        {
+            digests = verifySignature( archive, expected, problems );
+        }
+
+        File packed = new File( archive.getParentFile(), archive.getName() + PACK_GZ_EXTENSION );
+        if ( packed.isFile() )
+        {
+            File unpacked = File.createTempFile( archive.getName(), ".unpack", archive.getParentFile() );
+            try
+            {
+                unpack( packed, unpacked );
+
+                List<String> unpackedProblems = new ArrayList<String>();
+                Map<String, String> unpackedDigests = verifySignature( unpacked, expected, unpackedProblems );
+                for ( String problem : unpackedProblems )
+                {
+                    problems.add( PACK_GZ_EXTENSION + " " + problem );
+                }
+
+                if ( digests != null )
+                {
+                    compareDigests( digests, unpackedDigests, problems );
+                }
+            }
+            finally
+            {
+                unpacked.delete();
+            }
+        }
+
+        return problems;
+    }
+
+    /**
+     * @return entry name to content digest map
+     */
+    private Map<String, String> verifySignature( File archive, Certificate expected, List<String> problems )
+        throws IOException
+    {
+        Map<String, String> digests = new HashMap<String, String>();
+        problems.addAll( JarSignatures.verify( archive, expected, digests ) );
+        return digests;
+    }
+
+    private void compareDigests( Map<String, String> digests, Map<String, String> unpacked, List<String> problems )
+    {
+        List<String> names = new ArrayList<String>( digests.keySet() );
+        for ( String name : unpacked.keySet() )
+        {
+            if ( !digests.containsKey( name ) )
+            {
+                names.add( name );
+            }
+        }
+        Collections.sort( names );
+
+        for ( String name : names )
+        {
+            String digest = digests.get( name );
+            String unpackedDigest = unpacked.get( name );
+            if ( digest == null )
+            {
+                problems.add( PACK_GZ_EXTENSION + " has unexpected entry " + name );
+            }
+            else if ( unpackedDigest == null )
+            {
+                problems.add( PACK_GZ_EXTENSION + " is missing entry " + name );
+            }
+            else if ( !digest.equals( unpackedDigest ) )
+            {
+                problems.add( PACK_GZ_EXTENSION + " entry " + name + " does not match jar contents" );
+            }
+        }
+    }
+
+    private void unpack( File packed, File unpacked )
+        throws IOException
+    {
+        InputStream is = new GZIPInputStream( new BufferedInputStream( new FileInputStream( packed ) ) );
+        try
+        {
+            JarOutputStream jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( unpacked ) ) );
+            try
+            {
+                Pack200.newUnpacker().unpack( is, jos );
+            }
+            finally
+            {
+                IOUtil.close( jos );
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    private Certificate getExpectedCertificate()
+        throws MojoExecutionException
+    {
+        if ( StringUtils.isEmpty( keystore ) || StringUtils.isEmpty( alias ) )
+        {
+            getLog().info( "Signer keystore or alias is not configured, jars signed by any certificate are accepted" );
+            return null;
+        }
+
+        File file = JarSignatures.getKeystoreFile( project.getBasedir(), keystore );
+        KeyStore ks = JarSignatures.loadKeystore( file, storetype, storepass );
+        try
+        {
+            Certificate certificate = ks.getCertificate( alias );
+            if ( certificate == null )
+            {
+                throw new MojoExecutionException( "Keystore " + keystore + " does not contain certificate " + alias );
+            }
+            return certificate;
+        }
+        catch ( KeyStoreException e )
+        {
+            throw new MojoExecutionException( "Could not read keystore " + keystore, e );
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.deploy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.settings.Server;
+import org.apache.maven.settings.Settings;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.FileUtils;
+import org.sonatype.tycho.jnlp.AbstractJnlpMojo;
+
+/**
+ * Uploads the product to the download server, either a directory ({@code file:} url) or a WebDAV or other HTTP server
+ * that accepts PUT requests. Only files that changed since the previous deployment are uploaded, see
+ * {@link Deployer}. JNLP files and artifacts.xml are uploaded after all bundles.
+ * 
+ * @goal deploy
+ * @threadSafe
+ * @phase deploy
+ */
+public class DeployMojo
+    extends AbstractJnlpMojo
+{
+    /**
+     * Download server directory, for example {@code file:/var/www/webstart/} or
+     * {@code https://dav.example.com/webstart/}.
+     * 
+     * @parameter expression="${jnlp.deployUrl}"
+     * @required
+     */
+    private String deployUrl;
+
+    /**
+     * Id of the server in settings.xml with user name and password for HTTP basic authentication.
+     * 
+     * @parameter expression="${jnlp.deployServerId}"
+     */
+    private String deployServerId;
+
+    /**
+     * Number of parallel uploads.
+     * 
+     * @parameter expression="${jnlp.deployThreads}" default-value="4"
+     */
+    private int deployThreads;
+
+    /**
+     * Directory to deploy.
+     * 
+     * @parameter default-value="${project.build.directory}/product/eclipse"
+     */
+    private File deployDirectory;
+
+    /**
+     * @parameter
+     */
+    private String[] deployIncludes = { "**" };
+
+    /**
+     * @parameter
+     */
+    private String[] deployExcludes;
+
+    /**
+     * Generated artifacts.xml, deployed to the root of the download server together with compressed and jarred
+     * variants next to it.
+     * 
+     * @parameter default-value="${project.build.directory}/artifacts.xml"
+     */
+    private File artifactsFile;
+
+    /**
+     * @parameter expression="${settings}"
+     * @readonly
+     */
+    private Settings settings;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        List<String> last = new ArrayList<String>();
+
+        if ( deployDirectory.isDirectory() )
+        {
+            Set<File> excluded = getExcludedPluginFiles();
+
+            DirectoryScanner scanner = new DirectoryScanner();
+            scanner.setBasedir( deployDirectory );
+            scanner.setIncludes( deployIncludes );
+            scanner.setExcludes( deployExcludes );
+            scanner.addDefaultExcludes();
+            scanner.scan();
+
+            for ( String path : scanner.getIncludedFiles() )
+            {
+                File file = new File( deployDirectory, path );
+                if ( isExcluded( file, excluded ) )
+                {
+                    continue;
+                }
+                path = path.replace( File.separatorChar, '/' );
+                files.put( path, file );
+                if ( path.endsWith( ".jnlp" ) || path.endsWith( ".jnlp.gz" ) )
+                {
+                    last.add( path );
+                }
+            }
+        }
+
+        File metadataDirectory = artifactsFile.getParentFile();
+        String[] metadata = { artifactsFile.getName(), artifactsFile.getName() + ".gz",
+            artifactsFile.getName() + ".xz", "artifacts.jar", "p2.index" };
+        for ( String name : metadata )
+        {
+            File file = new File( metadataDirectory, name );
+            if ( file.isFile() )
+            {
+                files.put( name, file );
+                last.add( name );
+            }
+        }
+
+        try
+        {
+            Deployer deployer = new Deployer( newDeployTarget(), deployThreads, reportDirectory, getLog() );
+            int uploaded = deployer.deploy( files, last );
+            getLog().info( "Uploaded " + uploaded + " files, " + ( files.size() - uploaded ) + " unchanged" );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not deploy to " + deployUrl, e );
+        }
+    }
+
+    /**
+     * Plugin jars of excluded environments, and their pack200 and gzip compressed variants.
+     */
+    private static boolean isExcluded( File file, Set<File> excluded )
+    {
+        String path = file.getAbsolutePath();
+        for ( String extension : new String[] { ".pack.gz", ".gz" } )
+        {
+            if ( path.endsWith( extension ) )
+            {
+                return excluded.contains( new File( path.substring( 0, path.length() - extension.length() ) ) );
+            }
+        }
+        return excluded.contains( file.getAbsoluteFile() );
+    }
+
+    private DeployTarget newDeployTarget()
+        throws IOException, MojoExecutionException
+    {
+        URL url = new URL( deployUrl );
+        if ( "file".equals( url.getProtocol() ) )
+        {
+            return new FileDeployTarget( FileUtils.toFile( url ) );
+        }
+
+        String username = null;
+        String password = null;
+        if ( deployServerId != null )
+        {
+            Server server = settings != null ? settings.getServer( deployServerId ) : null;
+            if ( server == null )
+            {
+                throw new MojoExecutionException( "Server " + deployServerId + " is not defined in settings.xml" );
+            }
+            username = server.getUsername();
+            password = server.getPassword();
+        }
+        return new HttpDeployTarget( url, username, password );
+    }
+}
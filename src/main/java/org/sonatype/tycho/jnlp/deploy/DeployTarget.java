@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.deploy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Download server the product is deployed to. Paths are relative and use '/' separators. Implementations must allow
+ * concurrent uploads from several threads.
+ */
+public interface DeployTarget
+{
+    /**
+     * @return contents of the deployed file, or {@code null} if the file does not exist
+     */
+    byte[] read( String path )
+        throws IOException;
+
+    /**
+     * Uploads the file, replacing the deployed file if it exists.
+     */
+    void write( String path, File file )
+        throws IOException;
+}
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.deploy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Uploads new and changed files of a release to a {@link DeployTarget}. The target keeps a manifest of deployed files
+ * and their SHA-1 digests, files with the same digest are not uploaded again.
+ * <p>
+ * Files are uploaded in two rounds: first all bundles and features, then the files clients start from (JNLP files,
+ * artifacts.xml and the like). If any upload of the first round fails, the second round does not start, so clients
+ * never see a release that refers to missing files. The manifest is written last.
+ */
+public class Deployer
+{
+    public static final String MANIFEST = "deploy.sha1";
+
+    private final DeployTarget target;
+
+    private final int threads;
+
+    private final File workDirectory;
+
+    private final Log log;
+
+    /**
+     * @param workDirectory where the updated manifest is written before upload
+     */
+    public Deployer( DeployTarget target, int threads, File workDirectory, Log log )
+    {
+        this.target = target;
+        this.threads = threads;
+        this.workDirectory = workDirectory;
+        this.log = log;
+    }
+
+    /**
+     * @param files files to deploy, keyed by target path
+     * @param last target paths of files to upload after all other files
+     * @return number of uploaded files
+     */
+    public int deploy( Map<String, File> files, List<String> last )
+        throws IOException
+    {
+        Map<String, String> deployed = readManifest();
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            Map<String, String> digests = digest( executor, files );
+
+            List<String> first = new ArrayList<String>();
+            List<String> second = new ArrayList<String>();
+            for ( Map.Entry<String, String> entry : digests.entrySet() )
+            {
+                if ( !entry.getValue().equals( deployed.get( entry.getKey() ) ) )
+                {
+                    ( last.contains( entry.getKey() ) ? second : first ).add( entry.getKey() );
+                }
+            }
+
+            log.info( "Deploying " + ( first.size() + second.size() ) + " of " + files.size() + " files to " + target );
+
+            upload( executor, files, first );
+            upload( executor, files, second );
+
+            // deployed files that are no longer part of the release are still on the server
+            deployed.putAll( digests );
+            writeManifest( deployed );
+
+            return first.size() + second.size();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private Map<String, String> digest( ExecutorService executor, Map<String, File> files )
+        throws IOException
+    {
+        Map<String, Future<String>> futures = new TreeMap<String, Future<String>>();
+        for ( Map.Entry<String, File> entry : files.entrySet() )
+        {
+            final File file = entry.getValue();
+            futures.put( entry.getKey(), executor.submit( new Callable<String>()
+            {
+                public String call()
+                    throws IOException
+                {
+                    return sha1( file );
+                }
+            } ) );
+        }
+
+        Map<String, String> digests = new TreeMap<String, String>();
+        for ( Map.Entry<String, Future<String>> entry : futures.entrySet() )
+        {
+            digests.put( entry.getKey(), get( entry.getValue() ) );
+        }
+        return digests;
+    }
+
+    private void upload( ExecutorService executor, Map<String, File> files, List<String> paths )
+        throws IOException
+    {
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for ( final String path : paths )
+        {
+            final File file = files.get( path );
+            futures.add( executor.submit( new Callable<String>()
+            {
+                public String call()
+                    throws IOException
+                {
+                    log.debug( "Uploading " + path );
+                    target.write( path, file );
+                    return path;
+                }
+            } ) );
+        }
+
+        List<Exception> exceptions = new ArrayList<Exception>();
+        for ( int i = 0; i < futures.size(); i++ )
+        {
+            try
+            {
+                get( futures.get( i ) );
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Could not upload " + paths.get( i ), e );
+                exceptions.add( e );
+            }
+        }
+
+        if ( !exceptions.isEmpty() )
+        {
+            throw new IOException( "Could not upload " + exceptions.size() + " files to " + target );
+        }
+    }
+
+    private static <T> T get( Future<T> future )
+        throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( e.getCause().toString() );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new IOException( "Interrupted" );
+        }
+    }
+
+    /**
+     * Manifest has one "sha1 path" line per deployed file, like output of sha1sum.
+     */
+    private Map<String, String> readManifest()
+        throws IOException
+    {
+        Map<String, String> manifest = new TreeMap<String, String>();
+        byte[] contents = target.read( MANIFEST );
+        if ( contents != null )
+        {
+            BufferedReader reader = new BufferedReader( new StringReader( new String( contents, "UTF-8" ) ) );
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                int idx = line.indexOf( "  " );
+                if ( idx > 0 )
+                {
+                    manifest.put( line.substring( idx + 2 ), line.substring( 0, idx ) );
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private void writeManifest( Map<String, String> manifest )
+        throws IOException
+    {
+        workDirectory.mkdirs();
+        File file = new File( workDirectory, MANIFEST );
+        PrintWriter w = new PrintWriter( file, "UTF-8" );
+        try
+        {
+            for ( Map.Entry<String, String> entry : manifest.entrySet() )
+            {
+                w.print( entry.getValue() + "  " + entry.getKey() + "\n" );
+            }
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+        target.write( MANIFEST, file );
+    }
+
+    static String sha1( File file )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-1 is not available", e );
+        }
+        InputStream is = new FileInputStream( file );
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while ( ( n = is.read( buf ) ) != -1 )
+            {
+                digest.update( buf, 0, n );
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+        StringBuilder sb = new StringBuilder();
+        for ( byte b : digest.digest() )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+}
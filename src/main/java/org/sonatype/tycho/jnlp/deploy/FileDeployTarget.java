@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.deploy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.JarUtils;
+
+/**
+ * Deploys to a local or mounted directory. Files are copied to a temporary file next to the target and renamed, so the
+ * web server never serves partially written files.
+ */
+public class FileDeployTarget
+    implements DeployTarget
+{
+    private final File root;
+
+    public FileDeployTarget( File root )
+    {
+        this.root = root;
+    }
+
+    public byte[] read( String path )
+        throws IOException
+    {
+        File file = new File( root, path );
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+        InputStream is = new FileInputStream( file );
+        try
+        {
+            return IOUtil.toByteArray( is );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    public void write( String path, File file )
+        throws IOException
+    {
+        File target = new File( root, path );
+        File directory = target.getParentFile();
+        if ( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() )
+        {
+            throw new IOException( "Could not create directory " + directory.getAbsolutePath() );
+        }
+        File tmp = File.createTempFile( target.getName(), ".deploy", directory );
+        FileUtils.copyFile( file, tmp );
+        JarUtils.replace( tmp, target );
+    }
+
+    @Override
+    public String toString()
+    {
+        return root.getAbsolutePath();
+    }
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.deploy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.codehaus.plexus.util.Base64;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Deploys to a WebDAV or any other HTTP server that accepts PUT requests. Parent collections (directories) of uploaded
+ * files are created with MKCOL before the first upload into them, servers that do not support MKCOL are expected to
+ * create directories on PUT. The base url must exist.
+ */
+public class HttpDeployTarget
+    implements DeployTarget
+{
+    private static final int SC_NOT_FOUND = 404;
+
+    private static final int SC_CONFLICT = 409;
+
+    private static final int SC_CREATED = 201;
+
+    private static final int SC_METHOD_NOT_ALLOWED = 405;
+
+    private static final int SC_NOT_IMPLEMENTED = 501;
+
+    private final URL base;
+
+    private final String authorization;
+
+    /**
+     * Collections known to exist.
+     */
+    private final Set<String> collections = new HashSet<String>();
+
+    /**
+     * @param username user name for basic authentication, or {@code null}
+     */
+    public HttpDeployTarget( URL base, String username, String password )
+        throws IOException
+    {
+        String url = base.toExternalForm();
+        this.base = url.endsWith( "/" ) ? base : new URL( url + "/" );
+        if ( username != null )
+        {
+            String credentials = username + ":" + ( password != null ? password : "" );
+            byte[] encoded = Base64.encodeBase64( credentials.getBytes( "UTF-8" ) );
+            this.authorization = "Basic " + new String( encoded, "US-ASCII" );
+        }
+        else
+        {
+            this.authorization = null;
+        }
+    }
+
+    public byte[] read( String path )
+        throws IOException
+    {
+        HttpURLConnection connection = open( path );
+        int status = connection.getResponseCode();
+        if ( status == SC_NOT_FOUND )
+        {
+            drain( connection );
+            return null;
+        }
+        if ( status / 100 != 2 )
+        {
+            drain( connection );
+            throw new IOException( "GET " + connection.getURL() + " failed: " + status );
+        }
+        InputStream is = connection.getInputStream();
+        try
+        {
+            return IOUtil.toByteArray( is );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    public void write( String path, File file )
+        throws IOException
+    {
+        mkcols( path );
+        int status = put( path, file );
+        if ( status == SC_CONFLICT )
+        {
+            // a collection known to exist was removed by someone else
+            synchronized ( collections )
+            {
+                int idx = path.lastIndexOf( '/' );
+                while ( idx > 0 )
+                {
+                    collections.remove( path.substring( 0, idx + 1 ) );
+                    idx = path.lastIndexOf( '/', idx - 1 );
+                }
+            }
+            mkcols( path );
+            status = put( path, file );
+        }
+        if ( status / 100 != 2 )
+        {
+            throw new IOException( "PUT " + new URL( base, encode( path ) ) + " failed: " + status );
+        }
+    }
+
+    /**
+     * HttpURLConnection does not retry streamed requests, i.e. if the server closed the reused keep-alive connection.
+     * PUT is idempotent and the body is read from the file, so it is retried once.
+     */
+    private int put( String path, File file )
+        throws IOException
+    {
+        try
+        {
+            return put0( path, file );
+        }
+        catch ( IOException e )
+        {
+            return put0( path, file );
+        }
+    }
+
+    private int put0( String path, File file )
+        throws IOException
+    {
+        HttpURLConnection connection = open( path );
+        connection.setRequestMethod( "PUT" );
+        connection.setDoOutput( true );
+        connection.setFixedLengthStreamingMode( (int) file.length() );
+        connection.setRequestProperty( "Content-Type", "application/octet-stream" );
+        OutputStream os = connection.getOutputStream();
+        try
+        {
+            InputStream is = new FileInputStream( file );
+            try
+            {
+                IOUtil.copy( is, os );
+            }
+            finally
+            {
+                IOUtil.close( is );
+            }
+        }
+        finally
+        {
+            IOUtil.close( os );
+        }
+        int status = connection.getResponseCode();
+        drain( connection );
+        return status;
+    }
+
+    /**
+     * Creates parent collections of the path, starting at the top.
+     */
+    private void mkcols( String path )
+        throws IOException
+    {
+        int idx = path.indexOf( '/' );
+        while ( idx > 0 )
+        {
+            String collection = path.substring( 0, idx + 1 );
+            synchronized ( collections )
+            {
+                // concurrent uploads into the same new collection create it once
+                if ( !collections.contains( collection ) )
+                {
+                    mkcol( collection );
+                    collections.add( collection );
+                }
+            }
+            idx = path.indexOf( '/', idx + 1 );
+        }
+    }
+
+    /**
+     * HttpURLConnection does not support WebDAV methods, MKCOL is sent over a plain socket.
+     */
+    private void mkcol( String collection )
+        throws IOException
+    {
+        URL url = new URL( base, encode( collection ) );
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket =
+            "https".equals( url.getProtocol() ) ? SSLSocketFactory.getDefault().createSocket( url.getHost(), port )
+                            : new Socket( url.getHost(), port );
+        try
+        {
+            Writer w = new OutputStreamWriter( socket.getOutputStream(), "ISO-8859-1" );
+            w.write( "MKCOL " + url.getFile() + " HTTP/1.1\r\n" );
+            w.write( "Host: " + url.getHost() + ( url.getPort() != -1 ? ":" + url.getPort() : "" ) + "\r\n" );
+            if ( authorization != null )
+            {
+                w.write( "Authorization: " + authorization + "\r\n" );
+            }
+            w.write( "Content-Length: 0\r\n" );
+            w.write( "Connection: close\r\n\r\n" );
+            w.flush();
+
+            BufferedReader r = new BufferedReader( new InputStreamReader( socket.getInputStream(), "ISO-8859-1" ) );
+            String statusLine = r.readLine();
+            String[] parts = statusLine != null ? statusLine.split( " " ) : new String[0];
+            int status = parts.length > 1 ? Integer.parseInt( parts[1] ) : -1;
+
+            // 405 Method Not Allowed is the response for existing collections, 501 Not Implemented for servers without
+            // WebDAV support
+            if ( status != SC_CREATED && status != SC_METHOD_NOT_ALLOWED && status != SC_NOT_IMPLEMENTED
+                && status / 100 != 2 )
+            {
+                throw new IOException( "MKCOL " + url + " failed: " + statusLine );
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private HttpURLConnection open( String path )
+        throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( base, encode( path ) ).openConnection();
+        connection.setUseCaches( false );
+        if ( authorization != null )
+        {
+            connection.setRequestProperty( "Authorization", authorization );
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the rest of the response, so the connection can be reused.
+     */
+    private static void drain( HttpURLConnection connection )
+        throws IOException
+    {
+        InputStream is = connection.getErrorStream();
+        if ( is == null )
+        {
+            try
+            {
+                is = connection.getInputStream();
+            }
+            catch ( IOException e )
+            {
+                return;
+            }
+        }
+        try
+        {
+            byte[] buf = new byte[4096];
+            while ( is.read( buf ) != -1 )
+            {
+                // discard
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    private static String encode( String path )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( String segment : path.split( "/", -1 ) )
+        {
+            if ( sb.length() > 0 )
+            {
+                sb.append( '/' );
+            }
+            sb.append( URLEncoder.encode( segment, "UTF-8" ).replace( "+", "%20" ) );
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return base.toExternalForm();
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.gzip;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Writes gzip (RFC 1952) files. In exhaustive mode, the input is deflated by {@link OptimalDeflaterOutputStream},
+ * which is many times slower than java.util.zip.Deflater and makes files a few percent smaller. The output is plain
+ * gzip and can be read by any gzip/pack200-gzip client. Data is streamed, memory use does not depend on its size.
+ */
+public class GzipCompressor
+{
+    private final boolean exhaustive;
+
+    public GzipCompressor( boolean exhaustive )
+    {
+        this.exhaustive = exhaustive;
+    }
+
+    public void compress( File src, File dst )
+        throws IOException
+    {
+        InputStream is = new FileInputStream( src );
+        try
+        {
+            OutputStream os = newOutputStream( new BufferedOutputStream( new FileOutputStream( dst ) ) );
+            try
+            {
+                IOUtil.copy( is, os );
+                os.close();
+            }
+            finally
+            {
+                IOUtil.close( os );
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    /**
+     * Writes the gzip header to os and returns a stream that compresses everything written to it into os. Closing the
+     * returned stream writes the gzip trailer and closes os.
+     */
+    public OutputStream newOutputStream( OutputStream os )
+        throws IOException
+    {
+        // header: magic, CM=deflate, no flags, MTIME=0, XFL, OS=unknown
+        byte xfl = (byte) ( exhaustive ? 2 : 0 );
+        os.write( new byte[] { (byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, xfl, (byte) 255 } );
+
+        GzipOutputStream gzip;
+        if ( exhaustive )
+        {
+            gzip = new GzipOutputStream( os, new OptimalDeflaterOutputStream( os ), null );
+        }
+        else
+        {
+            Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+            gzip = new GzipOutputStream( os, new DeflaterOutputStream( os, deflater ), deflater );
+        }
+        // pack200 writes single bytes
+        return new BufferedOutputStream( gzip );
+    }
+
+    private static void writeInt( OutputStream os, int value )
+        throws IOException
+    {
+        os.write( value & 0xff );
+        os.write( ( value >>> 8 ) & 0xff );
+        os.write( ( value >>> 16 ) & 0xff );
+        os.write( ( value >>> 24 ) & 0xff );
+    }
+
+    private static class GzipOutputStream
+        extends OutputStream
+    {
+        private final OutputStream out;
+
+        private final OutputStream deflated;
+
+        private final Deflater deflater;
+
+        private final CRC32 crc = new CRC32();
+
+        private long size;
+
+        private boolean closed;
+
+        GzipOutputStream( OutputStream out, OutputStream deflated, Deflater deflater )
+        {
+            this.out = out;
+            this.deflated = deflated;
+            this.deflater = deflater;
+        }
+
+        @Override
+        public void write( int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            crc.update( b, off, len );
+            size += len;
+            deflated.write( b, off, len );
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if ( closed )
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                if ( deflater != null )
+                {
+                    ( (DeflaterOutputStream) deflated ).finish();
+                }
+                else
+                {
+                    ( (OptimalDeflaterOutputStream) deflated ).finish();
+                }
+                writeInt( out, (int) crc.getValue() );
+                writeInt( out, (int) size );
+            }
+            finally
+            {
+                if ( deflater != null )
+                {
+                    deflater.end();
+                }
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.gzip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.sonatype.tycho.jnlp.AbstractJnlpMojo;
+import org.sonatype.tycho.jnlp.StageReport;
+
+/**
+ * Writes pre-compressed .gz siblings of static files (jnlp, artifacts.xml, jars), so web server can serve them
+ * without compressing on every request. Files are compressed in parallel, .gz files that would not be smaller than the
+ * original are not written.
+ *
+ * @goal gzip
+ * @threadSafe
+ * @phase package
+ */
+public class GzipMojo
+    extends AbstractJnlpMojo
+{
+    private static final String GZ_EXTENSION = ".gz";
+
+    /**
+     * @parameter default-value="${project.build.directory}"
+     */
+    private File gzipDirectory;
+
+    /**
+     * @parameter
+     */
+    private String[] gzipIncludes = { "*.xml", "product/eclipse/*.jnlp", "product/eclipse/plugins/*.jar",
+        "product/eclipse/features/*.jar" };
+
+    /**
+     * @parameter
+     */
+    private String[] gzipExcludes;
+
+    /**
+     * If {@code true}, files are deflated with iterative optimal parsing, see {@link OptimalDeflaterOutputStream},
+     * which makes them a few percent smaller at the cost of much longer build time.
+     *
+     * @parameter expression="${jnlp.exhaustiveGzip}" default-value="false"
+     */
+    private boolean exhaustiveGzip;
+
+    /**
+     * Number of files compressed in parallel, defaults to number of available processors.
+     *
+     * @parameter default-value="0"
+     */
+    private int threads;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        if ( !gzipDirectory.isDirectory() )
+        {
+            return;
+        }
+
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir( gzipDirectory );
+        scanner.setIncludes( gzipIncludes );
+        scanner.setExcludes( gzipExcludes );
+        scanner.scan();
+
+        Set<File> excluded = getExcludedPluginFiles();
+
+        final GzipCompressor compressor = new GzipCompressor( exhaustiveGzip );
+
+        final StageReport report = newStageReport();
+
+        ExecutorService executor = Executors.newFixedThreadPool( getThreads() );
+        try
+        {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            List<File> files = new ArrayList<File>();
+
+            for ( final String path : scanner.getIncludedFiles() )
+            {
+                final File file = new File( gzipDirectory, path );
+                if ( excluded.contains( file.getAbsoluteFile() ) )
+                {
+                    continue;
+                }
+                files.add( file );
+                futures.add( executor.submit( new Callable<Long>()
+                {
+                    public Long call()
+                        throws IOException
+                    {
+                        StageReport.Sample sample = report.start( path, file.length() );
+                        long saved = gzip( compressor, file );
+                        sample.stop( file.length() - saved );
+                        return Long.valueOf( saved );
+                    }
+                } ) );
+            }
+
+            long saved = 0;
+            ArrayList<Exception> exceptions = new ArrayList<Exception>();
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                try
+                {
+                    saved += futures.get( i ).get().longValue();
+                }
+                catch ( ExecutionException e )
+                {
+                    getLog().warn( "Could not gzip file " + files.get( i ).getAbsolutePath(), e.getCause() );
+                    exceptions.add( e );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new MojoExecutionException( "Interrupted", e );
+                }
+            }
+
+            getLog().info( "Gzip compressed " + files.size() + " files, " + saved + " bytes smaller than originals" );
+
+            writeStageReport( report );
+
+            if ( !exceptions.isEmpty() )
+            {
+                throw new MojoExecutionException( "Could not gzip some files" );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return number of bytes saved by the .gz file, or 0 if .gz file was not written
+     */
+    long gzip( GzipCompressor compressor, File file )
+        throws IOException
+    {
+        File gz = new File( file.getParentFile(), file.getName() + GZ_EXTENSION );
+
+        compressor.compress( file, gz );
+
+        long saved = file.length() - gz.length();
+        if ( saved <= 0 )
+        {
+            getLog().debug( "Gzip compression does not reduce size of " + file.getAbsolutePath() );
+            if ( !gz.delete() )
+            {
+                throw new IOException( "Could not delete " + gz.getAbsolutePath() );
+            }
+            return 0;
+        }
+        return saved;
+    }
+
+    private int getThreads()
+    {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+}
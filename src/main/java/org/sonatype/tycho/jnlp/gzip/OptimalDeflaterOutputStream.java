@@ -0,0 +1,1066 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.gzip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes raw deflate (RFC 1951) data, spending much more time than java.util.zip.Deflater to make it smaller, the way
+ * zopfli does:
+ * <ol>
+ * <li>all matches of each position are found with hash chains, for every match length the closest one,</li>
+ * <li>input is parsed into literals and matches by shortest path search over the bit cost of each symbol, first with
+ * fixed Huffman code costs, then repeatedly with entropy costs of the previous parse, randomly perturbed when the
+ * parse stops improving, and the smallest parse is kept,</li>
+ * <li>the symbols are split into blocks where separate Huffman codes make the output smaller, and each block is
+ * written stored, with fixed or with dynamic Huffman codes, whichever is smallest.</li>
+ * </ol>
+ * Input is processed in blocks of 256 KB, with the preceding 32 KB as dictionary, so memory use does not depend on the
+ * size of the input. Output only depends on the input.
+ */
+final class OptimalDeflaterOutputStream
+    extends OutputStream
+{
+    private static final int WINDOW_SIZE = 32768;
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final int MIN_MATCH = 3;
+
+    private static final int MAX_MATCH = 258;
+
+    private static final int HASH_BITS = 15;
+
+    private static final int MAX_CHAIN_HITS = 8192;
+
+    private static final int ITERATIONS = 15;
+
+    /**
+     * Iterations without improvement before the statistics are perturbed.
+     */
+    private static final int STABLE_ITERATIONS = 5;
+
+    private static final int MAX_SPLIT_BLOCKS = 15;
+
+    private static final int MIN_SPLIT_SYMBOLS = 1024;
+
+    private static final int SPLIT_PROBES = 9;
+
+    private static final int MAX_STORED = 65535;
+
+    private static final int NUM_LITLEN = 286;
+
+    private static final int NUM_DIST = 30;
+
+    private static final int END_OF_BLOCK = 256;
+
+    private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59,
+        67, 83, 99, 115, 131, 163, 195, 227, 258 };
+
+    private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4,
+        4, 5, 5, 5, 5, 0 };
+
+    private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+        769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+
+    private static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10,
+        11, 11, 12, 12, 13, 13 };
+
+    /**
+     * Order of code length code lengths in the dynamic block header.
+     */
+    private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    /**
+     * Length symbol minus 257 of each match length.
+     */
+    private static final int[] LENGTH_SYMBOL = new int[MAX_MATCH + 1];
+
+    /**
+     * Distance symbol of each distance.
+     */
+    private static final byte[] DIST_SYMBOL = new byte[WINDOW_SIZE + 1];
+
+    /**
+     * Fixed code lengths, including the two literal/length and distance codes that do not occur in data, which
+     * shift the canonical codes after them.
+     */
+    private static final int[] FIXED_LITLEN_LENGTHS = new int[NUM_LITLEN + 2];
+
+    private static final int[] FIXED_DIST_LENGTHS = new int[NUM_DIST + 2];
+
+    static
+    {
+        for ( int symbol = 0; symbol < LENGTH_BASE.length; symbol++ )
+        {
+            int next = symbol + 1 < LENGTH_BASE.length ? LENGTH_BASE[symbol + 1] : MAX_MATCH + 1;
+            for ( int length = LENGTH_BASE[symbol]; length < next; length++ )
+            {
+                LENGTH_SYMBOL[length] = symbol;
+            }
+        }
+        // 258 has its own symbol, 227 + 31 would be the last length of symbol 284
+        LENGTH_SYMBOL[MAX_MATCH] = LENGTH_BASE.length - 1;
+        for ( int symbol = 0; symbol < DIST_BASE.length; symbol++ )
+        {
+            int next = symbol + 1 < DIST_BASE.length ? DIST_BASE[symbol + 1] : WINDOW_SIZE + 1;
+            for ( int dist = DIST_BASE[symbol]; dist < next; dist++ )
+            {
+                DIST_SYMBOL[dist] = (byte) symbol;
+            }
+        }
+        for ( int symbol = 0; symbol < FIXED_LITLEN_LENGTHS.length; symbol++ )
+        {
+            FIXED_LITLEN_LENGTHS[symbol] = symbol < 144 ? 8 : symbol < 256 ? 9 : symbol < 280 ? 7 : 8;
+        }
+        Arrays.fill( FIXED_DIST_LENGTHS, 5 );
+    }
+
+    private final OutputStream out;
+
+    /**
+     * Dictionary of the current block, followed by the input of the current block.
+     */
+    private final byte[] window = new byte[WINDOW_SIZE + BLOCK_SIZE];
+
+    private int blockStart;
+
+    private int blockEnd;
+
+    private final int[] head = new int[1 << HASH_BITS];
+
+    private final int[] prev = new int[window.length];
+
+    /**
+     * Matches of block position i are matchData[matchIndex[i]] to matchData[matchIndex[i + 1]], each the longest
+     * length (high 16 bits) reached at a distance (low 16 bits), by increasing length and distance.
+     */
+    private final int[] matchIndex = new int[window.length + 1];
+
+    private int[] matchData = new int[window.length];
+
+    /**
+     * Number of equal bytes starting at each block position.
+     */
+    private final int[] same = new int[window.length];
+
+    private final double[] costs = new double[window.length + 1];
+
+    private final int[] pathLength = new int[window.length + 1];
+
+    private final int[] pathDist = new int[window.length + 1];
+
+    private Lz77 current = new Lz77( window.length );
+
+    private Lz77 best = new Lz77( window.length );
+
+    private final Random random = new Random( 0 );
+
+    private int bitBuffer;
+
+    private int bitCount;
+
+    private boolean finished;
+
+    OptimalDeflaterOutputStream( OutputStream out )
+    {
+        this.out = out;
+    }
+
+    @Override
+    public void write( int b )
+        throws IOException
+    {
+        write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        while ( len > 0 )
+        {
+            int n = Math.min( len, window.length - blockEnd );
+            System.arraycopy( b, off, window, blockEnd, n );
+            blockEnd += n;
+            off += n;
+            len -= n;
+            if ( blockEnd == window.length )
+            {
+                deflateBlock( false );
+                System.arraycopy( window, blockEnd - WINDOW_SIZE, window, 0, WINDOW_SIZE );
+                blockStart = WINDOW_SIZE;
+                blockEnd = WINDOW_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining input as final block, without closing the underlying stream.
+     */
+    public void finish()
+        throws IOException
+    {
+        if ( !finished )
+        {
+            finished = true;
+            deflateBlock( true );
+            if ( bitCount > 0 )
+            {
+                out.write( bitBuffer );
+                bitBuffer = 0;
+                bitCount = 0;
+            }
+        }
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        finish();
+        out.close();
+    }
+
+    private void deflateBlock( boolean last )
+        throws IOException
+    {
+        int size = blockEnd - blockStart;
+        if ( size == 0 )
+        {
+            // empty final block, 10 bits with fixed codes
+            writeBits( last ? 1 : 0, 1 );
+            writeBits( 1, 2 );
+            writeSymbols( current, 0, 0, FIXED_LITLEN_LENGTHS, FIXED_DIST_LENGTHS );
+            return;
+        }
+
+        findMatches();
+        parseIteratively( size );
+
+        List<Integer> splits = new ArrayList<Integer>();
+        split( best, 0, best.size, splits );
+        splits.add( Integer.valueOf( best.size ) );
+        Collections.sort( splits );
+
+        int from = 0;
+        for ( int i = 0; i < splits.size(); i++ )
+        {
+            int to = splits.get( i ).intValue();
+            writeBlock( best, from, to, last && i == splits.size() - 1 );
+            from = to;
+        }
+    }
+
+    private int hash( int pos )
+    {
+        int key = ( window[pos] & 0xff ) << 16 | ( window[pos + 1] & 0xff ) << 8 | ( window[pos + 2] & 0xff );
+        return ( key * 0x9E3779B1 ) >>> ( 32 - HASH_BITS );
+    }
+
+    private void insert( int pos )
+    {
+        if ( pos + MIN_MATCH <= blockEnd )
+        {
+            int h = hash( pos );
+            prev[pos] = head[h];
+            head[h] = pos;
+        }
+    }
+
+    private void findMatches()
+    {
+        Arrays.fill( head, -1 );
+        for ( int pos = Math.max( 0, blockStart - WINDOW_SIZE ); pos < blockStart; pos++ )
+        {
+            insert( pos );
+        }
+
+        int count = 0;
+        for ( int pos = blockStart; pos < blockEnd; pos++ )
+        {
+            matchIndex[pos - blockStart] = count;
+
+            int maxLength = Math.min( MAX_MATCH, blockEnd - pos );
+            if ( maxLength >= MIN_MATCH )
+            {
+                int bestLength = MIN_MATCH - 1;
+                int hits = 0;
+                for ( int candidate = head[hash( pos )]; candidate >= 0 && pos - candidate <= WINDOW_SIZE
+                    && hits < MAX_CHAIN_HITS; candidate = prev[candidate], hits++ )
+                {
+                    if ( window[candidate + bestLength] != window[pos + bestLength] )
+                    {
+                        continue;
+                    }
+                    int length = 0;
+                    while ( length < maxLength && window[candidate + length] == window[pos + length] )
+                    {
+                        length++;
+                    }
+                    if ( length > bestLength )
+                    {
+                        if ( count == matchData.length )
+                        {
+                            int[] grown = new int[count * 2];
+                            System.arraycopy( matchData, 0, grown, 0, count );
+                            matchData = grown;
+                        }
+                        matchData[count++] = length << 16 | ( pos - candidate );
+                        bestLength = length;
+                        if ( length == maxLength )
+                        {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            insert( pos );
+        }
+        matchIndex[blockEnd - blockStart] = count;
+
+        int size = blockEnd - blockStart;
+        same[size - 1] = 1;
+        for ( int i = size - 2; i >= 0; i-- )
+        {
+            same[i] = window[blockStart + i] == window[blockStart + i + 1] ? same[i + 1] + 1 : 1;
+        }
+    }
+
+    private void parseIteratively( int size )
+        throws IOException
+    {
+        double[] litLenBits = new double[NUM_LITLEN];
+        double[] distBits = new double[NUM_DIST];
+        for ( int i = 0; i < NUM_LITLEN; i++ )
+        {
+            litLenBits[i] = FIXED_LITLEN_LENGTHS[i];
+        }
+        for ( int i = 0; i < NUM_DIST; i++ )
+        {
+            distBits[i] = FIXED_DIST_LENGTHS[i];
+        }
+
+        double[] litLenStats = new double[NUM_LITLEN];
+        double[] distStats = new double[NUM_DIST];
+        double[] lastLitLenStats = null;
+        double[] lastDistStats = null;
+        double[] bestLitLenStats = null;
+        double[] bestDistStats = null;
+
+        long bestBits = Long.MAX_VALUE;
+        long lastBits = -1;
+        boolean perturbed = false;
+        int stable = 0;
+        for ( int iteration = 0; iteration < ITERATIONS; iteration++ )
+        {
+            parse( size, litLenBits, distBits, current );
+            long bits = getBlockBits( current, 0, current.size );
+
+            // statistics of this parse
+            double[] parsedLitLen = new double[NUM_LITLEN];
+            double[] parsedDist = new double[NUM_DIST];
+            current.count( 0, current.size, parsedLitLen, parsedDist );
+
+            if ( bits < bestBits )
+            {
+                Lz77 swap = best;
+                best = current;
+                current = swap;
+                bestBits = bits;
+                bestLitLenStats = iteration == 0 ? parsedLitLen : litLenStats;
+                bestDistStats = iteration == 0 ? parsedDist : distStats;
+            }
+
+            if ( perturbed )
+            {
+                // converges slower, but to a better result
+                for ( int i = 0; i < NUM_LITLEN; i++ )
+                {
+                    parsedLitLen[i] += lastLitLenStats[i] / 2;
+                }
+                for ( int i = 0; i < NUM_DIST; i++ )
+                {
+                    parsedDist[i] += lastDistStats[i] / 2;
+                }
+            }
+            lastLitLenStats = parsedLitLen;
+            lastDistStats = parsedDist;
+            litLenStats = parsedLitLen;
+            distStats = parsedDist;
+
+            stable = bits == lastBits ? stable + 1 : 0;
+            if ( iteration > STABLE_ITERATIONS && stable > 0 )
+            {
+                litLenStats = perturb( bestLitLenStats );
+                distStats = perturb( bestDistStats );
+                litLenStats[END_OF_BLOCK] = 1;
+                perturbed = true;
+            }
+            lastBits = bits;
+
+            getEntropy( litLenStats, litLenBits );
+            getEntropy( distStats, distBits );
+        }
+    }
+
+    private double[] perturb( double[] stats )
+    {
+        double[] perturbed = stats.clone();
+        for ( int i = 0; i < perturbed.length; i++ )
+        {
+            if ( random.nextInt( 3 ) == 0 )
+            {
+                perturbed[i] = stats[random.nextInt( stats.length )];
+            }
+        }
+        return perturbed;
+    }
+
+    /**
+     * Bit cost of each symbol, -log2 of its probability, symbols that were not used cost as much as the least likely.
+     */
+    private static void getEntropy( double[] stats, double[] bits )
+    {
+        double sum = 0;
+        for ( double count : stats )
+        {
+            sum += count;
+        }
+        double log2sum = log2( sum == 0 ? stats.length : sum );
+        for ( int i = 0; i < stats.length; i++ )
+        {
+            bits[i] = stats[i] == 0 ? log2sum : Math.max( 0, log2sum - log2( stats[i] ) );
+        }
+    }
+
+    private static double log2( double value )
+    {
+        return Math.log( value ) / Math.log( 2 );
+    }
+
+    /**
+     * Shortest path from the start to the end of the block, where each literal and match costs its bits.
+     */
+    private void parse( int size, double[] litLenBits, double[] distBits, Lz77 lz77 )
+    {
+        double[] lengthCosts = new double[MAX_MATCH + 1];
+        for ( int length = MIN_MATCH; length <= MAX_MATCH; length++ )
+        {
+            int symbol = LENGTH_SYMBOL[length];
+            lengthCosts[length] = litLenBits[END_OF_BLOCK + 1 + symbol] + LENGTH_EXTRA[symbol];
+        }
+        double[] distSymbolCosts = new double[NUM_DIST];
+        for ( int symbol = 0; symbol < NUM_DIST; symbol++ )
+        {
+            distSymbolCosts[symbol] = distBits[symbol] + DIST_EXTRA[symbol];
+        }
+
+        Arrays.fill( costs, 1, size + 1, Double.MAX_VALUE );
+        costs[0] = 0;
+        for ( int i = 0; i < size; i++ )
+        {
+            // in long runs of one byte, maximum length matches at distance 1 are best, without trying the others
+            if ( i > MAX_MATCH + 1 && i + 2 * MAX_MATCH + 1 < size && same[i] > 2 * MAX_MATCH
+                && same[i - MAX_MATCH] > MAX_MATCH )
+            {
+                double runCost = distSymbolCosts[0] + lengthCosts[MAX_MATCH];
+                for ( int k = 0; k < MAX_MATCH; k++, i++ )
+                {
+                    costs[i + MAX_MATCH] = costs[i] + runCost;
+                    pathLength[i + MAX_MATCH] = MAX_MATCH;
+                    pathDist[i + MAX_MATCH] = 1;
+                }
+            }
+
+            double cost = costs[i];
+
+            double literal = cost + litLenBits[window[blockStart + i] & 0xff];
+            if ( literal < costs[i + 1] )
+            {
+                costs[i + 1] = literal;
+                pathLength[i + 1] = 1;
+                pathDist[i + 1] = 0;
+            }
+
+            int length = MIN_MATCH;
+            for ( int m = matchIndex[i]; m < matchIndex[i + 1]; m++ )
+            {
+                int maxLength = matchData[m] >>> 16;
+                int dist = matchData[m] & 0xffff;
+                double distCost = cost + distSymbolCosts[DIST_SYMBOL[dist]];
+                for ( ; length <= maxLength; length++ )
+                {
+                    double match = distCost + lengthCosts[length];
+                    if ( match < costs[i + length] )
+                    {
+                        costs[i + length] = match;
+                        pathLength[i + length] = length;
+                        pathDist[i + length] = dist;
+                    }
+                }
+            }
+        }
+
+        // the path is walked backwards, symbols are stored from the end of lz77 and moved to the front
+        int capacity = lz77.litLen.length;
+        int first = capacity;
+        for ( int pos = size; pos > 0; pos -= pathLength[pos] )
+        {
+            first--;
+            int length = pathLength[pos];
+            lz77.litLen[first] = length == 1 ? window[blockStart + pos - 1] & 0xff : length;
+            lz77.dist[first] = pathDist[pos];
+            lz77.pos[first] = pos - length;
+        }
+        lz77.size = capacity - first;
+        System.arraycopy( lz77.litLen, first, lz77.litLen, 0, lz77.size );
+        System.arraycopy( lz77.dist, first, lz77.dist, 0, lz77.size );
+        System.arraycopy( lz77.pos, first, lz77.pos, 0, lz77.size );
+        lz77.end = size;
+    }
+
+    /**
+     * Recursively splits symbols from-to where two blocks are smaller than one.
+     */
+    private void split( Lz77 lz77, int from, int to, List<Integer> splits )
+        throws IOException
+    {
+        if ( to - from < MIN_SPLIT_SYMBOLS || splits.size() >= MAX_SPLIT_BLOCKS - 1 )
+        {
+            return;
+        }
+
+        long bestBits = getBlockBits( lz77, from, to );
+        int bestSplit = -1;
+        int low = from + 1;
+        int high = to - 1;
+        while ( low <= high )
+        {
+            // probe evenly, then narrow down to the neighbours of the best probe
+            int probes = Math.min( SPLIT_PROBES, high - low + 1 );
+            int bestProbe = -1;
+            long bestProbeBits = Long.MAX_VALUE;
+            int[] positions = new int[probes];
+            for ( int p = 0; p < probes; p++ )
+            {
+                positions[p] = low + (int) ( (long) ( high - low ) * p / Math.max( 1, probes - 1 ) );
+                long bits = getBlockBits( lz77, from, positions[p] ) + getBlockBits( lz77, positions[p], to );
+                if ( bits < bestProbeBits )
+                {
+                    bestProbeBits = bits;
+                    bestProbe = p;
+                }
+            }
+            if ( bestProbeBits < bestBits )
+            {
+                bestBits = bestProbeBits;
+                bestSplit = positions[bestProbe];
+            }
+            if ( probes < SPLIT_PROBES )
+            {
+                break;
+            }
+            int newLow = bestProbe > 0 ? positions[bestProbe - 1] + 1 : low;
+            int newHigh = bestProbe < probes - 1 ? positions[bestProbe + 1] - 1 : high;
+            if ( newLow == low && newHigh == high )
+            {
+                break;
+            }
+            low = newLow;
+            high = newHigh;
+        }
+
+        if ( bestSplit > 0 )
+        {
+            splits.add( Integer.valueOf( bestSplit ) );
+            split( lz77, from, bestSplit, splits );
+            split( lz77, bestSplit, to, splits );
+        }
+    }
+
+    /**
+     * @return bits of the smallest stored, fixed or dynamic block for the symbols from-to
+     */
+    private long getBlockBits( Lz77 lz77, int from, int to )
+        throws IOException
+    {
+        double[] litLenCounts = new double[NUM_LITLEN];
+        double[] distCounts = new double[NUM_DIST];
+        lz77.count( from, to, litLenCounts, distCounts );
+
+        int[] litLenLengths = new int[NUM_LITLEN];
+        int[] distLengths = new int[NUM_DIST];
+        getDynamicLengths( litLenCounts, distCounts, litLenLengths, distLengths );
+
+        long dynamic = 3 + writeTree( litLenLengths, distLengths, false )
+            + getDataBits( litLenCounts, distCounts, litLenLengths, distLengths );
+        long fixed = 3 + getDataBits( litLenCounts, distCounts, FIXED_LITLEN_LENGTHS, FIXED_DIST_LENGTHS );
+        return Math.min( getStoredBits( lz77, from, to ), Math.min( dynamic, fixed ) );
+    }
+
+    private static long getDataBits( double[] litLenCounts, double[] distCounts, int[] litLenLengths,
+                                     int[] distLengths )
+    {
+        long bits = 0;
+        for ( int symbol = 0; symbol < NUM_LITLEN; symbol++ )
+        {
+            int extra = symbol > END_OF_BLOCK ? LENGTH_EXTRA[symbol - END_OF_BLOCK - 1] : 0;
+            bits += (long) litLenCounts[symbol] * ( litLenLengths[symbol] + extra );
+        }
+        for ( int symbol = 0; symbol < NUM_DIST; symbol++ )
+        {
+            bits += (long) distCounts[symbol] * ( distLengths[symbol] + DIST_EXTRA[symbol] );
+        }
+        return bits;
+    }
+
+    private static long getStoredBits( Lz77 lz77, int from, int to )
+    {
+        long bytes = lz77.getEnd( to ) - lz77.getEnd( from );
+        long blocks = Math.max( 1, ( bytes + MAX_STORED - 1 ) / MAX_STORED );
+        // header, up to 7 bits to the byte boundary, LEN and NLEN
+        return blocks * ( 3 + 7 + 32 ) + bytes * 8;
+    }
+
+    private static void getDynamicLengths( double[] litLenCounts, double[] distCounts, int[] litLenLengths,
+                                           int[] distLengths )
+    {
+        getCodeLengths( litLenCounts, 15, litLenLengths );
+        getCodeLengths( distCounts, 15, distLengths );
+
+        // some inflaters reject less than two distance codes
+        int used = 0;
+        for ( int length : distLengths )
+        {
+            if ( length != 0 )
+            {
+                used++;
+            }
+        }
+        if ( used == 0 )
+        {
+            distLengths[0] = 1;
+            distLengths[1] = 1;
+        }
+        else if ( used == 1 )
+        {
+            distLengths[distLengths[0] == 0 ? 0 : 1] = 1;
+        }
+    }
+
+    private void writeBlock( Lz77 lz77, int from, int to, boolean last )
+        throws IOException
+    {
+        double[] litLenCounts = new double[NUM_LITLEN];
+        double[] distCounts = new double[NUM_DIST];
+        lz77.count( from, to, litLenCounts, distCounts );
+
+        int[] litLenLengths = new int[NUM_LITLEN];
+        int[] distLengths = new int[NUM_DIST];
+        getDynamicLengths( litLenCounts, distCounts, litLenLengths, distLengths );
+
+        long dynamic = writeTree( litLenLengths, distLengths, false )
+            + getDataBits( litLenCounts, distCounts, litLenLengths, distLengths );
+        long fixed = getDataBits( litLenCounts, distCounts, FIXED_LITLEN_LENGTHS, FIXED_DIST_LENGTHS );
+        long stored = getStoredBits( lz77, from, to ) - 3;
+
+        if ( stored < dynamic && stored < fixed )
+        {
+            writeStored( lz77.getEnd( from ), lz77.getEnd( to ), last );
+        }
+        else if ( fixed <= dynamic )
+        {
+            writeBits( last ? 1 : 0, 1 );
+            writeBits( 1, 2 );
+            writeSymbols( lz77, from, to, FIXED_LITLEN_LENGTHS, FIXED_DIST_LENGTHS );
+        }
+        else
+        {
+            writeBits( last ? 1 : 0, 1 );
+            writeBits( 2, 2 );
+            writeTree( litLenLengths, distLengths, true );
+            writeSymbols( lz77, from, to, litLenLengths, distLengths );
+        }
+    }
+
+    private void writeStored( int from, int to, boolean last )
+        throws IOException
+    {
+        int pos = from;
+        do
+        {
+            int length = Math.min( MAX_STORED, to - pos );
+            writeBits( last && pos + length == to ? 1 : 0, 1 );
+            writeBits( 0, 2 );
+            if ( bitCount > 0 )
+            {
+                writeBits( 0, 8 - bitCount );
+            }
+            writeBits( length, 16 );
+            writeBits( ~length & 0xffff, 16 );
+            out.write( window, blockStart + pos, length );
+            pos += length;
+        }
+        while ( pos < to );
+    }
+
+    private void writeSymbols( Lz77 lz77, int from, int to, int[] litLenLengths, int[] distLengths )
+        throws IOException
+    {
+        int[] litLenCodes = getCodes( litLenLengths );
+        int[] distCodes = getCodes( distLengths );
+        for ( int i = from; i < to; i++ )
+        {
+            int dist = lz77.dist[i];
+            if ( dist == 0 )
+            {
+                int literal = lz77.litLen[i];
+                writeBits( litLenCodes[literal], litLenLengths[literal] );
+            }
+            else
+            {
+                int length = lz77.litLen[i];
+                int lengthSymbol = LENGTH_SYMBOL[length];
+                int symbol = END_OF_BLOCK + 1 + lengthSymbol;
+                writeBits( litLenCodes[symbol], litLenLengths[symbol] );
+                writeBits( length - LENGTH_BASE[lengthSymbol], LENGTH_EXTRA[lengthSymbol] );
+                int distSymbol = DIST_SYMBOL[dist];
+                writeBits( distCodes[distSymbol], distLengths[distSymbol] );
+                writeBits( dist - DIST_BASE[distSymbol], DIST_EXTRA[distSymbol] );
+            }
+        }
+        writeBits( litLenCodes[END_OF_BLOCK], litLenLengths[END_OF_BLOCK] );
+    }
+
+    /**
+     * Writes or measures the code lengths of a dynamic block header, run-length encoded with symbols 16, 17 and 18.
+     *
+     * @return number of bits of the header after BTYPE
+     */
+    private long writeTree( int[] litLenLengths, int[] distLengths, boolean write )
+        throws IOException
+    {
+        int hlit = NUM_LITLEN;
+        while ( hlit > 257 && litLenLengths[hlit - 1] == 0 )
+        {
+            hlit--;
+        }
+        int hdist = NUM_DIST;
+        while ( hdist > 1 && distLengths[hdist - 1] == 0 )
+        {
+            hdist--;
+        }
+        int[] lengths = new int[hlit + hdist];
+        System.arraycopy( litLenLengths, 0, lengths, 0, hlit );
+        System.arraycopy( distLengths, 0, lengths, hlit, hdist );
+
+        // run-length encoded symbols, with their extra bits value
+        int[] rle = new int[lengths.length];
+        int[] rleExtra = new int[lengths.length];
+        int n = 0;
+        for ( int i = 0; i < lengths.length; )
+        {
+            int value = lengths[i];
+            int run = 1;
+            while ( i + run < lengths.length && lengths[i + run] == value )
+            {
+                run++;
+            }
+            i += run;
+            if ( value == 0 )
+            {
+                while ( run >= 11 )
+                {
+                    int repeat = Math.min( run, 138 );
+                    rle[n] = 18;
+                    rleExtra[n++] = repeat - 11;
+                    run -= repeat;
+                }
+                if ( run >= 3 )
+                {
+                    rle[n] = 17;
+                    rleExtra[n++] = run - 3;
+                    run = 0;
+                }
+            }
+            else
+            {
+                rle[n++] = value;
+                run--;
+                while ( run >= 3 )
+                {
+                    int repeat = Math.min( run, 6 );
+                    rle[n] = 16;
+                    rleExtra[n++] = repeat - 3;
+                    run -= repeat;
+                }
+            }
+            while ( run-- > 0 )
+            {
+                rle[n++] = value;
+            }
+        }
+
+        double[] codeLengthCounts = new double[19];
+        for ( int i = 0; i < n; i++ )
+        {
+            codeLengthCounts[rle[i]]++;
+        }
+        int[] codeLengthLengths = new int[19];
+        getCodeLengths( codeLengthCounts, 7, codeLengthLengths );
+        int hclen = 19;
+        while ( hclen > 4 && codeLengthLengths[CODE_LENGTH_ORDER[hclen - 1]] == 0 )
+        {
+            hclen--;
+        }
+
+        long bits = 5 + 5 + 4 + 3 * hclen;
+        for ( int i = 0; i < n; i++ )
+        {
+            bits += codeLengthLengths[rle[i]] + getRepeatBits( rle[i] );
+        }
+
+        if ( write )
+        {
+            writeBits( hlit - 257, 5 );
+            writeBits( hdist - 1, 5 );
+            writeBits( hclen - 4, 4 );
+            for ( int i = 0; i < hclen; i++ )
+            {
+                writeBits( codeLengthLengths[CODE_LENGTH_ORDER[i]], 3 );
+            }
+            int[] codeLengthCodes = getCodes( codeLengthLengths );
+            for ( int i = 0; i < n; i++ )
+            {
+                writeBits( codeLengthCodes[rle[i]], codeLengthLengths[rle[i]] );
+                writeBits( rleExtra[i], getRepeatBits( rle[i] ) );
+            }
+        }
+        return bits;
+    }
+
+    private static int getRepeatBits( int symbol )
+    {
+        return symbol == 16 ? 2 : symbol == 17 ? 3 : symbol == 18 ? 7 : 0;
+    }
+
+    /**
+     * Package-merge: optimal Huffman code lengths of at most maxBits bits for the given symbol counts.
+     */
+    static void getCodeLengths( double[] counts, int maxBits, int[] lengths )
+    {
+        Arrays.fill( lengths, 0 );
+
+        List<Node> leaves = new ArrayList<Node>();
+        for ( int symbol = 0; symbol < counts.length; symbol++ )
+        {
+            if ( counts[symbol] > 0 )
+            {
+                leaves.add( new Node( counts[symbol], symbol, null, null ) );
+            }
+        }
+        if ( leaves.isEmpty() )
+        {
+            return;
+        }
+        if ( leaves.size() == 1 )
+        {
+            lengths[leaves.get( 0 ).symbol] = 1;
+            return;
+        }
+        // stable, so equal counts are ordered by symbol
+        Collections.sort( leaves );
+
+        List<Node> list = leaves;
+        for ( int level = 1; level < maxBits; level++ )
+        {
+            List<Node> merged = new ArrayList<Node>( leaves.size() + list.size() / 2 );
+            int l = 0;
+            int p = 0;
+            while ( l < leaves.size() || p + 1 < list.size() )
+            {
+                Node pack = null;
+                if ( p + 1 < list.size() )
+                {
+                    pack = new Node( list.get( p ).weight + list.get( p + 1 ).weight, -1, list.get( p ),
+                                     list.get( p + 1 ) );
+                }
+                if ( pack == null || ( l < leaves.size() && leaves.get( l ).weight <= pack.weight ) )
+                {
+                    merged.add( leaves.get( l++ ) );
+                }
+                else
+                {
+                    merged.add( pack );
+                    p += 2;
+                }
+            }
+            list = merged;
+        }
+
+        for ( int i = 0; i < 2 * leaves.size() - 2; i++ )
+        {
+            list.get( i ).count( lengths );
+        }
+    }
+
+    /**
+     * Canonical Huffman codes of the code lengths, bit reversed for writing least significant bit first.
+     */
+    private static int[] getCodes( int[] lengths )
+    {
+        int[] lengthCounts = new int[16];
+        for ( int length : lengths )
+        {
+            if ( length != 0 )
+            {
+                lengthCounts[length]++;
+            }
+        }
+        int[] next = new int[16];
+        int code = 0;
+        for ( int bits = 1; bits < 16; bits++ )
+        {
+            code = ( code + lengthCounts[bits - 1] ) << 1;
+            next[bits] = code;
+        }
+        int[] codes = new int[lengths.length];
+        for ( int symbol = 0; symbol < lengths.length; symbol++ )
+        {
+            int length = lengths[symbol];
+            if ( length != 0 )
+            {
+                codes[symbol] = Integer.reverse( next[length]++ ) >>> ( 32 - length );
+            }
+        }
+        return codes;
+    }
+
+    private void writeBits( int value, int count )
+        throws IOException
+    {
+        bitBuffer |= value << bitCount;
+        bitCount += count;
+        while ( bitCount >= 8 )
+        {
+            out.write( bitBuffer & 0xff );
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    /**
+     * Leaf or package of the package-merge algorithm.
+     */
+    private static final class Node
+        implements Comparable<Node>
+    {
+        final double weight;
+
+        final int symbol;
+
+        final Node left;
+
+        final Node right;
+
+        Node( double weight, int symbol, Node left, Node right )
+        {
+            this.weight = weight;
+            this.symbol = symbol;
+            this.left = left;
+            this.right = right;
+        }
+
+        public int compareTo( Node other )
+        {
+            return Double.compare( weight, other.weight );
+        }
+
+        void count( int[] lengths )
+        {
+            if ( left == null )
+            {
+                lengths[symbol]++;
+            }
+            else
+            {
+                left.count( lengths );
+                right.count( lengths );
+            }
+        }
+    }
+
+    /**
+     * Parsed block, a literal (dist 0) or a match for each symbol, and the block position where it starts.
+     */
+    private static final class Lz77
+    {
+        final int[] litLen;
+
+        final int[] dist;
+
+        final int[] pos;
+
+        int size;
+
+        /**
+         * Number of bytes of the block.
+         */
+        int end;
+
+        Lz77( int capacity )
+        {
+            litLen = new int[capacity];
+            dist = new int[capacity];
+            pos = new int[capacity];
+        }
+
+        /**
+         * @return block position where symbol i starts, or the block end
+         */
+        int getEnd( int i )
+        {
+            return i < size ? pos[i] : end;
+        }
+
+        void count( int from, int to, double[] litLenCounts, double[] distCounts )
+        {
+            for ( int i = from; i < to; i++ )
+            {
+                if ( dist[i] == 0 )
+                {
+                    litLenCounts[litLen[i]]++;
+                }
+                else
+                {
+                    litLenCounts[END_OF_BLOCK + 1 + LENGTH_SYMBOL[litLen[i]]]++;
+                    distCounts[DIST_SYMBOL[dist[i]]]++;
+                }
+            }
+            litLenCounts[END_OF_BLOCK]++;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.jfr;
+
+import java.io.File;
+
+/**
+ * Emits Java Flight Recorder events for jar processing stages. Does nothing on JVMs without JFR API (jdk.jfr), or when
+ * the events are not enabled in the running recording.
+ *
+ * <pre>
+ * Object event = JarEvents.begin( JarEvents.SIGN, jar );
+ * try
+ * {
+ *     ...
+ * }
+ * finally
+ * {
+ *     JarEvents.end( event );
+ * }
+ * </pre>
+ */
+public final class JarEvents
+{
+    public static final String SIGN = "sign";
+
+    public static final String NORMALIZE_PACK = "normalize-pack";
+
+    public static final String NORMALIZE_UNPACK = "normalize-unpack";
+
+    public static final String NORMALIZE_REWRITE = "normalize-rewrite";
+
+    public static final String PACK = "pack";
+
+    public static final String XML = "xml";
+
+    private static final boolean AVAILABLE = isJfrAvailable();
+
+    private JarEvents()
+    {
+    }
+
+    public static Object begin( String stage, File file )
+    {
+        if ( !AVAILABLE )
+        {
+            return null;
+        }
+        return JarProcessingEvent.begin( stage, file.getName(), file.length() );
+    }
+
+    public static void end( Object event )
+    {
+        if ( event != null )
+        {
+            JarProcessingEvent.end( event );
+        }
+    }
+
+    private static boolean isJfrAvailable()
+    {
+        try
+        {
+            Class.forName( "jdk.jfr.Event", false, JarEvents.class.getClassLoader() );
+            return true;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+        catch ( LinkageError e )
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one processing stage of one jar. Must only be referenced through {@link JarEvents}, which
+ * checks that JFR API is available in the running JVM.
+ */
+@Name( "org.sonatype.tycho.jnlp.JarProcessing" )
+@Label( "Jar Processing" )
+@Category( { "Tycho", "JNLP" } )
+@Description( "Signing, pack200 normalization, packing or xml generation of one file" )
+@StackTrace( false )
+class JarProcessingEvent
+    extends jdk.jfr.Event
+{
+    @Label( "Stage" )
+    String stage;
+
+    @Label( "File" )
+    String file;
+
+    @Label( "Size" )
+    @DataAmount
+    long size;
+
+    static Object begin( String stage, String file, long size )
+    {
+        JarProcessingEvent event = new JarProcessingEvent();
+        if ( !event.isEnabled() )
+        {
+            return null;
+        }
+        event.stage = stage;
+        event.file = file;
+        event.size = size;
+        event.begin();
+        return event;
+    }
+
+    static void end( Object event )
+    {
+        JarProcessingEvent jarEvent = (JarProcessingEvent) event;
+        jarEvent.end();
+        if ( jarEvent.shouldCommit() )
+        {
+            jarEvent.commit();
+        }
+    }
+}
@@ -13,30 +13,130 @@ package org.sonatype.tycho.jnlp.pack200;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.eclipse.tycho.core.ArtifactDependencyVisitor;
 import org.eclipse.tycho.core.FeatureDescription;
 import org.eclipse.tycho.core.PluginDescription;
 import org.sonatype.tycho.jnlp.AbstractJnlpMojo;
+import org.sonatype.tycho.jnlp.BundlePool;
+import org.sonatype.tycho.jnlp.StageReport;
 
 public abstract class AbstractPack200Mojo
     extends AbstractJnlpMojo
 {
+    /**
+     * Maximum number of jars processed in parallel, defaults to number of available processors.
+     * 
+     * @parameter expression="${jnlp.pack200Threads}" default-value="0"
+     */
+    private int pack200Threads;
+
+    /**
+     * Heap in megabytes that jars processed in parallel may use together, estimated from their uncompressed size and
+     * number of classes. Defaults to half of the maximum heap. Only limits how many jars run at the same time, a jar
+     * that exceeds the budget on its own is started when nothing else is running.
+     * 
+     * @parameter expression="${jnlp.pack200HeapBudget}" default-value="0"
+     */
+    private long pack200HeapBudget;
+
+    /**
+     * Jars with more uncompressed bytes are normalized and packed in segments of pack200SegmentLimit bytes, which
+     * bounds the heap needed for large jars. 0 packs every jar as a single segment.
+     * 
+     * @parameter expression="${jnlp.pack200SegmentThreshold}" default-value="67108864"
+     */
+    private long pack200SegmentThreshold;
+
+    /**
+     * pack200 segment limit in bytes of jars larger than pack200SegmentThreshold.
+     * 
+     * @parameter expression="${jnlp.pack200SegmentLimit}" default-value="16777216"
+     */
+    private long pack200SegmentLimit;
+
+    private Pack200Scheduler scheduler;
+
+    private final Map<File, PluginDescription> plugins = new HashMap<File, PluginDescription>();
+
     public void execute()
         throws MojoExecutionException
     {
 
         // normalization is only needed when pack200 is used together with signing
         // overall flow
+        // (optionally reorder jar entries in class loading order, pack200 preserves entry order)
         // 1. pack
         // 2. unpack
         // 3. add or update META-INF/eclipse.inf
+        // (optionally recompress jar entries, which does not change entry contents)
         // 4. sign
         // 5. pack
         // To guarantee signature validity, both pack 1. and 5. must use exactly the same Packer properties
 
-        final ArrayList<Exception> exceptions = new ArrayList<Exception>();
+        final StageReport report = newStageReport();
+
+        final BundlePool pool = getBundlePool();
+
+        long budget =
+            pack200HeapBudget > 0 ? pack200HeapBudget * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 2;
+        scheduler =
+            new Pack200Scheduler( budget, pack200SegmentThreshold, pack200SegmentLimit, getThreads(), getLog() );
+        scheduler.setConditionNestedJars( isConditionNestedJars() );
+
+        Map<File, Exception> failures;
+        try
+        {
+            failures = scheduler.run( getArchives(), new Pack200Scheduler.Task()
+            {
+                public void run( File archive )
+                    throws IOException
+                {
+                    process( archive, report, pool );
+                }
+            } );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted", e );
+        }
+
+        for ( Map.Entry<File, Exception> failure : failures.entrySet() )
+        {
+            getLog().warn( "Could not pack200 jar " + failure.getKey().getAbsolutePath(), failure.getValue() );
+        }
+
+        writeStageReport( report );
+
+        if ( !failures.isEmpty() )
+        {
+            throw new MojoExecutionException( "Could not pack200 some jar files" );
+        }
+    }
+
+    /**
+     * @return {@code true} if nested jars are conditioned before normalization, in the slot of their jar
+     */
+    protected boolean isConditionNestedJars()
+    {
+        return false;
+    }
+
+    protected int getThreads()
+    {
+        return pack200Threads > 0 ? pack200Threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return writable plugin jars of the product, in dependency walk order
+     */
+    protected List<File> getArchives()
+    {
+        final List<File> archives = new ArrayList<File>();
 
         getDependencyWalker().walk( new ArtifactDependencyVisitor()
         {
@@ -49,6 +149,11 @@ public abstract class AbstractPack200Mojo
             @Override
             public void visitPlugin( PluginDescription plugin )
             {
+                if ( !isIncluded( plugin ) )
+                {
+                    return;
+                }
+
                 String id = plugin.getKey().getId();
                 String version = getVersion( plugin );
 
@@ -56,26 +161,103 @@ public abstract class AbstractPack200Mojo
 
                 if ( archive.isFile() && archive.canWrite() )
                 {
-                    try
-                    {
-                        process( archive );
-                    }
-                    catch ( IOException e )
-                    {
-                        getLog().warn( "Could not pack200 jar " + archive.getAbsolutePath(), e );
-                        exceptions.add( e );
-                    }
+                    archives.add( archive );
+                    plugins.put( archive, plugin );
                 }
             }
         } );
 
-        if ( !exceptions.isEmpty() )
+        return archives;
+    }
+
+    protected void process( File archive, StageReport report, BundlePool pool )
+        throws IOException
+    {
+        StageReport.Sample sample = report.start( getReportName( archive ), archive.length() );
+
+        File output = getOutputFile( archive );
+
+        boolean processed;
+        if ( pool != null )
         {
-            throw new MojoExecutionException( "Could not pack200 some jar files" );
+            BundlePool.Entry entry =
+                pool.lookup( archive, output, getClass().getSimpleName(), getPoolVariant( archive ) );
+            if ( entry.restore() )
+            {
+                restored( archive );
+                processed = true;
+            }
+            else
+            {
+                entry.detach();
+                processed = process( archive );
+                entry.store();
+            }
+        }
+        else
+        {
+            processed = process( archive );
         }
+
+        if ( processed )
+        {
+            sample.stop( output.isFile() ? output.length() : 0 );
+        }
+        else
+        {
+            sample.skip();
+        }
+    }
+
+    /**
+     * @return plugin of a jar returned by {@link #getArchives()}
+     */
+    protected PluginDescription getPlugin( File archive )
+    {
+        return plugins.get( archive );
+    }
+
+    /**
+     * @return segment limit for pack200 normalization of the jar, -1 for a single segment
+     */
+    protected long getSegmentLimit( File archive )
+    {
+        return scheduler.getSegmentLimit( archive );
+    }
+
+    /**
+     * @return estimated heap in bytes for pack200 processing of the jar
+     */
+    protected long getEstimatedHeap( File archive )
+    {
+        return scheduler.getEstimatedHeap( archive );
+    }
+
+    /**
+     * @return configuration of this goal that affects its output, part of the bundle pool key
+     */
+    protected String getPoolVariant( File archive )
+    {
+        return "";
+    }
+
+    /**
+     * Called instead of {@link #process(File)} when the output file was restored from the bundle pool.
+     */
+    protected void restored( File archive )
+        throws IOException
+    {
+    }
+
+    protected File getOutputFile( File archive )
+    {
+        return archive;
     }
 
-    protected abstract void process( File archive )
+    /**
+     * @return {@code false} if the archive was left unchanged and no output file was written
+     */
+    protected abstract boolean process( File archive )
         throws IOException;
 
 }
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.pack200;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Order in which classes were loaded, as recorded by -verbose:class JVM output or listed one class per line in a
+ * plain text file (either as java class name or as jar entry path). Traces are read as UTF-8, independent of the
+ * platform encoding of the build.
+ */
+public class ClassLoadOrder
+{
+    // [Loaded org.foo.Bar from file:/...]
+    private static final Pattern VERBOSE_CLASS = Pattern.compile( "^\\[Loaded (\\S+) from .*" );
+
+    // [0.012s][info][class,load] org.foo.Bar source: ...
+    private static final Pattern UNIFIED_LOGGING = Pattern.compile( ".*\\[class,load\\s*\\]\\s+(\\S+)(\\s.*)?" );
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private static final String ENCODING = "UTF-8";
+
+    private final Map<String, Integer> positions;
+
+    private ClassLoadOrder( Map<String, Integer> positions )
+    {
+        this.positions = positions;
+    }
+
+    public static ClassLoadOrder read( File trace )
+        throws IOException
+    {
+        Map<String, Integer> positions = new HashMap<String, Integer>();
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( trace ), ENCODING ) );
+        try
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                String entryName = toEntryName( line.trim() );
+                if ( entryName != null && !positions.containsKey( entryName ) )
+                {
+                    positions.put( entryName, Integer.valueOf( positions.size() ) );
+                }
+            }
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+
+        return new ClassLoadOrder( positions );
+    }
+
+    static String toEntryName( String line )
+    {
+        if ( line.length() == 0 || line.startsWith( "#" ) )
+        {
+            return null;
+        }
+
+        String className;
+
+        Matcher matcher = VERBOSE_CLASS.matcher( line );
+        if ( matcher.matches() )
+        {
+            className = matcher.group( 1 );
+        }
+        else
+        {
+            matcher = UNIFIED_LOGGING.matcher( line );
+            if ( matcher.matches() )
+            {
+                className = matcher.group( 1 );
+            }
+            else if ( line.startsWith( "[" ) || line.indexOf( ' ' ) >= 0 )
+            {
+                return null; // other jvm output
+            }
+            else if ( line.endsWith( CLASS_EXTENSION ) )
+            {
+                return line;
+            }
+            else
+            {
+                className = line;
+            }
+        }
+
+        return className.replace( '.', '/' ) + CLASS_EXTENSION;
+    }
+
+    /**
+     * @return {@code true} if any of the entries was recorded in the trace
+     */
+    public boolean containsAny( List<? extends ZipEntry> entries )
+    {
+        for ( ZipEntry entry : entries )
+        {
+            if ( positions.containsKey( entry.getName() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns entries ordered as META-INF/ directory, manifest, other META-INF/ entries (i.e. signature files), entries
+     * in class loading order, all remaining entries in their original order.
+     */
+    public <T extends ZipEntry> List<T> sort( List<T> entries )
+    {
+        final Map<String, Integer> original = new HashMap<String, Integer>();
+        for ( T entry : entries )
+        {
+            original.put( entry.getName(), Integer.valueOf( original.size() ) );
+        }
+
+        List<T> sorted = new ArrayList<T>( entries );
+        Collections.sort( sorted, new Comparator<T>()
+        {
+            public int compare( T a, T b )
+            {
+                int rank = rank( a.getName() ) - rank( b.getName() );
+                if ( rank != 0 )
+                {
+                    return rank;
+                }
+                Integer posA = positions.get( a.getName() );
+                Integer posB = positions.get( b.getName() );
+                if ( posA != null && posB != null )
+                {
+                    return posA.compareTo( posB );
+                }
+                return original.get( a.getName() ).compareTo( original.get( b.getName() ) );
+            }
+
+            private int rank( String name )
+            {
+                if ( "META-INF/".equals( name ) )
+                {
+                    return 0;
+                }
+                if ( JarFile.MANIFEST_NAME.equalsIgnoreCase( name ) )
+                {
+                    return 1;
+                }
+                if ( name.startsWith( "META-INF/" ) )
+                {
+                    return 2;
+                }
+                return positions.containsKey( name ) ? 3 : 4;
+            }
+        } );
+        return sorted;
+    }
+}
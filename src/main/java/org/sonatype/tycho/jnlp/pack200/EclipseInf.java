@@ -10,11 +10,18 @@
  *******************************************************************************/
 package org.sonatype.tycho.jnlp.pack200;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
 import java.util.zip.ZipEntry;
 
 import org.codehaus.plexus.util.IOUtil;
@@ -31,6 +38,15 @@ public class EclipseInf
 
     public static final String PACK200_CONDITIONED = "pack200.conditioned";
 
+    public static final String PACK200_ARGS = "pack200.args";
+
+    /**
+     * Set by reorder-jars, normalization keeps the order of the entries instead of sorting them by name.
+     */
+    public static final String ENTRIES_ORDERED = "jnlp.entries.ordered";
+
+    private static final String SEGMENT_LIMIT_ARG = "-S";
+
     private final Properties properties;
 
     private EclipseInf( Properties properties )
@@ -38,12 +54,26 @@ public class EclipseInf
         this.properties = properties;
     }
 
+    public boolean shouldProcess()
+    {
+        return !Boolean.parseBoolean( properties.getProperty( "jarprocessor.exclude" ) );
+    }
+
     public boolean shouldPack()
     {
         return !Boolean.parseBoolean( properties.getProperty( "jarprocessor.exclude" ) )
             && !Boolean.parseBoolean( properties.getProperty( "jarprocessor.exclude.pack" ) );
     }
 
+    /**
+     * @return {@code false} if nested jars must not be processed or packed
+     */
+    public boolean shouldProcessChildren()
+    {
+        return shouldPack() && !Boolean.parseBoolean( properties.getProperty( "jarprocessor.exclude.children" ) )
+            && !Boolean.parseBoolean( properties.getProperty( "jarprocessor.exclude.children.pack" ) );
+    }
+
     public boolean isPackNormalized()
     {
         return Boolean.parseBoolean( properties.getProperty( PACK200_CONDITIONED ) );
@@ -54,6 +84,75 @@ public class EclipseInf
         properties.put( PACK200_CONDITIONED, TRUE );
     }
 
+    public boolean isEntriesOrdered()
+    {
+        return Boolean.parseBoolean( properties.getProperty( ENTRIES_ORDERED ) );
+    }
+
+    public void setEntriesOrdered()
+    {
+        properties.put( ENTRIES_ORDERED, TRUE );
+    }
+
+    /**
+     * @return pack200 segment limit given in pack200.args as {@code -S<bytes>}, or -1 for a single segment
+     */
+    public long getPackSegmentLimit()
+    {
+        String args = properties.getProperty( PACK200_ARGS );
+        if ( args != null )
+        {
+            for ( String arg : args.trim().split( "\\s+" ) )
+            {
+                if ( arg.startsWith( SEGMENT_LIMIT_ARG ) && arg.length() > SEGMENT_LIMIT_ARG.length() )
+                {
+                    try
+                    {
+                        return Long.parseLong( arg.substring( SEGMENT_LIMIT_ARG.length() ) );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        // not a segment limit
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the segment limit in pack200.args, so jars are packed with the limit they were normalized with. Other
+     * pack200 arguments are kept.
+     */
+    public void setPackSegmentLimit( long segmentLimit )
+    {
+        StringBuilder sb = new StringBuilder();
+        String args = properties.getProperty( PACK200_ARGS );
+        if ( args != null )
+        {
+            for ( String arg : args.trim().split( "\\s+" ) )
+            {
+                if ( arg.length() > 0 && !arg.startsWith( SEGMENT_LIMIT_ARG ) )
+                {
+                    sb.append( arg ).append( ' ' );
+                }
+            }
+        }
+        if ( segmentLimit >= 0 )
+        {
+            sb.append( SEGMENT_LIMIT_ARG ).append( segmentLimit );
+        }
+        String newArgs = sb.toString().trim();
+        if ( newArgs.length() > 0 )
+        {
+            properties.put( PACK200_ARGS, newArgs );
+        }
+        else
+        {
+            properties.remove( PACK200_ARGS );
+        }
+    }
+
     public static EclipseInf readEclipseInf( JarFile jarFile )
         throws IOException
     {
@@ -76,11 +175,55 @@ public class EclipseInf
         return new EclipseInf( properties );
     }
 
+    /**
+     * Reads eclipse.inf of a jar from a stream, for example of a nested jar.
+     */
+    public static EclipseInf readEclipseInf( JarInputStream jis )
+        throws IOException
+    {
+        Properties properties = new Properties();
+
+        JarEntry entry;
+        while ( ( entry = jis.getNextJarEntry() ) != null )
+        {
+            if ( PATH_ECLIPSEINF.equals( entry.getName() ) )
+            {
+                properties.load( jis );
+                break;
+            }
+        }
+
+        return new EclipseInf( properties );
+    }
+
+    /**
+     * Properties file contents without the date comment written by {@link Properties#store}, with entries sorted by
+     * key and \n line separators, so the same properties always have the same bytes.
+     */
     public byte[] toByteArray()
         throws IOException
     {
         ByteArrayOutputStream buf = new ByteArrayOutputStream();
         properties.store( buf, null );
-        return buf.toByteArray();
+
+        // store() escapes line breaks in keys and values, each entry is one line
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new StringReader( buf.toString( "ISO-8859-1" ) ) );
+        String line;
+        while ( ( line = reader.readLine() ) != null )
+        {
+            if ( !line.startsWith( "#" ) )
+            {
+                lines.add( line );
+            }
+        }
+        Collections.sort( lines );
+
+        StringBuilder sb = new StringBuilder();
+        for ( String entry : lines )
+        {
+            sb.append( entry ).append( '\n' );
+        }
+        return sb.toString().getBytes( "ISO-8859-1" );
     }
 }
@@ -10,169 +10,99 @@
  *******************************************************************************/
 package org.sonatype.tycho.jnlp.pack200;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Pack200;
-import java.util.jar.Pack200.Packer;
-import java.util.jar.Pack200.Unpacker;
 
-import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.JarUtils;
+import org.sonatype.tycho.jnlp.worker.WorkerClient;
 
 /**
  * @goal pack200-normalize
+ * @threadSafe
  * @phase package
  */
 public class Pack200NormalizeMojo
     extends AbstractPack200Mojo
 {
+    /**
+     * If {@code true}, jars on the Bundle-ClassPath of plugins are normalized and stored uncompressed, with
+     * uncompressed entries, so gzip compression of .pack.gz and .jar.gz files applies to their class files. Makes
+     * plugin jars larger and their .pack.gz files smaller. Nested jars that are signed or excluded by
+     * jarprocessor.exclude.children.pack are not changed.
+     * 
+     * @parameter expression="${jnlp.conditionNestedJars}" default-value="false"
+     */
+    private boolean conditionNestedJars;
 
     @Override
-    protected void process( File jar )
+    protected boolean isConditionNestedJars()
+    {
+        return conditionNestedJars;
+    }
+
+    @Override
+    protected boolean process( File jar )
         throws IOException
     {
         JarFile jarFile = new JarFile( jar );
-        File jarpack = null;
-        File jarunpack = null;
+        boolean normalize;
+        boolean children;
         try
         {
             EclipseInf eclipseInf = EclipseInf.readEclipseInf( jarFile );
-            if ( eclipseInf.shouldPack() && !eclipseInf.isPackNormalized() && !isSigned( jarFile ) )
-            {
-                getLog().info( "Pack200 nomalizing jar " + jar.getAbsolutePath() );
-
-                jarpack = File.createTempFile( jar.getName(), ".pack" );
-
-                // 1. pack
-                try
-                {
-                    OutputStream os = new BufferedOutputStream( new FileOutputStream( jarpack ) );
-                    try
-                    {
-                        Packer packer = Pack200.newPacker();
-                        packer.pack( jarFile, os );
-                    }
-                    finally
-                    {
-                        IOUtil.close( os );
-                    }
-                }
-                finally
-                {
-                    try
-                    {
-                        jarFile.close();
-                    }
-                    catch ( IOException e )
-                    {
-                        // ignore
-                    }
-                    finally
-                    {
-                        jarFile = null; // prevent double-close in the outer finally block
-                    }
-                }
-
-                // 2. unpack
-                jarunpack = File.createTempFile( jar.getName(), ".unpack" );
-                JarOutputStream jos =
-                    new JarOutputStream( new BufferedOutputStream( new FileOutputStream( jarunpack ) ) );
-                try
-                {
-                    Unpacker unpacker = Pack200.newUnpacker();
-                    unpacker.unpack( jarpack, jos );
-                }
-                finally
-                {
-                    IOUtil.close( jos );
-                }
-
-                // 3. add or update META-INF/eclipse.inf
-                eclipseInf.setPackNormalized();
-                jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( jar ) ) );
-                try
-                {
-                    jarFile = new JarFile( jarunpack );
-                    Enumeration<JarEntry> entries = jarFile.entries();
-                    while ( entries.hasMoreElements() )
-                    {
-                        JarEntry entry = entries.nextElement();
-                        if ( !entry.getName().equals( EclipseInf.PATH_ECLIPSEINF ) )
-                        {
-                            copyJarEntry( jarFile, entry, jos );
-                        }
-                    }
-                    JarEntry entry = new JarEntry( EclipseInf.PATH_ECLIPSEINF );
-                    jos.putNextEntry( entry );
-                    jos.write( eclipseInf.toByteArray() );
-                    jos.closeEntry();
-                }
-                finally
-                {
-                    IOUtil.close( jos );
-                }
-            }
+            normalize = eclipseInf.shouldPack() && !eclipseInf.isPackNormalized() && !JarUtils.isSigned( jarFile );
+            children = eclipseInf.shouldProcessChildren();
         }
         finally
         {
-            if ( jarFile != null )
-            {
-                try
-                {
-                    jarFile.close();
-                }
-                catch ( IOException e )
-                {
-                    // ignore
-                }
-            }
-            if ( jarpack != null )
+            try
             {
-                jarpack.delete();
+                jarFile.close();
             }
-            if ( jarunpack != null )
+            catch ( IOException e )
             {
-                jarunpack.delete();
+                // ignore
             }
         }
-    }
 
-    private boolean isSigned( JarFile jarFile )
-        throws IOException
-    {
-        Enumeration<JarEntry> entries = jarFile.entries();
-        while ( entries.hasMoreElements() )
+        if ( normalize )
         {
-            JarEntry entry = entries.nextElement();
-            String name = entry.getName();
-            if ( name.startsWith( "META-INF/" ) && name.endsWith( ".SF" ) )
+            Pack200Processor processor = new Pack200Processor();
+            if ( conditionNestedJars && children )
             {
-                return true;
+                int nested = processor.conditionNestedJars( jar );
+                if ( nested > 0 )
+                {
+                    getLog().info( "Pack200 conditioned " + nested + " nested jars of " + jar.getAbsolutePath() );
+                }
+            }
+            getLog().info( "Pack200 nomalizing jar " + jar.getAbsolutePath() );
+            WorkerClient worker = getWorker();
+            if ( worker != null )
+            {
+                worker.normalize( jar, getSegmentLimit( jar ), getEstimatedHeap( jar ) );
+            }
+            else
+            {
+                processor.normalize( jar, getSegmentLimit( jar ) );
             }
         }
-        return false;
+        return normalize;
     }
 
-    private void copyJarEntry( JarFile jarFile, JarEntry entry, JarOutputStream jos )
-        throws IOException
+    /**
+     * Jars normalized in segments, or with conditioned nested jars, differ from jars normalized as one segment.
+     */
+    @Override
+    protected String getPoolVariant( File jar )
     {
-        jos.putNextEntry( entry );
-
-        InputStream is = jarFile.getInputStream( entry );
-        byte[] buf = new byte[4096];
-        int n;
-        while ( ( n = is.read( buf ) ) != -1 )
+        long segmentLimit = getSegmentLimit( jar );
+        String variant = segmentLimit >= 0 ? "segmentLimit=" + segmentLimit : "";
+        if ( conditionNestedJars )
         {
-            jos.write( buf, 0, n );
+            variant += ",conditionNestedJars";
         }
-
-        jos.closeEntry();
+        return variant;
     }
 }
@@ -10,22 +10,22 @@
  *******************************************************************************/
 package org.sonatype.tycho.jnlp.pack200;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.net.URL;
 import java.util.jar.JarFile;
-import java.util.jar.Pack200;
-import java.util.jar.Pack200.Packer;
-import java.util.zip.GZIPOutputStream;
 
-import org.codehaus.plexus.util.IOUtil;
+import org.apache.maven.model.Repository;
+import org.codehaus.plexus.util.FileUtils;
+import org.eclipse.tycho.core.PluginDescription;
+import org.sonatype.tycho.jnlp.gzip.GzipCompressor;
+import org.sonatype.tycho.jnlp.worker.WorkerClient;
 
 /**
  * http://docs.oracle.com/javase/6/docs/technotes/guides/jweb/tools/pack200.html
  * 
  * @goal pack200-pack
+ * @threadSafe
  * @phase package
  */
 public class Pack200Pack
@@ -37,37 +37,42 @@ public class Pack200Pack
      */
     private boolean deleteUnpackedJars;
 
+    /**
+     * If {@code true}, .pack.gz files are deflated with iterative optimal parsing, which makes them a few percent
+     * smaller at the cost of much longer build time, see gzip goal.
+     * 
+     * @parameter expression="${jnlp.exhaustiveGzip}" default-value="false"
+     */
+    private boolean exhaustiveGzip;
+
+    /**
+     * If {@code true}, the .pack.gz of a pack200 conditioned third-party plugin is copied from a p2 repository of the
+     * project with file: URL instead of packing the jar, if the jar is unchanged since it was resolved. Jars modified by
+     * earlier goals are packed. Together with skipSignedJars of sign-jars, jars that were signed upstream with the
+     * certificate sign-jars uses are not signed again, so their packed artifact is reused.
+     * 
+     * @parameter expression="${jnlp.reuseUpstreamPacked}" default-value="false"
+     */
+    private boolean reuseUpstreamPacked;
+
     @Override
-    protected void process( File jar )
+    protected File getOutputFile( File jar )
+    {
+        return new File( jar.getParentFile(), jar.getName() + ".pack.gz" );
+    }
+
+    @Override
+    protected boolean process( File jar )
         throws IOException
     {
         JarFile jarFile = new JarFile( jar );
+        boolean pack;
+        long segmentLimit;
         try
         {
             EclipseInf eclipseInf = EclipseInf.readEclipseInf( jarFile );
-            if ( eclipseInf.shouldPack() && eclipseInf.isPackNormalized() )
-            {
-                getLog().info( "Pack200 packing jar " + jar.getAbsolutePath() );
-
-                File jarpackgz = new File( jar.getCanonicalPath() + ".pack.gz" );
-                OutputStream os = new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( jarpackgz ) ) );
-                try
-                {
-                    Packer packer = Pack200.newPacker();
-                    packer.pack( jarFile, os );
-                }
-                finally
-                {
-                    IOUtil.close( os );
-                }
-                if ( deleteUnpackedJars )
-                {
-                    if ( !jar.delete() )
-                    {
-                        throw new IOException( "Could not delete jar " + jar.getAbsolutePath() );
-                    }
-                }
-            }
+            pack = eclipseInf.shouldPack() && eclipseInf.isPackNormalized();
+            segmentLimit = eclipseInf.getPackSegmentLimit();
         }
         finally
         {
@@ -80,5 +85,96 @@ public class Pack200Pack
                 // ignore
             }
         }
+
+        File upstream = pack && reuseUpstreamPacked ? getUpstreamPackedFile( jar ) : null;
+
+        if ( upstream != null )
+        {
+            getLog().info( "Pack200 reusing " + upstream.getAbsolutePath() + " for jar " + jar.getAbsolutePath() );
+
+            FileUtils.copyFile( upstream, getOutputFile( jar ) );
+
+            deleteUnpackedJar( jar );
+        }
+        else if ( pack )
+        {
+            getLog().info( "Pack200 packing jar " + jar.getAbsolutePath() );
+
+            WorkerClient worker = getWorker();
+            if ( worker != null )
+            {
+                worker.pack( jar, getOutputFile( jar ), exhaustiveGzip, segmentLimit, getEstimatedHeap( jar ) );
+            }
+            else
+            {
+                GzipCompressor compressor = new GzipCompressor( exhaustiveGzip );
+                new Pack200Processor().pack( jar, getOutputFile( jar ), compressor, segmentLimit );
+            }
+
+            deleteUnpackedJar( jar );
+        }
+        return pack;
+    }
+
+    /**
+     * Looks for the packed artifact next to the canonical artifact in p2 repositories of the project with file: URLs
+     * (plugins/&lt;id&gt;_&lt;version&gt;.jar.pack.gz). Since the jar was conditioned before it was packed upstream,
+     * the packed artifact is valid for the jar as long as the jar is the unchanged canonical artifact, which is
+     * checked by size and contents.
+     * 
+     * @return upstream packed artifact of the jar, or {@code null} if there is none or the jar was changed
+     */
+    private File getUpstreamPackedFile( File jar )
+        throws IOException
+    {
+        PluginDescription plugin = getPlugin( jar );
+        if ( plugin == null )
+        {
+            return null;
+        }
+
+        String id = plugin.getKey().getId();
+        String version = plugin.getKey().getVersion();
+
+        for ( Repository repository : project.getRepositories() )
+        {
+            if ( "p2".equals( repository.getLayout() ) && repository.getUrl().startsWith( "file:" ) )
+            {
+                File directory = new File( FileUtils.toFile( new URL( repository.getUrl() ) ), "plugins" );
+                File packed = new File( directory, id + "_" + version + ".jar.pack.gz" );
+                File canonical = new File( directory, id + "_" + version + ".jar" );
+                if ( packed.isFile() && canonical.isFile() && canonical.length() == jar.length()
+                    && FileUtils.contentEquals( canonical, jar ) )
+                {
+                    return packed;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected String getPoolVariant( File jar )
+    {
+        return "exhaustiveGzip=" + exhaustiveGzip;
+    }
+
+    @Override
+    protected void restored( File jar )
+        throws IOException
+    {
+        deleteUnpackedJar( jar );
+    }
+
+    private void deleteUnpackedJar( File jar )
+        throws IOException
+    {
+        if ( deleteUnpackedJars )
+        {
+            if ( !jar.delete() )
+            {
+                throw new IOException( "Could not delete jar " + jar.getAbsolutePath() );
+            }
+        }
     }
 }
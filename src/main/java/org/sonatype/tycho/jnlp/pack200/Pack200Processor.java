@@ -0,0 +1,568 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.pack200;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.jar.Pack200;
+import java.util.jar.Pack200.Packer;
+import java.util.jar.Pack200.Unpacker;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.JarUtils;
+import org.sonatype.tycho.jnlp.gzip.GzipCompressor;
+import org.sonatype.tycho.jnlp.jfr.JarEvents;
+
+/**
+ * Pack200 normalization and packing of a single jar, independent of Maven mojo execution.
+ */
+public class Pack200Processor
+{
+    /**
+     * Modification time of all entries of normalized jars. Zip entries store local date and time, this is midnight
+     * January 1st, 2000 in every time zone.
+     */
+    static final long ENTRY_TIME = new GregorianCalendar( 2000, Calendar.JANUARY, 1 ).getTimeInMillis();
+
+    private static final String META_INF = "META-INF/";
+
+    /**
+     * META-INF/ directory, manifest (both must come first for JarInputStream), other META-INF/ entries, then all
+     * other entries, each group sorted by name.
+     */
+    private static final Comparator<ZipEntry> ENTRY_ORDER = new Comparator<ZipEntry>()
+    {
+        public int compare( ZipEntry a, ZipEntry b )
+        {
+            int rank = rank( a.getName() ) - rank( b.getName() );
+            return rank != 0 ? rank : a.getName().compareTo( b.getName() );
+        }
+
+        private int rank( String name )
+        {
+            if ( META_INF.equals( name ) )
+            {
+                return 0;
+            }
+            if ( JarFile.MANIFEST_NAME.equalsIgnoreCase( name ) )
+            {
+                return 1;
+            }
+            return name.startsWith( META_INF ) ? 2 : 3;
+        }
+    };
+
+    /**
+     * Packs and unpacks the jar in place and marks it as pack200 conditioned in META-INF/eclipse.inf. Temporary files
+     * are created next to the jar, inside the project build directory. The result only depends on the jar contents:
+     * entries are sorted by name, unless reorder-jars ordered them, all entries get the same fixed modification time,
+     * and eclipse.inf is written without date. pack200 keeps entry order and modification times, so the normalized jar
+     * still packs and unpacks to itself.
+     * 
+     * @param segmentLimit pack200 segment limit in bytes, or -1 to pack the whole jar as one segment. A limit is
+     *            recorded in eclipse.inf pack200.args, {@link #pack(File, File, GzipCompressor, long)} must be called
+     *            with the same limit.
+     */
+    public void normalize( File jar, long segmentLimit )
+        throws IOException
+    {
+        JarFile jarFile = new JarFile( jar );
+        File jarpack = null;
+        File jarunpack = null;
+        try
+        {
+            EclipseInf eclipseInf = EclipseInf.readEclipseInf( jarFile );
+
+            jarpack = File.createTempFile( jar.getName(), ".pack", jar.getParentFile() );
+
+            // 1. pack
+            Object event = JarEvents.begin( JarEvents.NORMALIZE_PACK, jar );
+            try
+            {
+                OutputStream os = new BufferedOutputStream( new FileOutputStream( jarpack ) );
+                try
+                {
+                    newPacker( segmentLimit ).pack( jarFile, os );
+                }
+                finally
+                {
+                    IOUtil.close( os );
+                }
+            }
+            finally
+            {
+                try
+                {
+                    jarFile.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+                finally
+                {
+                    jarFile = null; // prevent double-close in the outer finally block
+                }
+                JarEvents.end( event );
+            }
+
+            // 2. unpack
+            jarunpack = File.createTempFile( jar.getName(), ".unpack", jar.getParentFile() );
+            event = JarEvents.begin( JarEvents.NORMALIZE_UNPACK, jarpack );
+            JarOutputStream jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( jarunpack ) ) );
+            try
+            {
+                Unpacker unpacker = Pack200.newUnpacker();
+                unpacker.unpack( jarpack, jos );
+            }
+            finally
+            {
+                IOUtil.close( jos );
+                JarEvents.end( event );
+            }
+
+            // 3. add or update META-INF/eclipse.inf
+            eclipseInf.setPackNormalized();
+            eclipseInf.setPackSegmentLimit( segmentLimit );
+            event = JarEvents.begin( JarEvents.NORMALIZE_REWRITE, jarunpack );
+            jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( jar ) ) );
+            try
+            {
+                jarFile = new JarFile( jarunpack );
+                List<JarEntry> entries = new ArrayList<JarEntry>();
+                for ( JarEntry entry : Collections.list( jarFile.entries() ) )
+                {
+                    if ( !entry.getName().equals( EclipseInf.PATH_ECLIPSEINF ) )
+                    {
+                        entries.add( entry );
+                    }
+                }
+                if ( !eclipseInf.isEntriesOrdered() )
+                {
+                    Collections.sort( entries, ENTRY_ORDER );
+                }
+                boolean written = false;
+                for ( JarEntry entry : entries )
+                {
+                    if ( !written && !entry.getName().startsWith( META_INF ) )
+                    {
+                        writeEclipseInf( eclipseInf, jos );
+                        written = true;
+                    }
+                    copyJarEntry( jarFile, entry, jos );
+                }
+                if ( !written )
+                {
+                    writeEclipseInf( eclipseInf, jos );
+                }
+            }
+            finally
+            {
+                IOUtil.close( jos );
+                JarEvents.end( event );
+            }
+        }
+        finally
+        {
+            if ( jarFile != null )
+            {
+                try
+                {
+                    jarFile.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+            if ( jarpack != null )
+            {
+                jarpack.delete();
+            }
+            if ( jarunpack != null )
+            {
+                jarunpack.delete();
+            }
+        }
+    }
+
+    /**
+     * Conditions the jars on the Bundle-ClassPath of the jar: each nested jar is pack200 normalized, marked in its own
+     * eclipse.inf like any other conditioned jar, and stored uncompressed with uncompressed entries. pack200 passes
+     * nested jars through as opaque files, and the gzip compression of .pack.gz and .jar.gz files then applies to the
+     * nested class files instead of to already deflated data. Signed nested jars and nested jars excluded by their
+     * eclipse.inf are not changed. Nested jars are processed one after another in the calling thread, within the heap
+     * admitted for the jar. Must be called before {@link #normalize(File, long)} of the jar itself.
+     * 
+     * @return number of conditioned nested jars
+     */
+    public int conditionNestedJars( File jar )
+        throws IOException
+    {
+        Map<String, File> conditioned = new LinkedHashMap<String, File>();
+        List<File> tempFiles = new ArrayList<File>();
+        try
+        {
+            File rewritten = conditionNestedJars( jar, conditioned, tempFiles );
+            if ( rewritten != null )
+            {
+                JarUtils.replace( rewritten, jar );
+            }
+            return conditioned.size();
+        }
+        finally
+        {
+            for ( File tempFile : tempFiles )
+            {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return rewritten jar, or {@code null} if no nested jar was conditioned
+     */
+    private File conditionNestedJars( File jar, Map<String, File> conditioned, List<File> tempFiles )
+        throws IOException
+    {
+        JarFile jarFile = new JarFile( jar );
+        try
+        {
+            for ( String path : getNestedJars( jarFile ) )
+            {
+                File nested = File.createTempFile( jar.getName(), ".nested", jar.getParentFile() );
+                tempFiles.add( nested );
+                InputStream is = jarFile.getInputStream( jarFile.getEntry( path ) );
+                OutputStream os = new BufferedOutputStream( new FileOutputStream( nested ) );
+                try
+                {
+                    IOUtil.copy( is, os );
+                }
+                finally
+                {
+                    IOUtil.close( is );
+                    IOUtil.close( os );
+                }
+                try
+                {
+                    if ( conditionNestedJar( nested ) )
+                    {
+                        conditioned.put( path, nested );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    IOException ioe = new IOException( "Could not condition nested jar " + path );
+                    ioe.initCause( e );
+                    throw ioe;
+                }
+            }
+            if ( conditioned.isEmpty() )
+            {
+                return null;
+            }
+
+            File rewritten = File.createTempFile( jar.getName(), ".nested", jar.getParentFile() );
+            tempFiles.add( rewritten );
+            ZipOutputStream zos = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( rewritten ) ) );
+            try
+            {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while ( entries.hasMoreElements() )
+                {
+                    JarEntry entry = entries.nextElement();
+                    File nested = conditioned.get( entry.getName() );
+                    if ( nested != null )
+                    {
+                        putStoredEntry( zos, entry, readFile( nested ) );
+                    }
+                    else
+                    {
+                        JarUtils.copyEntry( jarFile, entry, zos );
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( zos );
+            }
+            return rewritten;
+        }
+        finally
+        {
+            try
+            {
+                jarFile.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the nested jar was conditioned
+     */
+    private boolean conditionNestedJar( File nested )
+        throws IOException
+    {
+        JarFile jarFile = new JarFile( nested );
+        EclipseInf eclipseInf;
+        boolean signed;
+        try
+        {
+            eclipseInf = EclipseInf.readEclipseInf( jarFile );
+            signed = JarUtils.isSigned( jarFile );
+        }
+        finally
+        {
+            try
+            {
+                jarFile.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+        if ( signed || !eclipseInf.shouldPack() )
+        {
+            return false;
+        }
+
+        if ( !eclipseInf.isPackNormalized() )
+        {
+            normalize( nested, -1 );
+        }
+
+        // store all entries uncompressed
+        File stored = File.createTempFile( nested.getName(), ".stored", nested.getParentFile() );
+        try
+        {
+            jarFile = new JarFile( nested );
+            ZipOutputStream zos = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( stored ) ) );
+            try
+            {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while ( entries.hasMoreElements() )
+                {
+                    JarEntry entry = entries.nextElement();
+                    InputStream is = jarFile.getInputStream( entry );
+                    try
+                    {
+                        putStoredEntry( zos, entry, IOUtil.toByteArray( is ) );
+                    }
+                    finally
+                    {
+                        IOUtil.close( is );
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( zos );
+                try
+                {
+                    jarFile.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+            JarUtils.replace( stored, nested );
+        }
+        finally
+        {
+            stored.delete();
+        }
+        return true;
+    }
+
+    /**
+     * @return jars on the Bundle-ClassPath that are entries of the jar
+     */
+    static List<String> getNestedJars( JarFile jarFile )
+        throws IOException
+    {
+        List<String> nested = new ArrayList<String>();
+        Manifest manifest = jarFile.getManifest();
+        String classPath = manifest != null ? manifest.getMainAttributes().getValue( "Bundle-ClassPath" ) : null;
+        if ( classPath != null )
+        {
+            for ( String element : classPath.split( "," ) )
+            {
+                String path = element.split( ";" )[0].trim();
+                if ( path.startsWith( "/" ) )
+                {
+                    path = path.substring( 1 );
+                }
+                ZipEntry entry = jarFile.getEntry( path );
+                if ( path.endsWith( ".jar" ) && entry != null && !entry.isDirectory() && !nested.contains( path ) )
+                {
+                    nested.add( path );
+                }
+            }
+        }
+        return nested;
+    }
+
+    private static void putStoredEntry( ZipOutputStream zos, ZipEntry entry, byte[] data )
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data );
+
+        ZipEntry target = new ZipEntry( entry.getName() );
+        target.setTime( entry.getTime() );
+        target.setComment( entry.getComment() );
+        target.setExtra( entry.getExtra() );
+        target.setMethod( ZipEntry.STORED );
+        target.setSize( data.length );
+        target.setCompressedSize( data.length );
+        target.setCrc( crc.getValue() );
+
+        zos.putNextEntry( target );
+        zos.write( data );
+        zos.closeEntry();
+    }
+
+    private static byte[] readFile( File file )
+        throws IOException
+    {
+        InputStream is = new FileInputStream( file );
+        try
+        {
+            return IOUtil.toByteArray( is );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    /**
+     * Writes pack200 gzip compressed jar to the packed file.
+     * 
+     * @param segmentLimit segment limit the jar was normalized with, see {@link EclipseInf#getPackSegmentLimit()}
+     */
+    public void pack( File jar, File packed, GzipCompressor compressor, long segmentLimit )
+        throws IOException
+    {
+        Object event = JarEvents.begin( JarEvents.PACK, jar );
+        try
+        {
+            JarFile jarFile = new JarFile( jar );
+            try
+            {
+                OutputStream os =
+                    compressor.newOutputStream( new BufferedOutputStream( new FileOutputStream( packed ) ) );
+                try
+                {
+                    newPacker( segmentLimit ).pack( jarFile, os );
+                    os.close();
+                }
+                finally
+                {
+                    IOUtil.close( os );
+                }
+            }
+            finally
+            {
+                try
+                {
+                    jarFile.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+        }
+        finally
+        {
+            JarEvents.end( event );
+        }
+    }
+
+    /**
+     * Packer with default properties, except for the segment limit. With more than one segment, the packer only holds
+     * the class model of the current segment in memory.
+     */
+    private static Packer newPacker( long segmentLimit )
+    {
+        Packer packer = Pack200.newPacker();
+        packer.properties().put( Packer.SEGMENT_LIMIT, Long.toString( segmentLimit ) );
+        return packer;
+    }
+
+    private static void writeEclipseInf( EclipseInf eclipseInf, JarOutputStream jos )
+        throws IOException
+    {
+        JarEntry entry = new JarEntry( EclipseInf.PATH_ECLIPSEINF );
+        entry.setTime( ENTRY_TIME );
+        jos.putNextEntry( entry );
+        jos.write( eclipseInf.toByteArray() );
+        jos.closeEntry();
+    }
+
+    /**
+     * Copies the entry with fixed modification time.
+     */
+    private void copyJarEntry( JarFile jarFile, JarEntry entry, JarOutputStream jos )
+        throws IOException
+    {
+        JarEntry target = new JarEntry( entry.getName() );
+        target.setTime( ENTRY_TIME );
+        target.setComment( entry.getComment() );
+        target.setExtra( entry.getExtra() );
+        target.setMethod( entry.getMethod() );
+        if ( entry.getMethod() == ZipEntry.STORED )
+        {
+            target.setSize( entry.getSize() );
+            target.setCompressedSize( entry.getSize() );
+            target.setCrc( entry.getCrc() );
+        }
+        jos.putNextEntry( target );
+
+        InputStream is = jarFile.getInputStream( entry );
+        byte[] buf = new byte[4096];
+        int n;
+        while ( ( n = is.read( buf ) ) != -1 )
+        {
+            jos.write( buf, 0, n );
+        }
+
+        jos.closeEntry();
+    }
+}
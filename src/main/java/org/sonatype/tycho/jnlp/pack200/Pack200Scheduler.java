@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.pack200;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Runs pack200 work for several jars in parallel within a heap budget. The packer holds the class model of a whole
+ * segment, by default the whole jar, in memory, so the heap needed for a jar is estimated from its uncompressed size
+ * and number of classes. Jars are started largest first, which keeps the long running jars from ending up at the end
+ * of the build, and a jar is only started while the estimated heap of all running jars, including those of other
+ * projects of a parallel build, stays within the budget. A jar is always started when nothing else is running. Nested
+ * jars conditioned during normalization are processed in the slot of their jar and count with their uncompressed size.
+ * <p>
+ * Jars with more uncompressed bytes than the segment threshold are packed in segments of the configured segment limit.
+ * Whether and how a jar is segmented only depends on the jar and the configuration, never on the heap of the build
+ * JVM, so builds with different heap sizes produce the same pack200 output. The limit is chosen during normalization
+ * and recorded in eclipse.inf, see {@link EclipseInf#getPackSegmentLimit()}, packing must use the same limit.
+ */
+class Pack200Scheduler
+{
+    /**
+     * Heap used by the packer independent of the jar.
+     */
+    static final long PACKER_OVERHEAD = 4L * 1024 * 1024;
+
+    /**
+     * Class model heap per byte of uncompressed entries of one segment.
+     */
+    static final long MODEL_BYTES_FACTOR = 4;
+
+    /**
+     * Class model heap per class of one segment, constant pool and attribute bands.
+     */
+    static final long MODEL_CLASS_BYTES = 4L * 1024;
+
+    /**
+     * Heap per byte of uncompressed entries outside of the class model, the packed jar is buffered for gzip
+     * compression.
+     */
+    static final long BUFFER_BYTES_FACTOR = 1;
+
+    interface Task
+    {
+        void run( File jar )
+            throws IOException;
+    }
+
+    static class Job
+    {
+        final File jar;
+
+        final long uncompressedBytes;
+
+        final int classes;
+
+        final long largestEntry;
+
+        long segmentLimit;
+
+        long cost;
+
+        Job( File jar, long uncompressedBytes, int classes, long largestEntry )
+        {
+            this.jar = jar;
+            this.uncompressedBytes = uncompressedBytes;
+            this.classes = classes;
+            this.largestEntry = largestEntry;
+        }
+
+        long estimate( long limit )
+        {
+            long model = MODEL_BYTES_FACTOR * uncompressedBytes + MODEL_CLASS_BYTES * classes;
+            if ( limit >= 0 )
+            {
+                // a segment holds at least one entry
+                long segmentBytes = Math.max( limit, largestEntry );
+                if ( segmentBytes < uncompressedBytes )
+                {
+                    model = (long) ( (double) model * segmentBytes / uncompressedBytes );
+                }
+            }
+            return PACKER_OVERHEAD + model + BUFFER_BYTES_FACTOR * uncompressedBytes;
+        }
+    }
+
+    /**
+     * Estimated heap of running jars and number of running jars of all schedulers in this JVM.
+     */
+    private static final Object LOCK = new Object();
+
+    private static long used;
+
+    private static int running;
+
+    private final long budget;
+
+    private final long segmentThreshold;
+
+    private final long segmentLimit;
+
+    private final int threads;
+
+    private final Log log;
+
+    private final Map<File, Job> jobs = new HashMap<File, Job>();
+
+    private boolean conditionNestedJars;
+
+    private int active;
+
+    private long peak;
+
+    /**
+     * @param budget heap budget in bytes
+     * @param segmentThreshold uncompressed size in bytes above which jars are packed in segments, 0 for never
+     * @param segmentLimit segment limit in bytes of jars above the segment threshold
+     * @param threads maximum number of jars processed at the same time
+     */
+    Pack200Scheduler( long budget, long segmentThreshold, long segmentLimit, int threads, Log log )
+    {
+        this.budget = budget;
+        this.segmentThreshold = segmentThreshold;
+        this.segmentLimit = segmentLimit;
+        this.threads = threads;
+        this.log = log;
+    }
+
+    /**
+     * Jars on the Bundle-ClassPath are conditioned before normalization, in the slot of the jar, their uncompressed
+     * size counts for the jar.
+     */
+    void setConditionNestedJars( boolean conditionNestedJars )
+    {
+        this.conditionNestedJars = conditionNestedJars;
+    }
+
+    /**
+     * @return segment limit of the jar chosen by {@link #run(List, Task)}, or -1 for a single segment
+     */
+    long getSegmentLimit( File jar )
+    {
+        Job job;
+        synchronized ( jobs )
+        {
+            job = jobs.get( jar );
+        }
+        return job != null ? job.segmentLimit : -1;
+    }
+
+    /**
+     * @return estimated heap of the jar in bytes, or 0 if the jar is not scheduled
+     */
+    long getEstimatedHeap( File jar )
+    {
+        Job job;
+        synchronized ( jobs )
+        {
+            job = jobs.get( jar );
+        }
+        return job != null ? job.cost : 0;
+    }
+
+    /**
+     * Runs the task for all jars, largest first, and waits until all are done.
+     * 
+     * @return exceptions of failed jars
+     */
+    Map<File, Exception> run( List<File> jars, final Task task )
+        throws InterruptedException
+    {
+        Map<File, Exception> failures = new LinkedHashMap<File, Exception>();
+
+        List<Job> queue = new ArrayList<Job>();
+        for ( File jar : jars )
+        {
+            try
+            {
+                Job job = newJob( jar );
+                synchronized ( jobs )
+                {
+                    jobs.put( jar, job );
+                }
+                queue.add( job );
+            }
+            catch ( IOException e )
+            {
+                failures.put( jar, e );
+            }
+        }
+        Collections.sort( queue, new Comparator<Job>()
+        {
+            public int compare( Job o1, Job o2 )
+            {
+                return o1.cost > o2.cost ? -1 : ( o1.cost < o2.cost ? 1 : 0 );
+            }
+        } );
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            Map<Job, Future<Object>> futures = new LinkedHashMap<Job, Future<Object>>();
+            for ( final Job job : queue )
+            {
+                acquire( job.cost );
+                futures.put( job, executor.submit( new Callable<Object>()
+                {
+                    public Object call()
+                        throws IOException
+                    {
+                        try
+                        {
+                            task.run( job.jar );
+                        }
+                        finally
+                        {
+                            release( job.cost );
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Map.Entry<Job, Future<Object>> entry : futures.entrySet() )
+            {
+                try
+                {
+                    entry.getValue().get();
+                }
+                catch ( ExecutionException e )
+                {
+                    failures.put( entry.getKey().jar,
+                                  e.getCause() instanceof Exception ? (Exception) e.getCause() : e );
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        log.debug( "Pack200 peak estimated heap " + toMegabytes( peak ) + " MB, budget " + toMegabytes( budget )
+            + " MB" );
+
+        return failures;
+    }
+
+    private Job newJob( File jar )
+        throws IOException
+    {
+        long uncompressed = 0;
+        int classes = 0;
+        long largest = 0;
+        long nestedBytes = 0;
+        EclipseInf eclipseInf;
+        JarFile jarFile = new JarFile( jar );
+        try
+        {
+            eclipseInf = EclipseInf.readEclipseInf( jarFile );
+            List<String> nestedJars =
+                conditionNestedJars && eclipseInf.shouldProcessChildren() ? Pack200Processor.getNestedJars( jarFile )
+                                : Collections.<String> emptyList();
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while ( entries.hasMoreElements() )
+            {
+                JarEntry entry = entries.nextElement();
+                long size = entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize();
+                if ( nestedJars.contains( entry.getName() ) )
+                {
+                    // conditioned nested jars are normalized in the slot of the jar and stored uncompressed
+                    JarInputStream is = new JarInputStream( jarFile.getInputStream( entry ) );
+                    try
+                    {
+                        size = 0;
+                        JarEntry nestedEntry;
+                        while ( ( nestedEntry = is.getNextJarEntry() ) != null )
+                        {
+                            size += count( is );
+                            if ( nestedEntry.getName().endsWith( ".class" ) )
+                            {
+                                classes++;
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        IOUtil.close( is );
+                    }
+                    nestedBytes += size;
+                }
+                uncompressed += Math.max( 0, size );
+                largest = Math.max( largest, size );
+                if ( entry.getName().endsWith( ".class" ) )
+                {
+                    classes++;
+                }
+            }
+        }
+        finally
+        {
+            try
+            {
+                jarFile.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+
+        if ( nestedBytes > 0 )
+        {
+            log.info( "Pack200 jar " + jar.getAbsolutePath() + " has nested jars with " + nestedBytes
+                + " uncompressed bytes, included in its estimated heap" );
+        }
+
+        Job job = new Job( jar, uncompressed, classes, largest );
+
+        // normalized jars must be packed with the segment limit they were normalized with
+        job.segmentLimit = eclipseInf.getPackSegmentLimit();
+        if ( !eclipseInf.isPackNormalized() && job.segmentLimit < 0 && segmentThreshold > 0
+            && uncompressed > segmentThreshold )
+        {
+            job.segmentLimit = segmentLimit;
+            log.info( "Pack200 jar " + jar.getAbsolutePath() + " has " + uncompressed
+                + " uncompressed bytes, more than the segment threshold of " + segmentThreshold
+                + " bytes, packing in segments of " + segmentLimit + " bytes" );
+        }
+        job.cost = job.estimate( job.segmentLimit );
+
+        log.debug( "Pack200 jar " + jar.getName() + ": " + uncompressed + " bytes, " + classes
+            + " classes, segment limit " + job.segmentLimit + ", estimated heap " + toMegabytes( job.cost ) + " MB" );
+
+        return job;
+    }
+
+    private void acquire( long cost )
+        throws InterruptedException
+    {
+        synchronized ( LOCK )
+        {
+            while ( active >= threads || ( running > 0 && used + cost > budget ) )
+            {
+                LOCK.wait();
+            }
+            used += cost;
+            running++;
+            active++;
+            peak = Math.max( peak, used );
+        }
+    }
+
+    private void release( long cost )
+    {
+        synchronized ( LOCK )
+        {
+            used -= cost;
+            running--;
+            active--;
+            LOCK.notifyAll();
+        }
+    }
+
+    private static long count( InputStream is )
+        throws IOException
+    {
+        long count = 0;
+        byte[] buf = new byte[4096];
+        int n;
+        while ( ( n = is.read( buf ) ) >= 0 )
+        {
+            count += n;
+        }
+        return count;
+    }
+
+    private static long toMegabytes( long bytes )
+    {
+        return bytes / ( 1024 * 1024 );
+    }
+}
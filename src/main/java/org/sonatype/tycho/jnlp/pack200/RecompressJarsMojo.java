@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.pack200;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.JarUtils;
+
+/**
+ * Rewrites plugin jars with entries that do not benefit from compression (png, zip, nested jars, etc) STORED and all
+ * other entries deflated at best compression level. Jars on the Bundle-ClassPath that were conditioned by
+ * pack200-normalize stay STORED, so gzip of the .pack.gz still applies to their classes. Jars that would not become
+ * smaller are left untouched. Whether an entry is compressible is decided from a fast deflate of its first 64 KB.
+ * Entry contents and order do not change, so this goal can run between pack200-normalize and sign-jars.
+ *
+ * @goal recompress-jars
+ * @threadSafe
+ * @phase package
+ */
+public class RecompressJarsMojo
+    extends AbstractPack200Mojo
+{
+    /**
+     * Entries are stored or deflated depending on how well their first bytes, up to this many, deflate at
+     * {@link Deflater#BEST_SPEED}, so each entry is deflated at best compression level only once, by the jar writer.
+     */
+    private static final int PROBE_SIZE = 64 * 1024;
+
+    @Override
+    protected boolean process( File jar )
+        throws IOException
+    {
+        File recompressed = File.createTempFile( jar.getName(), ".recompress", jar.getParentFile() );
+        try
+        {
+            JarFile jarFile = new JarFile( jar );
+            try
+            {
+                if ( !EclipseInf.readEclipseInf( jarFile ).shouldProcess() )
+                {
+                    return false;
+                }
+
+                List<String> nestedJars = Pack200Processor.getNestedJars( jarFile );
+
+                Deflater probe = new Deflater( Deflater.BEST_SPEED, true );
+                ZipOutputStream zos =
+                    new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( recompressed ) ) );
+                try
+                {
+                    zos.setLevel( Deflater.BEST_COMPRESSION );
+
+                    Enumeration<? extends ZipEntry> entries = jarFile.entries();
+                    while ( entries.hasMoreElements() )
+                    {
+                        ZipEntry entry = entries.nextElement();
+                        recompressEntry( jarFile, entry, nestedJars.contains( entry.getName() ), probe, zos );
+                    }
+                }
+                finally
+                {
+                    IOUtil.close( zos );
+                    probe.end();
+                }
+            }
+            finally
+            {
+                try
+                {
+                    jarFile.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+
+            long delta = jar.length() - recompressed.length();
+            if ( delta > 0 )
+            {
+                getLog().debug( "Recompressed jar " + jar.getAbsolutePath() + ", " + delta + " bytes saved" );
+                JarUtils.replace( recompressed, jar );
+            }
+            return delta > 0;
+        }
+        finally
+        {
+            recompressed.delete();
+        }
+    }
+
+    private void recompressEntry( JarFile jarFile, ZipEntry entry, boolean nestedJar, Deflater probe,
+                                  ZipOutputStream zos )
+        throws IOException
+    {
+        byte[] data;
+        InputStream is = jarFile.getInputStream( entry );
+        try
+        {
+            data = IOUtil.toByteArray( is );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+
+        ZipEntry target = new ZipEntry( entry.getName() );
+        target.setTime( entry.getTime() );
+        target.setComment( entry.getComment() );
+        target.setExtra( entry.getExtra() );
+
+        boolean conditioned = nestedJar && entry.getMethod() == ZipEntry.STORED && isConditioned( data );
+        if ( !entry.isDirectory() && ( conditioned || !isCompressible( data, probe ) ) )
+        {
+            CRC32 crc = new CRC32();
+            crc.update( data );
+            target.setMethod( ZipEntry.STORED );
+            target.setSize( data.length );
+            target.setCompressedSize( data.length );
+            target.setCrc( crc.getValue() );
+        }
+
+        zos.putNextEntry( target );
+        zos.write( data );
+        zos.closeEntry();
+    }
+
+    /**
+     * @return {@code true} if the nested jar is marked conditioned in its own eclipse.inf
+     */
+    private static boolean isConditioned( byte[] data )
+        throws IOException
+    {
+        JarInputStream jis = new JarInputStream( new ByteArrayInputStream( data ) );
+        try
+        {
+            return EclipseInf.readEclipseInf( jis ).isPackNormalized();
+        }
+        finally
+        {
+            IOUtil.close( jis );
+        }
+    }
+
+    /**
+     * @return {@code true} if the first {@link #PROBE_SIZE} bytes of the data become smaller when deflated
+     */
+    static boolean isCompressible( byte[] data, Deflater probe )
+    {
+        if ( data.length == 0 )
+        {
+            return false;
+        }
+
+        int length = Math.min( data.length, PROBE_SIZE );
+        probe.reset();
+        probe.setInput( data, 0, length );
+        probe.finish();
+
+        long size = 0;
+        byte[] chunk = new byte[8192];
+        while ( !probe.finished() )
+        {
+            size += probe.deflate( chunk );
+        }
+
+        // deflated entries are followed by data descriptor
+        return size + 16 < length;
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.pack200;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.BundlePool;
+import org.sonatype.tycho.jnlp.JarUtils;
+
+/**
+ * Reorders plugin jar entries, so manifest and classes loaded during application startup come first. Class loading
+ * order is read from -verbose:class JVM output or from a plain text file that lists one class per line. Reordered jars
+ * are marked in META-INF/eclipse.inf, so pack200-normalize keeps their order instead of sorting entries by name. Pack200
+ * preserves entry order, so this goal should run before pack200-normalize and sign-jars. Signed jars are not changed.
+ *
+ * @goal reorder-jars
+ * @threadSafe
+ * @phase package
+ */
+public class ReorderJarsMojo
+    extends AbstractPack200Mojo
+{
+    /**
+     * Class loading trace, i.e. output of a local test run with -verbose:class.
+     *
+     * @parameter expression="${jnlp.classLoadTrace}"
+     */
+    private File classLoadTrace;
+
+    private static final String META_INF = "META-INF/";
+
+    private ClassLoadOrder order;
+
+    @Override
+    public void execute()
+        throws MojoExecutionException
+    {
+        if ( classLoadTrace == null || !classLoadTrace.isFile() )
+        {
+            getLog().info( "Class loading trace is not available, jar entries are not reordered" );
+            return;
+        }
+
+        try
+        {
+            order = ClassLoadOrder.read( classLoadTrace );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not read class loading trace " + classLoadTrace.getAbsolutePath(),
+                                              e );
+        }
+
+        super.execute();
+    }
+
+    /**
+     * Reordered jars depend on the class loading trace, which is not part of the pool key, and reordering is cheap.
+     */
+    @Override
+    protected BundlePool getBundlePool()
+    {
+        return null;
+    }
+
+    @Override
+    protected boolean process( File jar )
+        throws IOException
+    {
+        JarFile jarFile = new JarFile( jar );
+        File reordered = null;
+        try
+        {
+            // reordering or changing eclipse.inf would break the signature of signed jars
+            EclipseInf eclipseInf = EclipseInf.readEclipseInf( jarFile );
+            if ( !eclipseInf.shouldProcess() || JarUtils.isSigned( jarFile ) )
+            {
+                return false;
+            }
+
+            List<JarEntry> entries = Collections.list( jarFile.entries() );
+            if ( !order.containsAny( entries ) )
+            {
+                return false;
+            }
+
+            List<JarEntry> sorted = order.sort( entries );
+            if ( sorted.equals( entries ) && eclipseInf.isEntriesOrdered() )
+            {
+                return false;
+            }
+            eclipseInf.setEntriesOrdered();
+
+            getLog().info( "Reordering entries of jar " + jar.getAbsolutePath() );
+
+            reordered = File.createTempFile( jar.getName(), ".reorder", jar.getParentFile() );
+            ZipOutputStream zos = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( reordered ) ) );
+            try
+            {
+                boolean written = false;
+                for ( JarEntry entry : sorted )
+                {
+                    if ( EclipseInf.PATH_ECLIPSEINF.equals( entry.getName() ) )
+                    {
+                        continue;
+                    }
+                    if ( !written && !entry.getName().startsWith( META_INF ) )
+                    {
+                        writeEclipseInf( eclipseInf, zos );
+                        written = true;
+                    }
+                    JarUtils.copyEntry( jarFile, entry, zos );
+                }
+                if ( !written )
+                {
+                    writeEclipseInf( eclipseInf, zos );
+                }
+            }
+            finally
+            {
+                IOUtil.close( zos );
+            }
+
+            jarFile.close();
+            jarFile = null;
+
+            JarUtils.replace( reordered, jar );
+            return true;
+        }
+        finally
+        {
+            if ( jarFile != null )
+            {
+                try
+                {
+                    jarFile.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+            if ( reordered != null )
+            {
+                reordered.delete();
+            }
+        }
+    }
+
+    private static void writeEclipseInf( EclipseInf eclipseInf, ZipOutputStream zos )
+        throws IOException
+    {
+        ZipEntry entry = new ZipEntry( EclipseInf.PATH_ECLIPSEINF );
+        entry.setTime( Pack200Processor.ENTRY_TIME );
+        zos.putNextEntry( entry );
+        zos.write( eclipseInf.toByteArray() );
+        zos.closeEntry();
+    }
+}
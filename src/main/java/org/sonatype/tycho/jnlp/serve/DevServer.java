@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.serve;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Small HTTP/1.1 server for testing Webstart products during development. All connections are served by one thread
+ * with non-blocking NIO, file contents are sent with {@link FileChannel#transferTo}, which lets the operating system
+ * copy file pages directly to the socket. Supports keep-alive and pipelined requests, which are answered in order.
+ * Requests are mapped to files by {@link ResourceHandler}.
+ */
+public class DevServer
+{
+    /**
+     * Maximum size of request line and headers.
+     */
+    private static final int MAX_HEAD = 16 * 1024;
+
+    /**
+     * Maximum number of bytes transferred from a file per write, so one large download does not hold up other
+     * connections.
+     */
+    private static final long TRANSFER_CHUNK = 256 * 1024;
+
+    private static final byte[] HEAD_END = { '\r', '\n', '\r', '\n' };
+
+    private final ResourceHandler handler;
+
+    private final String host;
+
+    private final int port;
+
+    private final Log log;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private Selector selector;
+
+    private ServerSocketChannel serverChannel;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     */
+    public DevServer( File root, String host, int port, Log log )
+    {
+        this.handler = new ResourceHandler( root );
+        this.host = host;
+        this.port = port;
+        this.log = log;
+    }
+
+    public void start()
+        throws IOException
+    {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress( true );
+        serverChannel.socket().bind( new InetSocketAddress( host, port ) );
+        serverChannel.configureBlocking( false );
+        serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+
+        running = true;
+        thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                loop();
+            }
+        }, "jnlp-serve-" + getPort() );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    public void stop()
+        throws InterruptedException
+    {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    /**
+     * Waits until the server is stopped.
+     */
+    public void join()
+        throws InterruptedException
+    {
+        thread.join();
+    }
+
+    public int getPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public String getUrl()
+    {
+        return "http://" + host + ":" + getPort() + "/";
+    }
+
+    /**
+     * @return number of response bytes (headers and bodies) sent since the server was started
+     */
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    private void loop()
+    {
+        try
+        {
+            while ( running )
+            {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while ( keys.hasNext() )
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if ( !key.isValid() )
+                    {
+                        continue;
+                    }
+                    if ( key.isAcceptable() )
+                    {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try
+                    {
+                        if ( key.isReadable() )
+                        {
+                            connection.read();
+                        }
+                        if ( key.isValid() && key.isWritable() )
+                        {
+                            connection.write();
+                        }
+                    }
+                    catch ( IOException e )
+                    {
+                        // client went away
+                        log.debug( "Connection closed: " + e.getMessage() );
+                        connection.close();
+                    }
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( "Development server failed", e );
+        }
+        finally
+        {
+            for ( SelectionKey key : selector.keys() )
+            {
+                if ( key.attachment() instanceof Connection )
+                {
+                    ( (Connection) key.attachment() ).close();
+                }
+            }
+            close( serverChannel );
+            close( selector );
+        }
+    }
+
+    private void accept()
+        throws IOException
+    {
+        SocketChannel channel = serverChannel.accept();
+        if ( channel != null )
+        {
+            channel.configureBlocking( false );
+            channel.socket().setTcpNoDelay( true );
+            SelectionKey key = channel.register( selector, SelectionKey.OP_READ );
+            key.attach( new Connection( channel, key ) );
+        }
+    }
+
+    private class Connection
+    {
+        private final SocketChannel channel;
+
+        private final SelectionKey key;
+
+        private ByteBuffer in = ByteBuffer.allocate( 4096 );
+
+        // response being sent
+
+        private String request;
+
+        private HttpResponse response;
+
+        private ByteBuffer head;
+
+        private FileChannel body;
+
+        private long position;
+
+        private long remaining;
+
+        private long sent;
+
+        private boolean keepAlive;
+
+        Connection( SocketChannel channel, SelectionKey key )
+        {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read()
+            throws IOException
+        {
+            if ( !in.hasRemaining() )
+            {
+                if ( in.capacity() >= MAX_HEAD )
+                {
+                    throw new IOException( "Request head too large" );
+                }
+                ByteBuffer larger = ByteBuffer.allocate( in.capacity() * 2 );
+                in.flip();
+                larger.put( in );
+                in = larger;
+            }
+            if ( channel.read( in ) < 0 )
+            {
+                close();
+                return;
+            }
+            if ( response == null )
+            {
+                nextRequest();
+            }
+        }
+
+        /**
+         * Starts the response to the next complete request in the input buffer, if any. Pipelined requests stay in the
+         * buffer until the previous response is sent.
+         */
+        private void nextRequest()
+            throws IOException
+        {
+            int end = indexOfHeadEnd();
+            if ( end < 0 )
+            {
+                key.interestOps( SelectionKey.OP_READ );
+                return;
+            }
+            byte[] bytes = new byte[end];
+            in.flip();
+            in.get( bytes );
+            in.position( in.position() + HEAD_END.length );
+            in.compact();
+
+            String text = new String( bytes, "ISO-8859-1" );
+            HttpRequest httpRequest = HttpRequest.parse( text );
+            boolean headOnly = false;
+            if ( httpRequest == null )
+            {
+                request = "?";
+                response = new HttpResponse( 400, "Bad Request" );
+                keepAlive = false;
+            }
+            else
+            {
+                request = httpRequest.getMethod() + " " + httpRequest.getPath();
+                keepAlive = httpRequest.isKeepAlive();
+                headOnly = "HEAD".equals( httpRequest.getMethod() );
+                try
+                {
+                    response = handler.handle( httpRequest );
+                }
+                catch ( IOException e )
+                {
+                    log.warn( request + ": " + e.getMessage() );
+                    response = new HttpResponse( 500, "Internal Server Error" );
+                }
+            }
+
+            head = ByteBuffer.wrap( response.toHeaderBytes( keepAlive ) );
+            sent = 0;
+            if ( !headOnly && response.getFile() != null && response.getLength() > 0 )
+            {
+                body = new FileInputStream( response.getFile() ).getChannel();
+                position = response.getOffset();
+                remaining = response.getLength();
+            }
+            key.interestOps( SelectionKey.OP_WRITE );
+        }
+
+        void write()
+            throws IOException
+        {
+            if ( head.hasRemaining() )
+            {
+                sent += channel.write( head );
+                if ( head.hasRemaining() )
+                {
+                    return;
+                }
+            }
+            if ( body != null && remaining > 0 )
+            {
+                long n = body.transferTo( position, Math.min( remaining, TRANSFER_CHUNK ), channel );
+                if ( n <= 0 && position >= body.size() )
+                {
+                    throw new IOException( response.getFile() + " was truncated while sending" );
+                }
+                position += n;
+                remaining -= n;
+                sent += n;
+                if ( remaining > 0 )
+                {
+                    return;
+                }
+            }
+            complete();
+        }
+
+        private void complete()
+            throws IOException
+        {
+            long total = bytesSent.addAndGet( sent );
+            String encoding = response.getEncoding() != null ? " " + response.getEncoding() : "";
+            log.info( request + " " + response.getStatus() + encoding + " " + sent + " bytes, total " + total
+                + " bytes" );
+
+            closeBody();
+            response = null;
+            head = null;
+            if ( !keepAlive )
+            {
+                close();
+                return;
+            }
+            nextRequest();
+        }
+
+        private int indexOfHeadEnd()
+        {
+            byte[] array = in.array();
+            int limit = in.position() - HEAD_END.length;
+            for ( int i = 0; i <= limit; i++ )
+            {
+                if ( array[i] == HEAD_END[0] && array[i + 1] == HEAD_END[1] && array[i + 2] == HEAD_END[2]
+                    && array[i + 3] == HEAD_END[3] )
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void closeBody()
+        {
+            if ( body != null )
+            {
+                DevServer.close( body );
+                body = null;
+            }
+        }
+
+        void close()
+        {
+            closeBody();
+            key.cancel();
+            DevServer.close( channel );
+        }
+    }
+
+    private static void close( java.io.Closeable closeable )
+    {
+        try
+        {
+            if ( closeable != null )
+            {
+                closeable.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            // ignore
+        }
+    }
+
+    private static void close( Selector selector )
+    {
+        try
+        {
+            selector.close();
+        }
+        catch ( IOException e )
+        {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.serve;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request line and headers of a HTTP/1.x request. Header names are lower case.
+ */
+public class HttpRequest
+{
+    private final String method;
+
+    private final String path;
+
+    private final String protocol;
+
+    private final Map<String, String> parameters = new HashMap<String, String>();
+
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    HttpRequest( String method, String target, String protocol )
+        throws UnsupportedEncodingException
+    {
+        this.method = method;
+        this.protocol = protocol;
+
+        int idx = target.indexOf( '?' );
+        this.path = URLDecoder.decode( idx >= 0 ? target.substring( 0, idx ) : target, "UTF-8" );
+        if ( idx >= 0 )
+        {
+            for ( String parameter : target.substring( idx + 1 ).split( "&" ) )
+            {
+                int eq = parameter.indexOf( '=' );
+                if ( eq > 0 )
+                {
+                    parameters.put( URLDecoder.decode( parameter.substring( 0, eq ), "UTF-8" ),
+                                    URLDecoder.decode( parameter.substring( eq + 1 ), "UTF-8" ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses request line and header lines, without the terminating empty line.
+     * 
+     * @return the request, or {@code null} if the request line is malformed
+     */
+    static HttpRequest parse( String head )
+        throws UnsupportedEncodingException
+    {
+        String[] lines = head.split( "\r\n" );
+        String[] requestLine = lines[0].split( " " );
+        if ( requestLine.length != 3 )
+        {
+            return null;
+        }
+        HttpRequest request = new HttpRequest( requestLine[0], requestLine[1], requestLine[2] );
+        for ( int i = 1; i < lines.length; i++ )
+        {
+            int idx = lines[i].indexOf( ':' );
+            if ( idx > 0 )
+            {
+                request.headers.put( lines[i].substring( 0, idx ).trim().toLowerCase(),
+                                     lines[i].substring( idx + 1 ).trim() );
+            }
+        }
+        return request;
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * @return decoded path, without query
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    public String getParameter( String name )
+    {
+        return parameters.get( name );
+    }
+
+    public String getHeader( String name )
+    {
+        return headers.get( name.toLowerCase() );
+    }
+
+    public boolean isKeepAlive()
+    {
+        String connection = getHeader( "Connection" );
+        if ( "HTTP/1.1".equals( protocol ) )
+        {
+            return connection == null || !"close".equalsIgnoreCase( connection );
+        }
+        return "keep-alive".equalsIgnoreCase( connection );
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.serve;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Status, headers and body of a response. The body is a region of a file, or empty.
+ */
+public class HttpResponse
+{
+    private final int status;
+
+    private final String reason;
+
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    private File file;
+
+    private long offset;
+
+    private long length;
+
+    private String encoding;
+
+    public HttpResponse( int status, String reason )
+    {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    public HttpResponse setHeader( String name, String value )
+    {
+        headers.put( name, value );
+        return this;
+    }
+
+    public String getHeader( String name )
+    {
+        return headers.get( name );
+    }
+
+    /**
+     * Sends the given region of the file as response body.
+     */
+    public void setBody( File file, long offset, long length )
+    {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return length of the body, as sent in Content-Length header
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return content encoding of the body (pack200-gzip or gzip), or {@code null}
+     */
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    public void setEncoding( String encoding )
+    {
+        this.encoding = encoding;
+        setHeader( "Content-Encoding", encoding );
+    }
+
+    byte[] toHeaderBytes( boolean keepAlive )
+        throws UnsupportedEncodingException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "HTTP/1.1 " ).append( status ).append( ' ' ).append( reason ).append( "\r\n" );
+        for ( Map.Entry<String, String> header : headers.entrySet() )
+        {
+            sb.append( header.getKey() ).append( ": " ).append( header.getValue() ).append( "\r\n" );
+        }
+        sb.append( "Content-Length: " ).append( length ).append( "\r\n" );
+        sb.append( "Connection: " ).append( keepAlive ? "keep-alive" : "close" ).append( "\r\n" );
+        sb.append( "\r\n" );
+        return sb.toString().getBytes( "ISO-8859-1" );
+    }
+}
@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.serve;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Maps requests to files of the served directory, the way a Webstart download server (JnlpDownloadServlet) would:
+ * <ul>
+ * <li>If the client accepts pack200-gzip (or gzip) encoding and there is a .pack.gz (or .gz) file next to the requested
+ * file, the compressed file is sent with corresponding Content-Encoding.</li>
+ * <li>Version-based requests, {@code name.jar?version-id=1.0}, are served from {@code name__V1.0.jar} or Eclipse style
+ * {@code name_1.0.jar}.</li>
+ * <li>Strong ETags and Last-Modified of the sent file, conditional GET with If-None-Match and If-Modified-Since.</li>
+ * <li>Single byte ranges, honouring If-Range.</li>
+ * <li>Only files under the served directory are sent, after resolving symbolic links, otherwise 403 Forbidden.</li>
+ * </ul>
+ */
+public class ResourceHandler
+{
+    public static final String PACK200_GZIP = "pack200-gzip";
+
+    public static final String GZIP = "gzip";
+
+    private static final String VERSION_ID = "version-id";
+
+    private final File root;
+
+    public ResourceHandler( File root )
+    {
+        this.root = root;
+    }
+
+    public HttpResponse handle( HttpRequest request )
+        throws IOException
+    {
+        if ( !"GET".equals( request.getMethod() ) && !"HEAD".equals( request.getMethod() ) )
+        {
+            return new HttpResponse( 405, "Method Not Allowed" ).setHeader( "Allow", "GET, HEAD" );
+        }
+
+        String path = request.getPath();
+        String versionId = request.getParameter( VERSION_ID );
+        if ( !path.startsWith( "/" ) || path.contains( "/../" ) || path.endsWith( "/.." ) || path.indexOf( '\\' ) >= 0
+            || ( versionId != null && !isVersionId( versionId ) ) )
+        {
+            return new HttpResponse( 403, "Forbidden" );
+        }
+        if ( path.endsWith( "/" ) )
+        {
+            path = path + "index.html";
+        }
+
+        File canonicalRoot = root.getCanonicalFile();
+        File file = versionId != null ? getVersionedFile( path, versionId ) : new File( root, path );
+        file = file.getCanonicalFile();
+        if ( !isUnder( canonicalRoot, file ) )
+        {
+            return new HttpResponse( 403, "Forbidden" );
+        }
+        if ( !file.isFile() )
+        {
+            return new HttpResponse( 404, "Not Found" );
+        }
+
+        String contentType = getContentType( file.getName() );
+
+        // content negotiation
+        String acceptEncoding = request.getHeader( "Accept-Encoding" );
+        String encoding = null;
+        File packed = new File( file.getParentFile(), file.getName() + ".pack.gz" ).getCanonicalFile();
+        File gzipped = new File( file.getParentFile(), file.getName() + ".gz" ).getCanonicalFile();
+        if ( accepts( acceptEncoding, PACK200_GZIP ) && packed.isFile() && isUnder( canonicalRoot, packed ) )
+        {
+            file = packed;
+            encoding = PACK200_GZIP;
+        }
+        else if ( accepts( acceptEncoding, GZIP ) && gzipped.isFile() && isUnder( canonicalRoot, gzipped ) )
+        {
+            file = gzipped;
+            encoding = GZIP;
+        }
+
+        String etag = "\"" + Long.toHexString( file.length() ) + "-" + Long.toHexString( file.lastModified() )
+            + ( encoding != null ? "-" + encoding : "" ) + "\"";
+        long lastModified = file.lastModified() / 1000 * 1000;
+
+        HttpResponse response;
+        if ( isNotModified( request, etag, lastModified ) )
+        {
+            response = new HttpResponse( 304, "Not Modified" );
+        }
+        else
+        {
+            long[] range = getRange( request, etag, file.length() );
+            if ( range == null )
+            {
+                response = new HttpResponse( 200, "OK" );
+                response.setBody( file, 0, file.length() );
+            }
+            else if ( range.length == 0 )
+            {
+                response = new HttpResponse( 416, "Requested Range Not Satisfiable" );
+                response.setHeader( "Content-Range", "bytes */" + file.length() );
+                return response;
+            }
+            else
+            {
+                response = new HttpResponse( 206, "Partial Content" );
+                response.setHeader( "Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + file.length() );
+                response.setBody( file, range[0], range[1] - range[0] + 1 );
+            }
+            response.setHeader( "Content-Type", contentType );
+            if ( encoding != null )
+            {
+                response.setEncoding( encoding );
+            }
+        }
+
+        response.setHeader( "ETag", etag );
+        response.setHeader( "Last-Modified", formatDate( lastModified ) );
+        response.setHeader( "Vary", "Accept-Encoding" );
+        response.setHeader( "Accept-Ranges", "bytes" );
+        if ( versionId != null )
+        {
+            response.setHeader( "x-java-jnlp-version-id", versionId );
+        }
+        return response;
+    }
+
+    private File getVersionedFile( String path, String versionId )
+    {
+        int slash = path.lastIndexOf( '/' );
+        int dot = path.lastIndexOf( '.' );
+        if ( dot <= slash )
+        {
+            dot = path.length();
+        }
+        String base = path.substring( 0, dot );
+        String extension = path.substring( dot );
+
+        // JnlpDownloadServlet naming convention, then eclipse bundle naming
+        File file = new File( root, base + "__V" + versionId + extension );
+        if ( !file.isFile() )
+        {
+            file = new File( root, base + "_" + versionId + extension );
+        }
+        return file;
+    }
+
+    /**
+     * Version ids are appended to file names, they must not name another directory.
+     */
+    private static boolean isVersionId( String versionId )
+    {
+        return versionId.indexOf( '/' ) < 0 && versionId.indexOf( '\\' ) < 0 && !versionId.contains( ".." );
+    }
+
+    private static boolean isUnder( File canonicalRoot, File canonicalFile )
+    {
+        for ( File parent = canonicalFile.getParentFile(); parent != null; parent = parent.getParentFile() )
+        {
+            if ( parent.equals( canonicalRoot ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNotModified( HttpRequest request, String etag, long lastModified )
+    {
+        String ifNoneMatch = request.getHeader( "If-None-Match" );
+        if ( ifNoneMatch != null )
+        {
+            for ( String tag : ifNoneMatch.split( "," ) )
+            {
+                tag = tag.trim();
+                if ( "*".equals( tag ) || etag.equals( tag ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeader( "If-Modified-Since" );
+        if ( ifModifiedSince != null )
+        {
+            try
+            {
+                return lastModified <= newDateFormat().parse( ifModifiedSince ).getTime();
+            }
+            catch ( java.text.ParseException e )
+            {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code null} to send the whole file, empty array if the range is not satisfiable, or first and last byte
+     *         position
+     */
+    private static long[] getRange( HttpRequest request, String etag, long length )
+    {
+        String range = request.getHeader( "Range" );
+        if ( range == null || !range.startsWith( "bytes=" ) || range.indexOf( ',' ) >= 0 )
+        {
+            // no range, or multiple ranges which are not supported
+            return null;
+        }
+        String ifRange = request.getHeader( "If-Range" );
+        if ( ifRange != null && !ifRange.equals( etag ) )
+        {
+            return null;
+        }
+
+        String spec = range.substring( "bytes=".length() ).trim();
+        int dash = spec.indexOf( '-' );
+        if ( dash < 0 )
+        {
+            return null;
+        }
+        long first;
+        long last;
+        try
+        {
+            if ( dash == 0 )
+            {
+                // suffix range, last n bytes
+                long suffix = Long.parseLong( spec.substring( 1 ) );
+                first = Math.max( 0, length - suffix );
+                last = length - 1;
+            }
+            else
+            {
+                first = Long.parseLong( spec.substring( 0, dash ) );
+                last = dash < spec.length() - 1 ? Long.parseLong( spec.substring( dash + 1 ) ) : length - 1;
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+        last = Math.min( last, length - 1 );
+        if ( first >= length || first > last )
+        {
+            return new long[0];
+        }
+        return new long[] { first, last };
+    }
+
+    private static boolean accepts( String acceptEncoding, String encoding )
+    {
+        if ( acceptEncoding == null )
+        {
+            return false;
+        }
+        for ( String token : acceptEncoding.split( "," ) )
+        {
+            String[] parts = token.trim().split( ";" );
+            if ( encoding.equalsIgnoreCase( parts[0].trim() ) )
+            {
+                // q=0 means not acceptable
+                return parts.length < 2 || !parts[1].trim().matches( "q=0(\\.0*)?" );
+            }
+        }
+        return false;
+    }
+
+    private static String getContentType( String name )
+    {
+        if ( name.endsWith( ".jnlp" ) )
+        {
+            return "application/x-java-jnlp-file";
+        }
+        if ( name.endsWith( ".jar" ) )
+        {
+            return "application/java-archive";
+        }
+        if ( name.endsWith( ".xml" ) )
+        {
+            return "application/xml";
+        }
+        if ( name.endsWith( ".html" ) )
+        {
+            return "text/html";
+        }
+        return "application/octet-stream";
+    }
+
+    private static String formatDate( long time )
+    {
+        return newDateFormat().format( new Date( time ) );
+    }
+
+    /**
+     * RFC 1123 date format, SimpleDateFormat is not thread safe.
+     */
+    private static SimpleDateFormat newDateFormat()
+    {
+        SimpleDateFormat format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return format;
+    }
+}
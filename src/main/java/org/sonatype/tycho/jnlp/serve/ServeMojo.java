@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.serve;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.sonatype.tycho.jnlp.AbstractJnlpMojo;
+
+/**
+ * Serves the product directory over HTTP for testing with Java Webstart, like the download server would: jars are sent
+ * pack200-gzip or gzip compressed to clients that accept it, and version-based, conditional and range requests are
+ * supported, see {@link ResourceHandler}. Each response is logged with the number of bytes sent. Runs until Maven is
+ * interrupted, for example {@code mvn package jnlp:serve}.
+ * 
+ * @goal serve
+ * @threadSafe
+ */
+public class ServeMojo
+    extends AbstractJnlpMojo
+{
+    /**
+     * Directory to serve.
+     * 
+     * @parameter default-value="${project.build.directory}/product/eclipse"
+     */
+    private File serveDirectory;
+
+    /**
+     * Address to listen on. Use {@code 0.0.0.0} to accept connections from other machines.
+     * 
+     * @parameter expression="${jnlp.host}" default-value="127.0.0.1"
+     */
+    private String host;
+
+    /**
+     * @parameter expression="${jnlp.port}" default-value="8080"
+     */
+    private int port;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        if ( !serveDirectory.isDirectory() )
+        {
+            throw new MojoExecutionException( "Directory " + serveDirectory
+                + " does not exist, build the product first" );
+        }
+
+        DevServer server = new DevServer( serveDirectory, host, port, getLog() );
+        try
+        {
+            server.start();
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not listen on " + host + ":" + port, e );
+        }
+        getLog().info( "Serving " + serveDirectory + " at " + server.getUrl() + ", press Ctrl+C to stop" );
+
+        try
+        {
+            server.join();
+        }
+        catch ( InterruptedException e )
+        {
+            try
+            {
+                server.stop();
+            }
+            catch ( InterruptedException e1 )
+            {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.worker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+
+/**
+ * Runs jarsigner of the JDK (sun.security.tools.jarsigner.Main from lib/tools.jar) in the worker JVM, with the same
+ * command line arguments as the jarsigner executable. jarsigner calls System.exit when it fails, which a security
+ * manager turns into an exception, and prints its messages to System.out, which is captured per thread. The security
+ * manager and System.out are only replaced when the first jar is signed, workers that only pack keep the defaults.
+ */
+class InProcessJarsigner
+{
+    private static final ThreadLocal<ByteArrayOutputStream> OUTPUT = new ThreadLocal<ByteArrayOutputStream>();
+
+    private static boolean installed;
+
+    private final Class<?> mainClass;
+
+    private final Method run;
+
+    private InProcessJarsigner( Class<?> mainClass, Method run )
+    {
+        this.mainClass = mainClass;
+        this.run = run;
+    }
+
+    /**
+     * @return in-process jarsigner, or {@code null} if the JDK has no lib/tools.jar (JDK 9 and later)
+     */
+    static InProcessJarsigner newInstance( PrintStream log )
+    {
+        File toolsJar = new File( System.getProperty( "java.home" ), "../lib/tools.jar" );
+        if ( !toolsJar.isFile() )
+        {
+            return null;
+        }
+        try
+        {
+            ClassLoader loader = new URLClassLoader( new URL[] { toolsJar.toURI().toURL() }, null );
+            Class<?> mainClass = loader.loadClass( "sun.security.tools.jarsigner.Main" );
+            Method run = mainClass.getMethod( "run", String[].class );
+            return new InProcessJarsigner( mainClass, run );
+        }
+        catch ( Exception e )
+        {
+            log.println( "Could not load jarsigner from " + toolsJar + ": " + e );
+            return null;
+        }
+    }
+
+    /**
+     * Signs the jar, which is the last but one argument, or the last if no alias is given. Relative keystore path is
+     * resolved against the working directory, like in the forked jarsigner executable.
+     * 
+     * @return jarsigner output
+     */
+    String sign( File workingDirectory, String[] args )
+        throws IOException
+    {
+        for ( int i = 0; i < args.length - 1; i++ )
+        {
+            if ( "-keystore".equals( args[i] ) )
+            {
+                File keystore = new File( args[i + 1] );
+                if ( !keystore.isAbsolute() && new File( workingDirectory, args[i + 1] ).isFile() )
+                {
+                    args[i + 1] = new File( workingDirectory, args[i + 1] ).getAbsolutePath();
+                }
+            }
+        }
+
+        install();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OUTPUT.set( output );
+        try
+        {
+            run.invoke( mainClass.newInstance(), (Object) args );
+        }
+        catch ( InvocationTargetException e )
+        {
+            Throwable cause = e.getCause();
+            String message =
+                cause instanceof ExitException ? "exit code " + ( (ExitException) cause ).status : cause.toString();
+            throw new IOException( "jarsigner failed with " + message + ": " + output.toString().trim() );
+        }
+        catch ( InstantiationException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( IllegalAccessException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        finally
+        {
+            OUTPUT.remove();
+        }
+        return output.toString();
+    }
+
+    private static synchronized void install()
+    {
+        if ( !installed )
+        {
+            System.setOut( new PrintStream( new ThreadOutput( System.out ), true ) );
+            System.setSecurityManager( new ExitGuard() );
+            installed = true;
+        }
+    }
+
+    /**
+     * System.out that writes to the output buffer of the current thread, if it is running jarsigner.
+     */
+    private static class ThreadOutput
+        extends OutputStream
+    {
+        private final OutputStream out;
+
+        ThreadOutput( OutputStream out )
+        {
+            this.out = out;
+        }
+
+        private OutputStream target()
+        {
+            OutputStream output = OUTPUT.get();
+            return output != null ? output : out;
+        }
+
+        @Override
+        public void write( int b )
+            throws IOException
+        {
+            target().write( b );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            target().write( b, off, len );
+        }
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            target().flush();
+        }
+    }
+
+    /**
+     * Permits everything, except System.exit in threads running jarsigner.
+     */
+    private static class ExitGuard
+        extends SecurityManager
+    {
+        @Override
+        public void checkPermission( Permission perm )
+        {
+        }
+
+        @Override
+        public void checkPermission( Permission perm, Object context )
+        {
+        }
+
+        @Override
+        public void checkExit( int status )
+        {
+            if ( OUTPUT.get() != null )
+            {
+                throw new ExitException( status );
+            }
+        }
+    }
+
+    private static class ExitException
+        extends SecurityException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ExitException( int status )
+        {
+            super( "System.exit(" + status + ")" );
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.Os;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Sends requests to the {@link WorkerDaemon} of this plugin version and JDK, which is started on first use. Workers
+ * live in a subdirectory of the given base directory named after a digest of their classpath and java.home, so a
+ * rebuilt plugin or a different JDK get a new worker, and the old one exits after its idle timeout. Thread safe, each
+ * request uses its own connection.
+ */
+public class WorkerClient
+{
+    /**
+     * How long to wait for a started worker to accept connections.
+     */
+    private static final long START_MILLIS = 30 * 1000;
+
+    private final int port;
+
+    private final String token;
+
+    private final boolean canSign;
+
+    private WorkerClient( int port, String token, boolean canSign )
+    {
+        this.port = port;
+        this.token = token;
+        this.canSign = canSign;
+    }
+
+    /**
+     * Connects to the running worker, or starts a new one with the heap limit of this JVM.
+     * 
+     * @param idleSeconds idle timeout of a newly started worker
+     */
+    public static synchronized WorkerClient connect( File baseDirectory, int idleSeconds, Log log )
+        throws IOException
+    {
+        List<File> classpath = getClasspath();
+        File directory = new File( baseDirectory, getKey( classpath ) );
+
+        WorkerClient client = tryConnect( directory );
+        if ( client == null )
+        {
+            log.info( "Starting jnlp worker, log " + new File( directory, WorkerDaemon.LOG ).getAbsolutePath() );
+            start( directory, classpath, idleSeconds );
+
+            long deadline = System.currentTimeMillis() + START_MILLIS;
+            while ( ( client = tryConnect( directory ) ) == null )
+            {
+                if ( System.currentTimeMillis() > deadline )
+                {
+                    throw new IOException( "jnlp worker did not start, see "
+                        + new File( directory, WorkerDaemon.LOG ).getAbsolutePath() );
+                }
+                try
+                {
+                    Thread.sleep( 100 );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( "Interrupted while starting jnlp worker" );
+                }
+            }
+        }
+        log.debug( "Using jnlp worker on port " + client.port + " in " + directory );
+        return client;
+    }
+
+    /**
+     * @return {@code true} if the worker runs jarsigner in-process, which requires lib/tools.jar of JDK 8 and older
+     */
+    public boolean canSign()
+    {
+        return canSign;
+    }
+
+    /**
+     * @param estimatedHeap heap the worker reserves for the jar in its heap budget
+     */
+    public void normalize( File jar, long segmentLimit, long estimatedHeap )
+        throws IOException
+    {
+        request( WorkerDaemon.NORMALIZE, jar.getAbsolutePath(), Long.toString( segmentLimit ),
+                 Long.toString( estimatedHeap ) );
+    }
+
+    /**
+     * @param estimatedHeap heap the worker reserves for the jar in its heap budget
+     */
+    public void pack( File jar, File packed, boolean exhaustiveGzip, long segmentLimit, long estimatedHeap )
+        throws IOException
+    {
+        request( WorkerDaemon.PACK, jar.getAbsolutePath(), packed.getAbsolutePath(),
+                 Boolean.toString( exhaustiveGzip ), Long.toString( segmentLimit ), Long.toString( estimatedHeap ) );
+    }
+
+    /**
+     * @param arguments jarsigner executable command line arguments
+     * @return jarsigner output
+     */
+    public String sign( File workingDirectory, String[] arguments )
+        throws IOException
+    {
+        String[] args = new String[arguments.length + 1];
+        args[0] = workingDirectory.getAbsolutePath();
+        System.arraycopy( arguments, 0, args, 1, arguments.length );
+        return request( WorkerDaemon.SIGN, args );
+    }
+
+    /**
+     * Stops the worker after requests in progress are done.
+     */
+    public void stop()
+        throws IOException
+    {
+        request( WorkerDaemon.STOP );
+    }
+
+    private String request( String command, String... args )
+        throws IOException
+    {
+        return request( port, token, command, args );
+    }
+
+    private static String request( int port, String token, String command, String... args )
+        throws IOException
+    {
+        Socket socket = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+        try
+        {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+            out.writeUTF( token );
+            out.writeUTF( command );
+            out.writeInt( args.length );
+            for ( String arg : args )
+            {
+                out.writeUTF( arg );
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            boolean ok = in.readBoolean();
+            String output = WorkerDaemon.readString( in );
+            if ( !ok )
+            {
+                throw new IOException( output );
+            }
+            return output;
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return client of the worker running in the directory, or {@code null} if there is none or it does not respond
+     */
+    private static WorkerClient tryConnect( File directory )
+    {
+        File file = new File( directory, WorkerDaemon.PROPERTIES );
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+        try
+        {
+            Properties properties = new Properties();
+            InputStream is = new FileInputStream( file );
+            try
+            {
+                properties.load( is );
+            }
+            finally
+            {
+                IOUtil.close( is );
+            }
+            int port = Integer.parseInt( properties.getProperty( "port" ) );
+            String token = properties.getProperty( "token" );
+            String capabilities = request( port, token, WorkerDaemon.PING );
+            return new WorkerClient( port, token, WorkerDaemon.CAN_SIGN.equals( capabilities ) );
+        }
+        catch ( IOException e )
+        {
+            // not running, or exited after its idle timeout
+            return null;
+        }
+        catch ( RuntimeException e )
+        {
+            // incomplete properties
+            return null;
+        }
+    }
+
+    private static void start( File directory, List<File> classpath, int idleSeconds )
+        throws IOException
+    {
+        directory.mkdirs();
+
+        String java =
+            System.getProperty( "java.home" ) + "/bin/java" + ( Os.isFamily( Os.FAMILY_WINDOWS ) ? ".exe" : "" );
+        List<String> command = new ArrayList<String>();
+        command.add( java );
+        command.add( "-Xmx" + ( Runtime.getRuntime().maxMemory() / ( 1024 * 1024 ) ) + "m" );
+        command.add( "-cp" );
+        command.add( StringUtils.join( classpath.iterator(), File.pathSeparator ) );
+        command.add( WorkerDaemon.class.getName() );
+        command.add( directory.getAbsolutePath() );
+        command.add( Integer.toString( idleSeconds ) );
+
+        // the worker writes to its log file only and outlives this JVM
+        Process process = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+        process.getOutputStream().close();
+        process.getInputStream().close();
+    }
+
+    /**
+     * Plugin jar and the libraries used by the worker, which must not depend on Maven classes.
+     */
+    private static List<File> getClasspath()
+        throws IOException
+    {
+        List<File> classpath = new ArrayList<File>();
+        classpath.add( getLocation( WorkerDaemon.class ) );
+        classpath.add( getLocation( IOUtil.class ) );
+        return classpath;
+    }
+
+    private static File getLocation( Class<?> cls )
+        throws IOException
+    {
+        try
+        {
+            return new File( cls.getProtectionDomain().getCodeSource().getLocation().toURI() );
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new IOException( "Could not locate " + cls.getName() + ": " + e.getMessage() );
+        }
+    }
+
+    private static String getKey( List<File> classpath )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-1 is not available", e );
+        }
+        StringBuilder key = new StringBuilder( System.getProperty( "java.home" ) );
+        for ( File file : classpath )
+        {
+            key.append( '\n' ).append( file.getAbsolutePath() ).append( ',' ).append( file.length() ).append( ',' );
+            key.append( file.lastModified() );
+        }
+        StringBuilder sb = new StringBuilder();
+        byte[] bytes = digest.digest( key.toString().getBytes( "UTF-8" ) );
+        for ( int i = 0; i < 8; i++ )
+        {
+            byte b = bytes[i];
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,474 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileLock;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.gzip.GzipCompressor;
+import org.sonatype.tycho.jnlp.pack200.Pack200Processor;
+
+/**
+ * Long running worker JVM that normalizes, packs and signs jars for builds of the same plugin version and JDK, so the
+ * Packer and signing code are JIT compiled once and not in every build, and jarsigner does not start a JVM per jar.
+ * Started by {@link WorkerClient} on first use, listens on a loopback port and exits when it was idle for the given
+ * number of seconds. State directory:
+ * 
+ * <pre>
+ * worker.properties  port and token of the running worker, readable by the owner only
+ * worker.lock        held by the running worker, so there is at most one worker per directory
+ * worker.log         requests, jarsigner output and errors
+ * worker.log.old     log of the previous worker
+ * </pre>
+ * 
+ * Each request is one connection: token, command and arguments, answered with success flag and output or error
+ * message. Requests of all builds share the worker, so it limits the jars processed at the same time to the number of
+ * processors and to an estimated heap of half of its maximum heap, like the pack200 heap budget of a build. Clients
+ * send the estimated heap of pack200 requests, a jar is always started when nothing else is running.
+ */
+public class WorkerDaemon
+{
+    static final String PROPERTIES = "worker.properties";
+
+    static final String LOCK = "worker.lock";
+
+    static final String LOG = "worker.log";
+
+    static final String OLD_LOG = "worker.log.old";
+
+    static final String PING = "ping";
+
+    static final String NORMALIZE = "normalize";
+
+    static final String PACK = "pack";
+
+    static final String SIGN = "sign";
+
+    static final String STOP = "stop";
+
+    /**
+     * Ping output of workers that can sign jars.
+     */
+    static final String CAN_SIGN = "sign";
+
+    /**
+     * How often the accept loop checks the idle timeout.
+     */
+    private static final int POLL_MILLIS = 1000;
+
+    /**
+     * Connections handled at the same time, further connections wait in the accept queue.
+     */
+    private static final int MAX_CONNECTIONS = 64;
+
+    /**
+     * How long to wait for the request of a connection, clients send it right after connecting.
+     */
+    private static final int REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final File directory;
+
+    private final long idleMillis;
+
+    private final PrintStream log;
+
+    private final String token = newToken();
+
+    private final InProcessJarsigner jarsigner;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool( MAX_CONNECTIONS );
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final int threads = Runtime.getRuntime().availableProcessors();
+
+    private final long budget = Runtime.getRuntime().maxMemory() / 2;
+
+    /**
+     * Estimated heap and number of jars being processed.
+     */
+    private final Object lock = new Object();
+
+    private long used;
+
+    private int running;
+
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private volatile boolean stopped;
+
+    WorkerDaemon( File directory, long idleSeconds, PrintStream log )
+    {
+        this.directory = directory;
+        this.idleMillis = idleSeconds * 1000;
+        this.log = log;
+        this.jarsigner = InProcessJarsigner.newInstance( log );
+    }
+
+    /**
+     * Arguments: state directory, idle timeout in seconds.
+     */
+    public static void main( String[] args )
+        throws Exception
+    {
+        File directory = new File( args[0] );
+        long idleSeconds = Long.parseLong( args[1] );
+
+        directory.mkdirs();
+        RandomAccessFile lockFile = new RandomAccessFile( new File( directory, LOCK ), "rw" );
+        FileLock lock = lockFile.getChannel().tryLock();
+        if ( lock == null )
+        {
+            // started concurrently by another build, which will use the running worker
+            System.exit( 0 );
+        }
+
+        // the worker outlives many builds, keep the log of the previous worker only
+        File logFile = new File( directory, LOG );
+        File oldLogFile = new File( directory, OLD_LOG );
+        oldLogFile.delete();
+        logFile.renameTo( oldLogFile );
+        PrintStream log = new PrintStream( new FileOutputStream( logFile ), true );
+        System.setOut( log );
+        System.setErr( log );
+
+        try
+        {
+            new WorkerDaemon( directory, idleSeconds, log ).run();
+        }
+        catch ( Throwable e )
+        {
+            e.printStackTrace( log );
+        }
+        finally
+        {
+            new File( directory, PROPERTIES ).delete();
+            lock.release();
+            lockFile.close();
+        }
+        System.exit( 0 );
+    }
+
+    void run()
+        throws IOException
+    {
+        ServerSocket serverSocket = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+        try
+        {
+            serverSocket.setSoTimeout( POLL_MILLIS );
+            writeProperties( serverSocket.getLocalPort() );
+            log( "Worker started on port " + serverSocket.getLocalPort() + ", idle timeout " + ( idleMillis / 1000 )
+                + " s, " + threads + " threads, heap budget " + ( budget / ( 1024 * 1024 ) ) + " MB"
+                + ( jarsigner != null ? "" : ", jarsigner is not available" ) );
+
+            while ( !stopped || active.get() > 0 )
+            {
+                try
+                {
+                    final Socket socket = serverSocket.accept();
+                    lastActivity = System.currentTimeMillis();
+                    executor.execute( new Runnable()
+                    {
+                        public void run()
+                        {
+                            handle( socket );
+                        }
+                    } );
+                }
+                catch ( SocketTimeoutException e )
+                {
+                    if ( active.get() == 0 && System.currentTimeMillis() - lastActivity > idleMillis )
+                    {
+                        log( "Worker idle for " + ( idleMillis / 1000 ) + " s, exiting" );
+                        break;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            serverSocket.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle( Socket socket )
+    {
+        boolean counted = false;
+        try
+        {
+            // connections that never send their request must not keep the worker busy
+            socket.setSoTimeout( REQUEST_TIMEOUT_MILLIS );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+
+            if ( !token.equals( in.readUTF() ) )
+            {
+                log( "Rejected request with wrong token" );
+                return;
+            }
+            String command = in.readUTF();
+            String[] args = new String[in.readInt()];
+            for ( int i = 0; i < args.length; i++ )
+            {
+                args[i] = in.readUTF();
+            }
+            active.incrementAndGet();
+            counted = true;
+
+            long start = System.currentTimeMillis();
+            boolean ok;
+            String output;
+            try
+            {
+                output = execute( command, args );
+                ok = true;
+            }
+            catch ( Exception e )
+            {
+                output = e.getMessage() != null ? e.getMessage() : e.toString();
+                ok = false;
+            }
+            if ( !PING.equals( command ) )
+            {
+                log( command + " " + getJar( command, args ) + ( ok ? "" : " failed: " + output ) + ", "
+                    + ( System.currentTimeMillis() - start ) + " ms" );
+            }
+
+            out.writeBoolean( ok );
+            writeString( out, output );
+            out.flush();
+        }
+        catch ( IOException e )
+        {
+            log( "Request failed: " + e );
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+            lastActivity = System.currentTimeMillis();
+            if ( counted )
+            {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private String execute( String command, String[] args )
+        throws IOException
+    {
+        if ( PING.equals( command ) )
+        {
+            return jarsigner != null ? CAN_SIGN : "";
+        }
+        else if ( NORMALIZE.equals( command ) || PACK.equals( command ) || SIGN.equals( command ) )
+        {
+            // estimated heap is the last argument of pack200 requests, jarsigner streams the jar
+            long cost = SIGN.equals( command ) ? 0 : Long.parseLong( args[args.length - 1] );
+            acquire( cost );
+            try
+            {
+                return process( command, args );
+            }
+            finally
+            {
+                release( cost );
+            }
+        }
+        else if ( STOP.equals( command ) )
+        {
+            log( "Worker stopped" );
+            stopped = true;
+        }
+        else
+        {
+            throw new IOException( "Unknown worker command " + command );
+        }
+        return "";
+    }
+
+    private String process( String command, String[] args )
+        throws IOException
+    {
+        if ( NORMALIZE.equals( command ) )
+        {
+            new Pack200Processor().normalize( new File( args[0] ), Long.parseLong( args[1] ) );
+        }
+        else if ( PACK.equals( command ) )
+        {
+            GzipCompressor compressor = new GzipCompressor( Boolean.parseBoolean( args[2] ) );
+            new Pack200Processor().pack( new File( args[0] ), new File( args[1] ), compressor,
+                                         Long.parseLong( args[3] ) );
+        }
+        else
+        {
+            if ( jarsigner == null )
+            {
+                throw new IOException( "jarsigner is not available in the worker" );
+            }
+            return jarsigner.sign( new File( args[0] ), copyOfRange( args, 1 ) );
+        }
+        return "";
+    }
+
+    private void acquire( long cost )
+        throws IOException
+    {
+        synchronized ( lock )
+        {
+            while ( running >= threads || ( running > 0 && used + cost > budget ) )
+            {
+                try
+                {
+                    lock.wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( "Interrupted" );
+                }
+            }
+            used += cost;
+            running++;
+        }
+    }
+
+    private void release( long cost )
+    {
+        synchronized ( lock )
+        {
+            used -= cost;
+            running--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return jar processed by the request, for the log
+     */
+    private static String getJar( String command, String[] args )
+    {
+        if ( SIGN.equals( command ) )
+        {
+            // working directory, jarsigner options, jar and alias
+            for ( int i = args.length - 1; i > 0; i-- )
+            {
+                if ( args[i].endsWith( ".jar" ) )
+                {
+                    return args[i];
+                }
+            }
+        }
+        return args.length > 0 ? args[0] : "";
+    }
+
+    private void writeProperties( int port )
+        throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty( "port", Integer.toString( port ) );
+        properties.setProperty( "token", token );
+
+        File file = new File( directory, PROPERTIES );
+        File tmp = new File( directory, PROPERTIES + ".tmp" );
+        tmp.delete();
+        tmp.createNewFile();
+        // the token keeps other users from having the worker modify our files
+        tmp.setReadable( false, false );
+        tmp.setReadable( true, true );
+        OutputStream os = new FileOutputStream( tmp );
+        try
+        {
+            properties.store( os, null );
+        }
+        finally
+        {
+            IOUtil.close( os );
+        }
+        if ( !tmp.renameTo( file ) )
+        {
+            file.delete();
+            if ( !tmp.renameTo( file ) )
+            {
+                throw new IOException( "Could not write " + file.getAbsolutePath() );
+            }
+        }
+    }
+
+    private void log( String message )
+    {
+        log.println( new Date() + " " + message );
+    }
+
+    private static String newToken()
+    {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes( bytes );
+        StringBuilder sb = new StringBuilder();
+        for ( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    private static String[] copyOfRange( String[] args, int from )
+    {
+        String[] result = new String[args.length - from];
+        System.arraycopy( args, from, result, 0, result.length );
+        return result;
+    }
+
+    /**
+     * Writes a string of any length, unlike {@link DataOutputStream#writeUTF(String)}.
+     */
+    static void writeString( DataOutputStream out, String string )
+        throws IOException
+    {
+        byte[] bytes = string.getBytes( "UTF-8" );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    static String readString( DataInputStream in )
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+        return new String( bytes, "UTF-8" );
+    }
+}
@@ -0,0 +1,757 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.it;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.sonatype.tycho.jnlp.gzip.GzipCompressor;
+import org.sonatype.tycho.jnlp.pack200.Pack200Processor;
+
+/**
+ * Generates a self-contained eclipse-application project with the given number of bundles, for scaling integration
+ * tests. Everything needed to build the product, including stub org.eclipse.osgi and launcher bundles, is written to a
+ * local p2 repository below the project directory, so the build does not need network access. Generated content is the
+ * same for the same number of bundles.
+ * <ul>
+ * <li>every 20th bundle has one platform-specific fragment per environment, with a native library,</li>
+ * <li>every 25th bundle has nested jar on its Bundle-ClassPath,</li>
+ * <li>every 250th bundle is large, with 4MB of incompressible data,</li>
+ * <li>every 50th bundle is started, every other one of them at start level 3.</li>
+ * </ul>
+ * Called from setup.bsh of scale-* integration tests.
+ */
+public class ProductGenerator
+{
+    public static final String VERSION = "1.0.0.v20120101";
+
+    private static final String[][] ENVIRONMENTS = { { "linux", "gtk", "x86_64" }, { "win32", "win32", "x86" },
+        { "macosx", "cocoa", "x86_64" } };
+
+    /**
+     * Environment of os-only fragments, which run on every arch of the os.
+     */
+    private static final String[] OS_ENVIRONMENT = { "linux", null, null };
+
+    /**
+     * Archs of the native libraries of os-only fragments.
+     */
+    private static final String[] OS_ARCHS = { "x86", "x86_64" };
+
+    private static final String LAUNCHER = "org.eclipse.equinox.launcher";
+
+    /**
+     * Required by product build even if the product does not include launchers.
+     */
+    private static final String EXECUTABLE_FEATURE = "org.eclipse.equinox.executable.feature.group";
+
+    private static final int FRAGMENTS_EVERY = 20;
+
+    private static final int NESTED_EVERY = 25;
+
+    private static final int LARGE_EVERY = 250;
+
+    private static final int LARGE_SIZE = 4 * 1024 * 1024;
+
+    private static final int STARTED_EVERY = 50;
+
+    private static final int CLASSES = 10;
+
+    private static final int RESOURCE_SIZE = 16 * 1024;
+
+    private static final int NATIVE_SIZE = 8 * 1024;
+
+    /**
+     * Modification time of generated jar entries, so that generated jars are the same in every run and match copies
+     * Tycho cached in the local repository in earlier runs.
+     */
+    private static final long ENTRY_TIME = new GregorianCalendar( 2012, Calendar.JANUARY, 1 ).getTimeInMillis();
+
+    private static final String[] WORDS = { "bundle", "plugin", "feature", "jnlp", "eclipse", "osgi", "resource",
+        "version", "service", "extension", "point", "registry", "classpath", "manifest", "activator", "framework" };
+
+    private final File basedir;
+
+    private final String productId;
+
+    private final Random random;
+
+    private String version = VERSION;
+
+    private boolean packed;
+
+    private boolean osFragments;
+
+    /**
+     * Keystore, password and alias of the key that signs bundles that are not platform-specific, or {@code null}.
+     */
+    private String[] signer;
+
+    private final List<Bundle> bundles = new ArrayList<Bundle>();
+
+    private static class Bundle
+    {
+        final String id;
+
+        final String host;
+
+        final String[] environment;
+
+        final boolean inProduct;
+
+        File file;
+
+        /**
+         * Start level of started bundles, 0 for default start level, -1 if the bundle is not started.
+         */
+        int startLevel = -1;
+
+        Bundle( String id, String host, String[] environment, boolean inProduct )
+        {
+            this.id = id;
+            this.host = host;
+            this.environment = environment;
+            this.inProduct = inProduct;
+        }
+    }
+
+    public ProductGenerator( File basedir, String productId, long seed )
+    {
+        this.basedir = basedir;
+        this.productId = productId;
+        this.random = new Random( seed );
+    }
+
+    /**
+     * Writes productId.product, jnlp templates and repository/ with the bundles to basedir.
+     */
+    public static void generate( File basedir, String productId, int count )
+        throws IOException
+    {
+        new ProductGenerator( basedir, productId, count ).generate( count );
+    }
+
+    /**
+     * Like {@link #generate(File, String, int)}, but every 20th bundle also has a linux fragment without arch, with a
+     * native library of the same name for each arch in lib/linux/&lt;arch&gt;/, declared in Bundle-NativeCode. Other
+     * bundles are the same as generated by {@link #generate(File, String, int)}.
+     */
+    public static void generateWithOsFragments( File basedir, String productId, int count )
+        throws IOException
+    {
+        ProductGenerator generator = new ProductGenerator( basedir, productId, count );
+        generator.osFragments = true;
+        generator.generate( count );
+    }
+
+    /**
+     * Like {@link #generate(File, String, int)}, but bundles are pack200 conditioned and the repository also has their
+     * packed artifacts, like repositories built with the Eclipse jar processor. Bundles have the given version, so they
+     * don't replace bundles of other tests in the local repository.
+     */
+    public static void generatePacked( File basedir, String productId, int count, String version )
+        throws IOException
+    {
+        ProductGenerator generator = new ProductGenerator( basedir, productId, count );
+        generator.version = version;
+        generator.packed = true;
+        generator.generate( count );
+    }
+
+    /**
+     * Like {@link #generatePacked(File, String, int, String)}, but bundles that are not platform-specific fragments are
+     * signed with the key of alias before they are packed, like repositories of a signed third-party build.
+     */
+    public static void generateSignedPacked( File basedir, String productId, int count, String version,
+                                             File keystore, String password, String alias )
+        throws IOException
+    {
+        ProductGenerator generator = new ProductGenerator( basedir, productId, count );
+        generator.version = version;
+        generator.packed = true;
+        generator.signer = new String[] { keystore.getAbsolutePath(), password, alias };
+        generator.generate( count );
+    }
+
+    public void generate( int count )
+        throws IOException
+    {
+        File plugins = new File( basedir, "repository/plugins" );
+        plugins.mkdirs();
+
+        bundles.add( new Bundle( "org.eclipse.osgi", null, null, true ) );
+        bundles.add( new Bundle( LAUNCHER, null, null, false ) );
+        for ( String[] environment : ENVIRONMENTS )
+        {
+            String id = LAUNCHER + "." + environment[1] + "." + environment[0] + "." + environment[2];
+            bundles.add( new Bundle( id, LAUNCHER, environment, false ) );
+        }
+        for ( int i = 0; i < count; i++ )
+        {
+            String id = "scale.bundle" + i;
+            Bundle bundle = new Bundle( id, null, null, true );
+            if ( i % STARTED_EVERY == 0 )
+            {
+                bundle.startLevel = i % ( 2 * STARTED_EVERY ) == 0 ? 0 : 3;
+            }
+            bundles.add( bundle );
+            if ( i % FRAGMENTS_EVERY == FRAGMENTS_EVERY - 1 )
+            {
+                for ( String[] environment : ENVIRONMENTS )
+                {
+                    String fragmentId = id + "." + environment[0] + "." + environment[2];
+                    bundles.add( new Bundle( fragmentId, id, environment, true ) );
+                }
+            }
+        }
+        if ( osFragments )
+        {
+            // written last, so they don't change the contents of other bundles
+            for ( int i = FRAGMENTS_EVERY - 1; i < count; i += FRAGMENTS_EVERY )
+            {
+                String id = "scale.bundle" + i;
+                bundles.add( new Bundle( id + "." + OS_ENVIRONMENT[0], id, OS_ENVIRONMENT, true ) );
+            }
+        }
+
+        int n = 0;
+        for ( Bundle bundle : bundles )
+        {
+            bundle.file = new File( plugins, bundle.id + "_" + version + ".jar" );
+            boolean nested = bundle.host == null && n % NESTED_EVERY == NESTED_EVERY - 1;
+            boolean large = bundle.host == null && n % LARGE_EVERY == LARGE_EVERY - 1;
+            writeBundle( bundle, nested, large );
+            if ( packed )
+            {
+                Pack200Processor processor = new Pack200Processor();
+                processor.normalize( bundle.file, -1 );
+                if ( signer != null && bundle.environment == null )
+                {
+                    sign( bundle.file );
+                }
+                processor.pack( bundle.file, getPackedFile( bundle ), new GzipCompressor( false ), -1 );
+            }
+            if ( bundle.host == null )
+            {
+                n++;
+            }
+        }
+
+        writeContentXml( new File( basedir, "repository/content.xml" ) );
+        writeArtifactsXml( new File( basedir, "repository/artifacts.xml" ) );
+        writeProduct( new File( basedir, productId + ".product" ) );
+        writeTemplates( new File( basedir, "src/main/jnlp" ) );
+    }
+
+    /**
+     * Signs with SHA-1 digests, the p2 of Tycho 0.13 does not verify newer algorithms.
+     */
+    private void sign( File file )
+        throws IOException
+    {
+        Commandline jarsigner = new Commandline();
+        jarsigner.setExecutable( new File( System.getProperty( "java.home" ), "../bin/jarsigner" ).getAbsolutePath() );
+        jarsigner.addArguments( new String[] { "-keystore", signer[0], "-storepass", signer[1], "-keypass", signer[1],
+            "-digestalg", "SHA1", "-sigalg", "SHA1withRSA", file.getAbsolutePath(), signer[2] } );
+        CommandLineUtils.StringStreamConsumer out = new CommandLineUtils.StringStreamConsumer();
+        try
+        {
+            if ( CommandLineUtils.executeCommandLine( jarsigner, out, out ) != 0 )
+            {
+                throw new IOException( "Could not sign " + file + ": " + out.getOutput() );
+            }
+        }
+        catch ( CommandLineException e )
+        {
+            throw new IOException( "Could not sign " + file + ": " + e.getMessage() );
+        }
+    }
+
+    private void writeBundle( Bundle bundle, boolean nested, boolean large )
+        throws IOException
+    {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Bundle-ManifestVersion", "2" );
+        attributes.putValue( "Bundle-SymbolicName", bundle.id );
+        attributes.putValue( "Bundle-Version", version );
+        if ( bundle.host != null )
+        {
+            attributes.putValue( "Fragment-Host", bundle.host );
+            attributes.putValue( "Eclipse-PlatformFilter", getFilter( bundle.environment ) );
+        }
+        if ( bundle.host != null && bundle.environment[2] == null )
+        {
+            StringBuilder nativeCode = new StringBuilder();
+            for ( String arch : OS_ARCHS )
+            {
+                if ( nativeCode.length() > 0 )
+                {
+                    nativeCode.append( ", " );
+                }
+                nativeCode.append( getNativeLibraryPath( bundle, arch ) ).append( "; processor=" ).append( arch );
+            }
+            attributes.putValue( "Bundle-NativeCode", nativeCode.toString() );
+        }
+        if ( nested )
+        {
+            attributes.putValue( "Bundle-ClassPath", ".,lib/nested.jar" );
+        }
+
+        JarOutputStream jos = new JarOutputStream( new BufferedOutputStream( new FileOutputStream( bundle.file ) ) );
+        try
+        {
+            jos.putNextEntry( newEntry( JarFile.MANIFEST_NAME ) );
+            manifest.write( jos );
+            jos.closeEntry();
+
+            String pkg = bundle.id.replace( '.', '/' );
+            writeContent( jos, pkg, large ? LARGE_SIZE : 0 );
+
+            if ( bundle.host != null && !LAUNCHER.equals( bundle.host ) )
+            {
+                if ( bundle.environment[2] != null )
+                {
+                    jos.putNextEntry( newEntry( getNativeLibraryPath( bundle, bundle.environment[2] ) ) );
+                    jos.write( nativeLibrary( bundle.id ) );
+                    jos.closeEntry();
+                }
+                else
+                {
+                    for ( String arch : OS_ARCHS )
+                    {
+                        jos.putNextEntry( newEntry( getNativeLibraryPath( bundle, arch ) ) );
+                        jos.write( nativeLibrary( bundle.id + "." + arch ) );
+                        jos.closeEntry();
+                    }
+                }
+            }
+
+            if ( nested )
+            {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                JarOutputStream nestedJos = new JarOutputStream( buf );
+                writeContent( nestedJos, pkg + "/nested", 0 );
+                nestedJos.close();
+
+                jos.putNextEntry( newEntry( "lib/nested.jar" ) );
+                jos.write( buf.toByteArray() );
+                jos.closeEntry();
+            }
+        }
+        finally
+        {
+            IOUtil.close( jos );
+        }
+    }
+
+    private static JarEntry newEntry( String name )
+    {
+        JarEntry entry = new JarEntry( name );
+        entry.setTime( ENTRY_TIME );
+        return entry;
+    }
+
+    private void writeContent( JarOutputStream jos, String pkg, int resources )
+        throws IOException
+    {
+        for ( int i = 0; i < CLASSES; i++ )
+        {
+            String name = pkg + "/Class" + i;
+            jos.putNextEntry( newEntry( name + ".class" ) );
+            jos.write( classFile( name, 5 + random.nextInt( 30 ) ) );
+            jos.closeEntry();
+        }
+
+        jos.putNextEntry( newEntry( "plugin.properties" ) );
+        jos.write( resource( 1024 ) );
+        jos.closeEntry();
+
+        for ( int i = 0, written = 0; written < resources; i++ )
+        {
+            byte[] bytes = new byte[RESOURCE_SIZE];
+            random.nextBytes( bytes );
+            jos.putNextEntry( newEntry( "resources/data" + i + ".bin" ) );
+            jos.write( bytes );
+            jos.closeEntry();
+            written += bytes.length;
+        }
+    }
+
+    /**
+     * Platform naming conventions, linux libraries are in a subdirectory.
+     */
+    private static String getNativeLibraryPath( Bundle bundle, String arch )
+    {
+        String name = bundle.id.replace( '.', '_' );
+        String os = bundle.environment[0];
+        if ( "win32".equals( os ) )
+        {
+            return name + ".dll";
+        }
+        if ( "macosx".equals( os ) )
+        {
+            return "lib" + name + ".jnilib";
+        }
+        return "lib/" + os + "/" + arch + "/lib" + name + ".so";
+    }
+
+    /**
+     * Does not use the random generator, so other generated content is the same as without native libraries.
+     */
+    private static byte[] nativeLibrary( String id )
+    {
+        byte[] bytes = new byte[NATIVE_SIZE];
+        int hash = id.hashCode();
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            hash = hash * 31 + i;
+            bytes[i] = (byte) ( i % 64 < 48 ? i : hash >>> 24 );
+        }
+        return bytes;
+    }
+
+    /**
+     * Minimal valid class file of public abstract class with the given number of public abstract methods.
+     */
+    private byte[] classFile( String name, int methods )
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( buf );
+
+        out.writeInt( 0xCAFEBABE );
+        out.writeShort( 0 ); // minor
+        out.writeShort( 49 ); // major, java 5
+
+        // constant pool: 1 this name, 2 this class, 3 super name, 4 super class, 5 descriptor, method names
+        out.writeShort( 6 + methods );
+        out.writeByte( 1 );
+        out.writeUTF( name );
+        out.writeByte( 7 );
+        out.writeShort( 1 );
+        out.writeByte( 1 );
+        out.writeUTF( "java/lang/Object" );
+        out.writeByte( 7 );
+        out.writeShort( 3 );
+        out.writeByte( 1 );
+        out.writeUTF( "(Ljava/lang/String;I)Ljava/lang/Object;" );
+        for ( int i = 0; i < methods; i++ )
+        {
+            out.writeByte( 1 );
+            out.writeUTF( WORDS[random.nextInt( WORDS.length )] + i );
+        }
+
+        out.writeShort( 0x0421 ); // public abstract super
+        out.writeShort( 2 );
+        out.writeShort( 4 );
+        out.writeShort( 0 ); // interfaces
+        out.writeShort( 0 ); // fields
+
+        out.writeShort( methods );
+        for ( int i = 0; i < methods; i++ )
+        {
+            out.writeShort( 0x0401 ); // public abstract
+            out.writeShort( 6 + i );
+            out.writeShort( 5 );
+            out.writeShort( 0 ); // attributes
+        }
+
+        out.writeShort( 0 ); // attributes
+        out.flush();
+
+        return buf.toByteArray();
+    }
+
+    private byte[] resource( int size )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder( size + 32 );
+        while ( sb.length() < size )
+        {
+            sb.append( WORDS[random.nextInt( WORDS.length )] );
+            sb.append( random.nextInt( 10 ) == 0 ? '\n' : ' ' );
+        }
+        return sb.toString().getBytes( "UTF-8" );
+    }
+
+    private static String getFilter( String[] environment )
+    {
+        if ( environment[2] == null )
+        {
+            return "(osgi.os=" + environment[0] + ")";
+        }
+        return "(& (osgi.os=" + environment[0] + ") (osgi.ws=" + environment[1] + ") (osgi.arch=" + environment[2]
+            + "))";
+    }
+
+    private void writeContentXml( File file )
+        throws IOException
+    {
+        PrintWriter w = newWriter( file );
+        try
+        {
+            w.println( "<?xml version='1.0' encoding='UTF-8'?>" );
+            w.println( "<?metadataRepository version='1.1.0'?>" );
+            w.println( "<repository name='" + productId + "'"
+                + " type='org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository' version='1'>" );
+            w.println( "  <properties size='1'>" );
+            w.println( "    <property name='p2.timestamp' value='0'/>" );
+            w.println( "  </properties>" );
+            w.println( "  <units size='" + ( bundles.size() + 1 ) + "'>" );
+            w.println( "    <unit id='" + EXECUTABLE_FEATURE + "' version='" + version + "'>" );
+            w.println( "      <properties size='1'>" );
+            w.println( "        <property name='org.eclipse.equinox.p2.type.group' value='true'/>" );
+            w.println( "      </properties>" );
+            w.println( "      <provides size='1'>" );
+            w.println( "        <provided namespace='org.eclipse.equinox.p2.iu' name='" + EXECUTABLE_FEATURE
+                + "' version='" + version + "'/>" );
+            w.println( "      </provides>" );
+            w.println( "      <touchpoint id='null' version='0.0.0'/>" );
+            w.println( "    </unit>" );
+            for ( Bundle bundle : bundles )
+            {
+                w.println( "    <unit id='" + bundle.id + "' version='" + version + "'>" );
+                w.println( "      <provides size='" + ( bundle.host != null ? 4 : 3 ) + "'>" );
+                w.println( "        <provided namespace='org.eclipse.equinox.p2.iu' name='" + bundle.id
+                    + "' version='" + version + "'/>" );
+                w.println( "        <provided namespace='osgi.bundle' name='" + bundle.id + "' version='" + version
+                    + "'/>" );
+                w.println( "        <provided namespace='org.eclipse.equinox.p2.eclipse.type' name='bundle'"
+                    + " version='1.0.0'/>" );
+                if ( bundle.host != null )
+                {
+                    w.println( "        <provided namespace='osgi.fragment' name='" + bundle.host + "' version='"
+                        + version + "'/>" );
+                }
+                w.println( "      </provides>" );
+                if ( bundle.host != null )
+                {
+                    w.println( "      <requires size='1'>" );
+                    w.println( "        <required namespace='osgi.bundle' name='" + bundle.host + "' range='0.0.0'/>" );
+                    w.println( "      </requires>" );
+                    w.println( "      <filter>" + getFilter( bundle.environment ).replace( "&", "&amp;" )
+                        + "</filter>" );
+                }
+                w.println( "      <artifacts size='1'>" );
+                w.println( "        <artifact classifier='osgi.bundle' id='" + bundle.id + "' version='" + version
+                    + "'/>" );
+                w.println( "      </artifacts>" );
+                w.println( "      <touchpoint id='org.eclipse.equinox.p2.osgi' version='1.0.0'/>" );
+                w.println( "      <touchpointData size='1'>" );
+                w.println( "        <instructions size='1'>" );
+                w.println( "          <instruction key='manifest'>Bundle-SymbolicName: " + bundle.id
+                    + "&#xA;Bundle-Version: " + version + "&#xA;</instruction>" );
+                w.println( "        </instructions>" );
+                w.println( "      </touchpointData>" );
+                w.println( "    </unit>" );
+            }
+            w.println( "  </units>" );
+            w.println( "</repository>" );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
+
+    private void writeArtifactsXml( File file )
+        throws IOException
+    {
+        PrintWriter w = newWriter( file );
+        try
+        {
+            w.println( "<?xml version='1.0' encoding='UTF-8'?>" );
+            w.println( "<?artifactRepository version='1.1.0'?>" );
+            w.println( "<repository name='" + productId + "'"
+                + " type='org.eclipse.equinox.p2.artifact.repository.simpleRepository' version='1'>" );
+            w.println( "  <properties size='2'>" );
+            w.println( "    <property name='p2.timestamp' value='0'/>" );
+            w.println( "    <property name='p2.compressed' value='false'/>" );
+            w.println( "  </properties>" );
+            w.println( "  <mappings size='2'>" );
+            w.println( "    <rule filter='(&amp; (classifier=osgi.bundle) (format=packed))'"
+                + " output='${repoUrl}/plugins/${id}_${version}.jar.pack.gz'/>" );
+            w.println( "    <rule filter='(&amp; (classifier=osgi.bundle))'"
+                + " output='${repoUrl}/plugins/${id}_${version}.jar'/>" );
+            w.println( "  </mappings>" );
+            w.println( "  <artifacts size='" + ( packed ? 2 : 1 ) * bundles.size() + "'>" );
+            for ( Bundle bundle : bundles )
+            {
+                w.println( "    <artifact classifier='osgi.bundle' id='" + bundle.id + "' version='" + version + "'>" );
+                w.println( "      <properties size='1'>" );
+                w.println( "        <property name='download.size' value='" + bundle.file.length() + "'/>" );
+                w.println( "      </properties>" );
+                w.println( "    </artifact>" );
+                if ( packed )
+                {
+                    w.println( "    <artifact classifier='osgi.bundle' id='" + bundle.id + "' version='" + version
+                        + "'>" );
+                    w.println( "      <processing size='1'>" );
+                    w.println( "        <step id='org.eclipse.equinox.p2.processing.Pack200Unpacker'"
+                        + " required='true'/>" );
+                    w.println( "      </processing>" );
+                    w.println( "      <properties size='2'>" );
+                    w.println( "        <property name='format' value='packed'/>" );
+                    w.println( "        <property name='download.size' value='" + getPackedFile( bundle ).length()
+                        + "'/>" );
+                    w.println( "      </properties>" );
+                    w.println( "    </artifact>" );
+                }
+            }
+            w.println( "  </artifacts>" );
+            w.println( "</repository>" );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
+
+    private static File getPackedFile( Bundle bundle )
+    {
+        return new File( bundle.file.getPath() + ".pack.gz" );
+    }
+
+    private void writeProduct( File file )
+        throws IOException
+    {
+        PrintWriter w = newWriter( file );
+        try
+        {
+            w.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+            w.println( "<?pde version=\"3.5\"?>" );
+            w.println();
+            w.println( "<product uid=\"" + productId + "\" id=\"" + productId + ".product\" application=\""
+                + productId + ".application\" version=\"1.0.0.qualifier\" useFeatures=\"false\""
+                + " includeLaunchers=\"false\">" );
+            w.println( "   <configIni use=\"\">" );
+            w.println( "   </configIni>" );
+            w.println( "   <plugins>" );
+            for ( Bundle bundle : bundles )
+            {
+                if ( !bundle.inProduct )
+                {
+                    continue;
+                }
+                if ( bundle.host != null )
+                {
+                    String[] environment = bundle.environment;
+                    w.println( "      <plugin id=\"" + bundle.id + "\" fragment=\"true\" os=\"" + environment[0] + "\""
+                        + ( environment[1] != null ? " ws=\"" + environment[1] + "\"" : "" )
+                        + ( environment[2] != null ? " arch=\"" + environment[2] + "\"" : "" ) + "/>" );
+                }
+                else
+                {
+                    w.println( "      <plugin id=\"" + bundle.id + "\"/>" );
+                }
+            }
+            w.println( "   </plugins>" );
+            w.println( "   <configurations>" );
+            for ( Bundle bundle : bundles )
+            {
+                if ( bundle.startLevel >= 0 )
+                {
+                    w.println( "      <plugin id=\"" + bundle.id + "\" autoStart=\"true\" startLevel=\""
+                        + bundle.startLevel + "\" />" );
+                }
+            }
+            w.println( "   </configurations>" );
+            w.println( "</product>" );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
+
+    private void writeTemplates( File directory )
+        throws IOException
+    {
+        directory.mkdirs();
+
+        PrintWriter w = newWriter( new File( directory, "install.jnlp" ) );
+        try
+        {
+            w.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+            w.println( "<jnlp spec=\"1.5+\" version=\"${unqualifiedVersion}.${buildQualifier}\">" );
+            w.println( "  <information>" );
+            w.println( "    <title>${project.name}</title>" );
+            w.println( "    <vendor>${project.organization.name}</vendor>" );
+            w.println( "  </information>" );
+            w.println( "  <security>" );
+            w.println( "    <all-permissions/>" );
+            w.println( "  </security>" );
+            w.println( "  <component-desc/>" );
+            w.println( "  <resources>" );
+            w.println( "    <j2se version=\"1.5+\"/>" );
+            w.println( "    <property name=\"eclipse.product\" value=\"${product.product}\"/>" );
+            w.println( "    <property name=\"osgi.bundles\" value=\"${configini.osgi.bundles}\"/>" );
+            w.println( "    <property name=\"eclipse.webstart.automaticInstallation\" value=\"true\"/>" );
+            w.println( "  </resources>" );
+            w.println( "</jnlp>" );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+
+        w = newWriter( new File( directory, "artifacts.xml" ) );
+        try
+        {
+            w.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+            w.println( "<?artifactRepository class='org.eclipse.equinox.internal.p2.artifact.repository.simple."
+                + "SimpleArtifactRepository' version='1.0.0'?>" );
+            w.println( "<repository name=\"${project.name}\""
+                + " type=\"org.eclipse.equinox.p2.artifact.repository.simpleRepository\" version=\"1\">" );
+            w.println( "  <mappings>" );
+            w.println( "    <rule output=\"${repoUrl}/plugins/${id}_${version}.jar\""
+                + " filter=\"(&amp; (classifier=osgi.bundle))\" />" );
+            w.println( "  </mappings>" );
+            w.println( "  <artifacts>" );
+            w.println( "  </artifacts>" );
+            w.println( "</repository>" );
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
+
+    private static PrintWriter newWriter( File file )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        return new PrintWriter( new OutputStreamWriter( new BufferedOutputStream( new FileOutputStream( file ) ),
+                                                        "UTF-8" ) );
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.it;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Collects wall time, bytes in and peak heap of each goal from the TOTAL lines of stage reports
+ * (target/jnlp-report/*.csv) of a scale-* integration test, writes them to target/scaling.csv and compares time per
+ * bundle and time per byte to the result of a smaller scale-* integration test. Called from verify.bsh.
+ */
+public class ScalingReport
+{
+    /**
+     * Time per bundle and time per byte of a goal may grow this many times between smaller and larger product before
+     * it is considered non-linear scaling. Small products have higher per bundle fixed overhead, so this is generous.
+     * Larger products have more large jars, so time per bundle alone is not enough.
+     */
+    public static final double MAX_GROWTH = 2.0;
+
+    /**
+     * Goals faster than this are not compared, their times are mostly noise.
+     */
+    private static final long MIN_MILLIS = 2000;
+
+    private static final String HEADER = "goal,bundles,wallMillis,bytesIn,peakHeapBytes,millisPerBundle";
+
+    private final Map<String, long[]> goals = new LinkedHashMap<String, long[]>();
+
+    private final int bundles;
+
+    public ScalingReport( File basedir, int bundles )
+        throws IOException
+    {
+        this.bundles = bundles;
+
+        File[] files = new File( basedir, "target/jnlp-report" ).listFiles();
+        if ( files == null )
+        {
+            throw new IOException( "No stage reports in " + basedir );
+        }
+        Arrays.sort( files );
+        for ( File file : files )
+        {
+            if ( file.getName().endsWith( ".csv" ) )
+            {
+                String goal = file.getName().substring( 0, file.getName().length() - 4 );
+                long[] total = readTotal( file );
+                if ( total != null )
+                {
+                    goals.put( goal, total );
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes target/scaling.csv and throws an exception if both time per bundle and time per byte of any goal grew
+     * more than {@link #MAX_GROWTH} times compared to the baseline integration test.
+     */
+    public static void verify( File basedir, int bundles, File baselineBasedir, int baselineBundles )
+        throws Exception
+    {
+        ScalingReport report = new ScalingReport( basedir, bundles );
+        report.write( new File( basedir, "target/scaling.csv" ) );
+
+        if ( baselineBasedir == null || !baselineBasedir.isDirectory() )
+        {
+            return;
+        }
+
+        ScalingReport baseline = new ScalingReport( baselineBasedir, baselineBundles );
+
+        StringBuilder errors = new StringBuilder();
+        for ( Map.Entry<String, long[]> entry : report.goals.entrySet() )
+        {
+            long[] before = baseline.goals.get( entry.getKey() );
+            long wall = entry.getValue()[0];
+            if ( before == null || wall < MIN_MILLIS )
+            {
+                continue;
+            }
+            double perBundle = (double) wall / bundles;
+            double perBundleBefore = (double) before[0] / baselineBundles;
+            double perByte = (double) wall / Math.max( 1, entry.getValue()[1] );
+            double perByteBefore = (double) before[0] / Math.max( 1, before[1] );
+            if ( perBundle > perBundleBefore * MAX_GROWTH && perByte > perByteBefore * MAX_GROWTH )
+            {
+                errors.append( String.format( Locale.ENGLISH, "%s: %.2f ms per bundle for %d bundles,"
+                    + " %.2f ms per bundle for %d bundles\n", entry.getKey(), perBundle, bundles, perBundleBefore,
+                                              baselineBundles ) );
+            }
+        }
+        if ( errors.length() > 0 )
+        {
+            throw new Exception( "Non-linear scaling\n" + errors );
+        }
+    }
+
+    public void write( File file )
+        throws IOException
+    {
+        PrintWriter w = new PrintWriter( new FileWriter( file ) );
+        try
+        {
+            w.println( HEADER );
+            for ( Map.Entry<String, long[]> entry : goals.entrySet() )
+            {
+                long[] total = entry.getValue();
+                w.println( entry.getKey() + "," + bundles + "," + total[0] + "," + total[1] + "," + total[2] + ","
+                    + String.format( Locale.ENGLISH, "%.3f", (double) total[0] / bundles ) );
+            }
+        }
+        finally
+        {
+            IOUtil.close( w );
+        }
+    }
+
+    /**
+     * @return wall millis, bytes in and peak heap bytes of TOTAL line, or null
+     */
+    private static long[] readTotal( File file )
+        throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new FileReader( file ) );
+        try
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( "," );
+                if ( "TOTAL".equals( fields[0] ) && fields.length >= 7 )
+                {
+                    return new long[] { Long.parseLong( fields[1] ), Long.parseLong( fields[3] ),
+                        Long.parseLong( fields[6] ) };
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.it;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server that serves a directory, typically target/product/eclipse, like a Webstart download server
+ * would: if the client accepts pack200-gzip or gzip encoding and there is corresponding .pack.gz or .gz file next to
+ * the requested file, the compressed file is sent instead. Every response is delayed by the given latency, and all
+ * responses together share the given bandwidth, which simulates a single client link.
+ */
+public class ThrottledHttpServer
+{
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final File root;
+
+    private final long bytesPerSecond;
+
+    private final long latencyMillis;
+
+    private final Object lock = new Object();
+
+    /**
+     * Time when the link is available for the next chunk, in System.nanoTime() units.
+     */
+    private long available;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param bytesPerSecond bandwidth, 0 for unlimited
+     * @param latencyMillis delay of each response
+     */
+    public ThrottledHttpServer( File root, long bytesPerSecond, long latencyMillis )
+    {
+        this.root = root;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void start()
+        throws IOException
+    {
+        // otherwise small responses are delayed by nagle's algorithm, which is read once per jvm
+        if ( System.getProperty( "sun.net.httpserver.nodelay" ) == null )
+        {
+            System.setProperty( "sun.net.httpserver.nodelay", "true" );
+        }
+
+        available = System.nanoTime();
+        server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        server.createContext( "/", new HttpHandler()
+        {
+            public void handle( HttpExchange exchange )
+                throws IOException
+            {
+                try
+                {
+                    serve( exchange );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( "Interrupted" );
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        } );
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor( executor );
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    public String getUrl()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    void serve( HttpExchange exchange )
+        throws IOException, InterruptedException
+    {
+        Thread.sleep( latencyMillis );
+
+        String path = exchange.getRequestURI().getPath();
+        File file = new File( root, path );
+        if ( path.contains( ".." ) || !file.isFile() )
+        {
+            exchange.sendResponseHeaders( 404, -1 );
+            return;
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+        Headers headers = exchange.getResponseHeaders();
+        if ( accepts( acceptEncoding, "pack200-gzip" ) && new File( root, path + ".pack.gz" ).isFile() )
+        {
+            file = new File( root, path + ".pack.gz" );
+            headers.set( "Content-Encoding", "pack200-gzip" );
+        }
+        else if ( accepts( acceptEncoding, "gzip" ) && new File( root, path + ".gz" ).isFile() )
+        {
+            file = new File( root, path + ".gz" );
+            headers.set( "Content-Encoding", "gzip" );
+        }
+
+        boolean head = "HEAD".equals( exchange.getRequestMethod() );
+        exchange.sendResponseHeaders( 200, head ? -1 : file.length() );
+        if ( head )
+        {
+            return;
+        }
+
+        InputStream is = new FileInputStream( file );
+        OutputStream os = exchange.getResponseBody();
+        try
+        {
+            byte[] buf = new byte[CHUNK_SIZE];
+            int n;
+            while ( ( n = is.read( buf ) ) != -1 )
+            {
+                throttle( n );
+                os.write( buf, 0, n );
+            }
+        }
+        finally
+        {
+            IOUtil.close( is );
+            IOUtil.close( os );
+        }
+    }
+
+    private static boolean accepts( String acceptEncoding, String encoding )
+    {
+        if ( acceptEncoding == null )
+        {
+            return false;
+        }
+        for ( String token : acceptEncoding.split( "," ) )
+        {
+            if ( encoding.equals( token.trim() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until the shared link can transfer the given number of bytes.
+     */
+    private void throttle( int bytes )
+        throws InterruptedException
+    {
+        if ( bytesPerSecond <= 0 )
+        {
+            return;
+        }
+        long wait;
+        synchronized ( lock )
+        {
+            long now = System.nanoTime();
+            available = Math.max( available, now ) + bytes * 1000000000L / bytesPerSecond;
+            wait = available - now;
+        }
+        if ( wait > 0 )
+        {
+            Thread.sleep( wait / 1000000, (int) ( wait % 1000000 ) );
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.it;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded stand-in for a WebDAV download server. Supports GET, PUT and MKCOL on a directory. Like real WebDAV servers,
+ * it responds 409 Conflict to PUT into a collection that does not exist. Requests are recorded in the order they
+ * complete, as "METHOD path".
+ */
+public class WebDavStubServer
+{
+    private final File root;
+
+    private final List<String> requests = Collections.synchronizedList( new ArrayList<String>() );
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    public WebDavStubServer( File root )
+    {
+        this.root = root;
+    }
+
+    public void start()
+        throws IOException
+    {
+        if ( System.getProperty( "sun.net.httpserver.nodelay" ) == null )
+        {
+            System.setProperty( "sun.net.httpserver.nodelay", "true" );
+        }
+
+        root.mkdirs();
+        server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        server.createContext( "/", new HttpHandler()
+        {
+            public void handle( HttpExchange exchange )
+                throws IOException
+            {
+                try
+                {
+                    serve( exchange );
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        } );
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor( executor );
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    public String getUrl()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return copy of requests received so far
+     */
+    public List<String> getRequests()
+    {
+        synchronized ( requests )
+        {
+            return new ArrayList<String>( requests );
+        }
+    }
+
+    public void clearRequests()
+    {
+        requests.clear();
+    }
+
+    void serve( HttpExchange exchange )
+        throws IOException
+    {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        File file = new File( root, path );
+
+        int status;
+        if ( path.contains( ".." ) )
+        {
+            status = 403;
+        }
+        else if ( "GET".equals( method ) )
+        {
+            if ( !file.isFile() )
+            {
+                status = 404;
+            }
+            else
+            {
+                requests.add( method + " " + path );
+                exchange.sendResponseHeaders( 200, file.length() );
+                InputStream is = new FileInputStream( file );
+                OutputStream os = exchange.getResponseBody();
+                try
+                {
+                    IOUtil.copy( is, os );
+                }
+                finally
+                {
+                    IOUtil.close( is );
+                    IOUtil.close( os );
+                }
+                return;
+            }
+        }
+        else if ( "PUT".equals( method ) )
+        {
+            if ( !file.getParentFile().isDirectory() )
+            {
+                IOUtil.toByteArray( exchange.getRequestBody() );
+                status = 409;
+            }
+            else
+            {
+                status = file.exists() ? 204 : 201;
+                InputStream is = exchange.getRequestBody();
+                OutputStream os = new FileOutputStream( file );
+                try
+                {
+                    IOUtil.copy( is, os );
+                }
+                finally
+                {
+                    IOUtil.close( os );
+                    IOUtil.close( is );
+                }
+            }
+        }
+        else if ( "MKCOL".equals( method ) )
+        {
+            if ( file.exists() )
+            {
+                status = 405;
+            }
+            else
+            {
+                status = file.getParentFile().isDirectory() && file.mkdir() ? 201 : 409;
+            }
+        }
+        else
+        {
+            status = 501;
+        }
+
+        requests.add( method + " " + path );
+        exchange.sendResponseHeaders( status, -1 );
+    }
+}
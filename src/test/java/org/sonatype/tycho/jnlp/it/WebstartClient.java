@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Sonatype Inc. and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Sonatype Inc. - initial API and implementation
+ *******************************************************************************/
+package org.sonatype.tycho.jnlp.it;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.tycho.jnlp.Environment;
+
+import de.pdark.decentxml.Document;
+import de.pdark.decentxml.Element;
+import de.pdark.decentxml.XMLParser;
+
+/**
+ * Simulated Java Webstart client. Downloads JNLP file generated by jnlp-file goal and all eager resources (jar and
+ * nativelib elements without download="lazy", including those of extension JNLP files) for the given environment,
+ * and reports bytes transferred and time until all eager resources are available. Resources are always requested from
+ * the server the client was started with, absolute hrefs are resolved against it by path. Resources not found on the
+ * server are reported as missing, real Webstart client would refuse to launch the application.
+ * <p>
+ * Can be run from command line to compare generator options offline, see {@link #main(String[])}.
+ */
+public class WebstartClient
+{
+    private final Environment environment;
+
+    private final boolean packEnabled;
+
+    private final int connections;
+
+    /**
+     * @param environment Java os.name and os.arch of the client
+     * @param packEnabled if {@code true}, the client accepts pack200-gzip encoding, like Webstart does with
+     *            jnlp.packEnabled property
+     * @param connections number of parallel downloads
+     */
+    public WebstartClient( Environment environment, boolean packEnabled, int connections )
+    {
+        this.environment = environment;
+        this.packEnabled = packEnabled;
+        this.connections = connections;
+    }
+
+    public static class Download
+    {
+        public final String path;
+
+        public final String encoding;
+
+        public final long bytes;
+
+        public final long millis;
+
+        /**
+         * Decoded content of JNLP files, null for other resources.
+         */
+        byte[] content;
+
+        Download( String path, String encoding, long bytes, long millis )
+        {
+            this.path = path;
+            this.encoding = encoding;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+    }
+
+    public static class Result
+    {
+        public final List<Download> downloads = Collections.synchronizedList( new ArrayList<Download>() );
+
+        public final List<String> missing = Collections.synchronizedList( new ArrayList<String>() );
+
+        public long millis;
+
+        public long getBytes()
+        {
+            long bytes = 0;
+            synchronized ( downloads )
+            {
+                for ( Download download : downloads )
+                {
+                    bytes += download.bytes;
+                }
+            }
+            return bytes;
+        }
+
+        public int getRequests()
+        {
+            return downloads.size();
+        }
+
+        public void write( File file )
+            throws IOException
+        {
+            PrintWriter w = new PrintWriter( new FileWriter( file ) );
+            try
+            {
+                w.println( "path,encoding,bytes,millis" );
+                synchronized ( downloads )
+                {
+                    for ( Download download : downloads )
+                    {
+                        w.println( download.path + "," + ( download.encoding != null ? download.encoding : "" ) + ","
+                            + download.bytes + "," + download.millis );
+                    }
+                }
+                synchronized ( missing )
+                {
+                    for ( String path : missing )
+                    {
+                        w.println( path + ",missing,," );
+                    }
+                }
+                w.println( "TOTAL,," + getBytes() + "," + millis );
+            }
+            finally
+            {
+                IOUtil.close( w );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return getRequests() + " requests, " + getBytes() + " bytes, " + millis + " ms, " + missing.size()
+                + " missing";
+        }
+    }
+
+    /**
+     * Serves the directory with {@link ThrottledHttpServer} and launches the JNLP file at the given path.
+     */
+    public static Result simulate( File directory, String jnlpPath, Environment environment, long bytesPerSecond,
+                                   long latencyMillis, boolean packEnabled, int connections )
+        throws IOException
+    {
+        ThrottledHttpServer server = new ThrottledHttpServer( directory, bytesPerSecond, latencyMillis );
+        server.start();
+        try
+        {
+            WebstartClient client = new WebstartClient( environment, packEnabled, connections );
+            return client.launch( new URL( new URL( server.getUrl() ), jnlpPath ) );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * Arguments: directory, JNLP path relative to the directory, os.name, os.arch, bandwidth in bytes per second,
+     * latency in milliseconds, pack200 enabled (default true), number of connections (default 1). For example
+     * {@code target/product/eclipse product_1.0.0.jnlp Linux amd64 1000000 50 true 1}.
+     */
+    public static void main( String[] args )
+        throws IOException
+    {
+        if ( args.length < 6 )
+        {
+            System.err.println( "Usage: WebstartClient directory jnlpPath os.name os.arch bytesPerSecond"
+                + " latencyMillis [packEnabled] [connections]" );
+            System.exit( 1 );
+        }
+        Environment environment = new Environment( null, args[2], args[3] );
+        boolean packEnabled = args.length > 6 ? Boolean.parseBoolean( args[6] ) : true;
+        int connections = args.length > 7 ? Integer.parseInt( args[7] ) : 1;
+
+        Result result =
+            simulate( new File( args[0] ), args[1], environment, Long.parseLong( args[4] ), Long.parseLong( args[5] ),
+                      packEnabled, connections );
+
+        System.out.println( result );
+    }
+
+    /**
+     * Downloads the JNLP file and its eager resources.
+     */
+    public Result launch( URL jnlp )
+        throws IOException
+    {
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+
+        List<URL> resources = new ArrayList<URL>();
+        collectResources( jnlp, result, resources );
+
+        ExecutorService executor = Executors.newFixedThreadPool( connections );
+        try
+        {
+            final Result r = result;
+            List<Future<Download>> futures = new ArrayList<Future<Download>>();
+            for ( final URL resource : resources )
+            {
+                futures.add( executor.submit( new Callable<Download>()
+                {
+                    public Download call()
+                        throws IOException
+                    {
+                        Download download = download( resource, packEnabled, false );
+                        if ( download == null )
+                        {
+                            r.missing.add( resource.getPath() );
+                        }
+                        return download;
+                    }
+                } ) );
+            }
+            for ( Future<Download> future : futures )
+            {
+                Download download = future.get();
+                if ( download != null )
+                {
+                    result.downloads.add( download );
+                }
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            IOException ioe = new IOException( "Could not download resource" );
+            ioe.initCause( e.getCause() );
+            throw ioe;
+        }
+        catch ( InterruptedException e )
+        {
+            throw new IOException( "Interrupted" );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private void collectResources( URL jnlp, Result result, List<URL> resources )
+        throws IOException
+    {
+        Download download = download( jnlp, false, true );
+        if ( download == null )
+        {
+            throw new IOException( "Could not download " + jnlp );
+        }
+        result.downloads.add( download );
+
+        Document document = XMLParser.parse( new String( download.content, "UTF-8" ) );
+        for ( Element resourcesDom : document.getRootElement().getChildren( "resources" ) )
+        {
+            if ( !matches( resourcesDom.getAttributeValue( "os" ), environment.getOs() )
+                || !matches( resourcesDom.getAttributeValue( "arch" ), environment.getArch() ) )
+            {
+                continue;
+            }
+            for ( Element element : resourcesDom.getChildren() )
+            {
+                String name = element.getName();
+                String href = element.getAttributeValue( "href" );
+                if ( href == null )
+                {
+                    continue;
+                }
+                if ( "extension".equals( name ) )
+                {
+                    collectResources( resolve( jnlp, href ), result, resources );
+                }
+                else if ( ( "jar".equals( name ) || "nativelib".equals( name ) )
+                    && !"lazy".equals( element.getAttributeValue( "download" ) ) )
+                {
+                    resources.add( resolve( jnlp, href ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Webstart matches os and arch attributes, which are space separated lists, by prefix.
+     */
+    static boolean matches( String attribute, String value )
+    {
+        if ( attribute == null || attribute.trim().length() == 0 )
+        {
+            return true;
+        }
+        if ( value == null )
+        {
+            return false;
+        }
+        for ( String token : attribute.trim().split( "\\s+" ) )
+        {
+            if ( value.startsWith( token ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static URL resolve( URL base, String href )
+        throws IOException
+    {
+        URL url = new URL( base, href );
+        if ( !url.getHost().equals( base.getHost() ) || url.getPort() != base.getPort() )
+        {
+            url = new URL( base, url.getPath() );
+        }
+        return url;
+    }
+
+    /**
+     * @return the download, or null if the resource does not exist
+     */
+    private Download download( URL url, boolean pack, boolean keepContent )
+        throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty( "Accept-Encoding", pack ? "pack200-gzip,gzip" : "gzip" );
+        if ( connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND )
+        {
+            return null;
+        }
+        if ( connection.getResponseCode() != HttpURLConnection.HTTP_OK )
+        {
+            throw new IOException( "Could not download " + url + ", response code " + connection.getResponseCode() );
+        }
+
+        InputStream is = connection.getInputStream();
+        byte[] content;
+        try
+        {
+            content = IOUtil.toByteArray( is );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+
+        String encoding = connection.getContentEncoding();
+        Download download =
+            new Download( url.getPath(), encoding, content.length, System.currentTimeMillis() - start );
+
+        if ( keepContent )
+        {
+            if ( "gzip".equals( encoding ) )
+            {
+                is = new GZIPInputStream( new ByteArrayInputStream( content ) );
+                try
+                {
+                    content = IOUtil.toByteArray( is );
+                }
+                finally
+                {
+                    IOUtil.close( is );
+                }
+            }
+            download.content = content;
+        }
+
+        return download;
+    }
+}